@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.client;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the downloads of output files for all the service instances of a
+ * GRexServiceClient, using a fixed number of worker threads.  Downloads that
+ * are submitted when all the workers are busy wait in a queue.  Urgent
+ * downloads (the standard output and error streams, which the user is
+ * watching) are taken from the queue before all others; otherwise downloads
+ * are run in the order in which they were submitted.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class DownloadManager
+{
+    private final ThreadPoolExecutor executor;
+    
+    // Gives the order in which downloads were submitted
+    private final AtomicLong sequence = new AtomicLong(0);
+    
+    /**
+     * Creates a DownloadManager that runs up to the given number of downloads
+     * at once.  The worker threads are created as they are needed.
+     */
+    public DownloadManager(int numWorkers)
+    {
+        // The queue is unbounded so the pool never grows beyond its core
+        // size.  The tasks are always Download objects, which are Comparable.
+        this.executor = new ThreadPoolExecutor(numWorkers, numWorkers,
+            0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+            new WorkerFactory());
+    }
+    
+    /**
+     * Queues the given download task to be run by one of the worker threads
+     * @param urgent true if the task should be run before all non-urgent tasks
+     */
+    public void submit(Runnable task, boolean urgent)
+    {
+        this.executor.execute(new Download(task, urgent,
+            this.sequence.getAndIncrement()));
+    }
+    
+    /**
+     * @return the number of downloads that are waiting for a worker thread
+     */
+    public int getNumQueued()
+    {
+        return this.executor.getQueue().size();
+    }
+    
+    /**
+     * @return the number of downloads that are in progress
+     */
+    public int getNumActive()
+    {
+        return this.executor.getActiveCount();
+    }
+    
+    /**
+     * A download task with its place in the queue
+     */
+    private static class Download implements Runnable, Comparable<Download>
+    {
+        private Runnable task;
+        private boolean urgent;
+        private long sequence;
+        
+        public Download(Runnable task, boolean urgent, long sequence)
+        {
+            this.task = task;
+            this.urgent = urgent;
+            this.sequence = sequence;
+        }
+        
+        public void run()
+        {
+            this.task.run();
+        }
+        
+        public int compareTo(Download other)
+        {
+            if (this.urgent != other.urgent)
+            {
+                return this.urgent ? -1 : 1;
+            }
+            if (this.sequence == other.sequence)
+            {
+                return 0;
+            }
+            return this.sequence < other.sequence ? -1 : 1;
+        }
+    }
+    
+    /**
+     * Creates the worker threads, which are daemon threads so that they don't
+     * stop the client from exiting
+     */
+    private static class WorkerFactory implements ThreadFactory
+    {
+        private final AtomicInteger numThreads = new AtomicInteger(0);
+        
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "downloader-" + this.numThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
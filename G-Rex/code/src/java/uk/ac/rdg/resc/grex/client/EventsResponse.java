@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.client;
+
+import java.util.List;
+import simple.xml.Attribute;
+import simple.xml.Element;
+import simple.xml.ElementList;
+import simple.xml.Root;
+import uk.ac.rdg.resc.grex.db.Job;
+
+/**
+ * Simple class used to deserialize the response from the server when waiting
+ * for changes to an instance.  Matches up with instanceEvents_xml.jsp.  The
+ * changes are applied to an InstanceResponse with
+ * {@link InstanceResponse#applyEvents}.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+@Root(name="events")
+class EventsResponse
+{
+    @Attribute(name="id")
+    private String id;
+    
+    @Attribute(name="version")
+    private long version;
+    
+    @Attribute(name="reset")
+    private boolean reset;
+    
+    @Element(name="state")
+    private Job.State state;
+    
+    @Element(name="exitCode", required=false)
+    private Integer exitCode = null;
+    
+    @Element(name="subJobs", required=false)
+    private SubJobs subJobs = null; // Only present if the instance has sub-jobs
+    
+    @Element(name="outputFiles")
+    private OutputFiles outputFiles;
+    
+    @ElementList(name="removed", type=RemovedFile.class)
+    private List<RemovedFile> removed;
+    
+    /**
+     * @return the version of the instance that the changes bring us up to,
+     * to be given to the server when we next ask for changes
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+    
+    /**
+     * @return true if the output files are all the current output files of
+     * the instance (rather than just those that have changed)
+     */
+    public boolean isReset()
+    {
+        return reset;
+    }
+
+    public Job.State getState()
+    {
+        return state;
+    }
+
+    public Integer getExitCode()
+    {
+        return exitCode;
+    }
+
+    public SubJobs getSubJobs()
+    {
+        return subJobs;
+    }
+    
+    /**
+     * @return the output files that have appeared or changed (or all the
+     * output files if isReset() is true)
+     */
+    public OutputFiles getOutputFiles()
+    {
+        return outputFiles;
+    }
+    
+    /**
+     * @return the output files that are no longer listed by the server
+     */
+    public List<RemovedFile> getRemoved()
+    {
+        return removed;
+    }
+    
+    /**
+     * An output file that is no longer listed by the server
+     */
+    @Root(name="file")
+    static class RemovedFile
+    {
+        @Attribute(name="relPath")
+        private String relativePath;
+        
+        public String getRelativePath()
+        {
+            return relativePath;
+        }
+    }
+}
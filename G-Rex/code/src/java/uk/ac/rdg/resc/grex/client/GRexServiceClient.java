@@ -122,6 +122,10 @@ public class GRexServiceClient
     // Client object for all HTTP transfers
     private HttpClient client;
     
+    // Runs the downloads of output files for all our service instances.
+    // Created when it is first needed.
+    private DownloadManager downloadManager = null;
+    
     /**
      * Zero-argument constructor: clients must use the setter methods to 
      * set properties before making a connection to the server
@@ -415,4 +419,18 @@ public class GRexServiceClient
         return client;
     }
     
+    /**
+     * @return the DownloadManager that runs the downloads of output files for
+     * all the service instances of this client, with up to
+     * maxTotalSimultaneousDownloads downloads in progress at once
+     */
+    synchronized DownloadManager getDownloadManager()
+    {
+        if (this.downloadManager == null)
+        {
+            this.downloadManager = new DownloadManager(maxTotalSimultaneousDownloads);
+        }
+        return this.downloadManager;
+    }
+    
 }
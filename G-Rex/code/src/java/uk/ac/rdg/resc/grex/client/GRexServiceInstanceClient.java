@@ -29,19 +29,24 @@
 package uk.ac.rdg.resc.grex.client;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
@@ -51,6 +56,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.rdg.resc.grex.exceptions.GRexException;
 import uk.ac.rdg.resc.grex.server.AbstractJobRunner;
+import uk.ac.rdg.resc.grex.server.CompressingInputStream;
 
 /**
  * An object that is used to manipulate a particular instance of a grid service.
@@ -71,18 +77,33 @@ public class GRexServiceInstanceClient
      * to status
      */
     public static final long DEFAULT_UPDATE_INTERVAL_MS = 2000;
+    
+    /**
+     * Time in milliseconds for which we ask the server to wait for changes
+     * to the instance before replying
+     */
+    private static final long EVENTS_WAIT_MS = 30000;
 
     // String preceding relative path in names of downloader
     // threads.
     public static final String DOWNLOADER_PREFIX = "download-";
     
+    // Size of the buffer used to copy the standard streams
+    private static final int BUFFER_SIZE = 65536;
+    
     
     private String url;
     private GRexServiceClient serviceClient;
     private long updateIntervalMs = DEFAULT_UPDATE_INTERVAL_MS;
+    private boolean compressUploads = true; // True if input files are to be
+                                            // compressed for upload
     private InstanceResponse instanceState;  // The state of the instance as
                                              // read from the server
     private int exitCode;  // The exit code from the remote service
+    private boolean useEvents = true; // True if we are to wait for changes to the
+                                      // instance rather than polling the server
+    private long eventsVersion = 0;   // The version of the instance that we have
+                                      // seen, when waiting for changes
     
     /**
      * Map of parameter names and values that we will set on the remote service
@@ -115,28 +136,14 @@ public class GRexServiceInstanceClient
     
     private Thread statusUpdater;
     
-    // Will store all the downloader threads that have been created
-    private List<Thread> fileDownloadThreads = new ArrayList<Thread>();
-    
-    // Will store the files that are currently being downloaded
-    private List<String> filesBeingDownloaded = new ArrayList<String>();
+    // The files whose downloads are queued or in progress
+    private Set<String> filesPending = Collections.synchronizedSet(new HashSet<String>());
 
-    /* Will store the files that have already been downloaded. This is not
-     * used at the moment and is probably not necessary at all. IF the status
-     * updater thread (launched by job runner) does not check this then there
-     * is a small chance of a file being downloaded twice */
-    private List<String> filesAlreadyDownloaded = new ArrayList<String>();
-
-    // Will store the files that failed to download properly.  Not populated
-    // at the moment, so list stays empty.
-    private List<String> filesDownloadFailed = new ArrayList<String>();
-
-    // Will store the files that failed to delete properly
-    //private List<String> filesDeleteFailed = new ArrayList<String>();
-
-    // Will store the files that are not accounted for when the service
-    // instance has finished
-    private List<String> filesNotAccountedFor = new ArrayList<String>();
+    // The files whose most recent download failed
+    private Set<String> filesDownloadFailed = Collections.synchronizedSet(new HashSet<String>());
+    
+    // The number of files that have been downloaded successfully
+    private AtomicLong numFilesDownloaded = new AtomicLong(0);
     
     
     /**
@@ -167,7 +174,11 @@ public class GRexServiceInstanceClient
      * instance is started (this method does not actually upload the file).
      * @param file The File to upload
      * @param pathOnServer The destination location of the file on the server,
-     * relative to the working directory of the instance.
+     * relative to the working directory of the instance.  If the path starts
+     * with "subjob/" and the id of a sub-job (e.g. "subjob/3/input.dat") the
+     * file goes in the working directory of that sub-job.  If it starts with
+     * "subjobs/" (e.g. "subjobs/input.dat") the file is uploaded once and
+     * linked into the working directory of every sub-job.
      * @throws FileNotFoundException if the file does not exist
      */
     public void addFileToUpload(File file, String pathOnServer)
@@ -261,6 +272,16 @@ public class GRexServiceInstanceClient
         this.updateIntervalMs = updateIntervalMs;
     }
     
+    /**
+     * Sets whether or not input files are compressed before they are uploaded
+     * to the server (the default is true).  Files whose names show that they
+     * are already compressed are never compressed again.
+     */
+    public void setCompressUploads(boolean compressUploads)
+    {
+        this.compressUploads = compressUploads;
+    }
+    
     /**
      * Sets the parameters of the service, uploads the required input files,
      * starts the service running, then starts threads to monitor the status
@@ -281,7 +302,15 @@ public class GRexServiceInstanceClient
         for (File fileToUpload : this.filesToUpload.keySet())
         {
             String pathOnServer = this.filesToUpload.get(fileToUpload);
-            parts.add(new FilePart(pathOnServer, fileToUpload));
+            if (this.compressUploads && !isCompressed(fileToUpload))
+            {
+                parts.add(new FilePart(pathOnServer, new CompressedFileSource(fileToUpload),
+                    CompressingInputStream.GZIP_CONTENT_TYPE, null));
+            }
+            else
+            {
+                parts.add(new FilePart(pathOnServer, fileToUpload));
+            }
         }
         Part[] partsArray = parts.toArray(new Part[0]);
         log.debug("About to set up job");
@@ -316,39 +345,78 @@ public class GRexServiceInstanceClient
     }
     
     /**
-     * Uploads data to the standard input of the service.  We have to do this in
-     * chunks because we don't know in advance how big the standard input stream
-     * will be.
-     * @todo: this method is not very efficient because we will parse the XML
-     * response with every chunk we upload.
+     * Sets whether the client waits for the server to tell it about changes
+     * to the instance (the default) or polls the server for the status of the
+     * instance at regular intervals.  If the server can't tell us about
+     * changes (e.g. because it is an older version of G-Rex) we poll anyway.
+     */
+    public void setUseEvents(boolean useEvents)
+    {
+        this.useEvents = useEvents;
+    }
+    
+    /**
+     * Uploads data to the standard input of the service.  We don't know in
+     * advance how big the standard input stream will be, so we stream it to
+     * the server in a single POST using chunked transfer encoding.  The state
+     * of the instance is only read once, when the upload is complete.
      */
     private void uploadStdin() throws IOException, GRexException
     {
         log.debug("Uploading data to standard input");
-        int len;
-        byte[] buf = new byte[8192];
-        long totalSize = 0;
-        while ((len = this.stdinSource.read(buf)) >= 0)
+        PostMethod uploadStdin = new PostMethod(this.url + "/" + AbstractJobRunner.STDIN);
+        // Sending the request chunked means that the data are sent as they are
+        // read from the source: the entity is never asked for its length, so
+        // it does not read the whole stream into memory first
+        uploadStdin.setRequestEntity(new InputStreamRequestEntity(this.stdinSource,
+            "application/octet-stream"));
+        uploadStdin.setContentChunked(true);
+        this.instanceState = this.serviceClient.executeMethod(uploadStdin,
+            InstanceResponse.class);
+        log.debug("Completed upload of data to standard input");
+    }
+    
+    /**
+     * @return true if the name of the given file shows that its contents are
+     * already compressed, in which case there's no point in compressing it
+     * again for upload
+     */
+    private static boolean isCompressed(File file)
+    {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".gz") || name.endsWith(".tgz") ||
+            name.endsWith(".zip") || name.endsWith(".bz2") || name.endsWith(".z");
+    }
+    
+    /**
+     * Source of data for a part of a multipart upload that provides the
+     * gzipped contents of a file.  The file is compressed in a separate thread
+     * while the data are being sent.  We don't know the length of the compressed
+     * data in advance, so the upload is sent using chunked transfer encoding.
+     */
+    private static class CompressedFileSource implements PartSource
+    {
+        private File file;
+        
+        public CompressedFileSource(File file)
         {
-            if (len > 0)
-            {
-                // We have to copy the data into a new array because
-                // ByteArrayPartSource will use the whole provided data buffer
-                byte[] data = new byte[len];
-                System.arraycopy(buf, 0, data, 0, len);
-                // We still use the setup.action endpoint
-                PostMethod uploadStdin = new PostMethod(this.url + "/setup");
-                PartSource dataSource = new ByteArrayPartSource(AbstractJobRunner.STDIN, data);
-                Part dataPart = new FilePart(AbstractJobRunner.STDIN, dataSource);
-                MultipartRequestEntity mre = new MultipartRequestEntity(new Part[]{dataPart},
-                    uploadStdin.getParams());
-                uploadStdin.setRequestEntity(mre);
-                this.instanceState = this.serviceClient.executeMethod(uploadStdin,
-                    InstanceResponse.class);
-                totalSize += len;
-            }
+            this.file = file;
+        }
+        
+        public long getLength()
+        {
+            return -1; // Unknown
+        }
+        
+        public String getFileName()
+        {
+            return this.file.getName();
+        }
+        
+        public InputStream createInputStream() throws IOException
+        {
+            return new CompressingInputStream(new FileInputStream(this.file), true);
         }
-        log.debug("Completed upload of " + totalSize + " bytes of data to standard input");
     }
     
     /**
@@ -364,13 +432,7 @@ public class GRexServiceInstanceClient
         // the job has finished.
         waitThread(this.statusUpdater);
         
-        /* The StatusUpdater now waits for downloads to complete.
-         /*
-        for (Thread thread : this.fileDownloadThreads)
-        {
-            waitThread(thread);
-        }
-         */
+        // The StatusUpdater waits for the downloads to complete
         log.debug("Service instance complete");
         // The exit code will have been set from the status updater thread
         return this.exitCode;
@@ -400,7 +462,8 @@ public class GRexServiceInstanceClient
     
     /**
      * Thread that polls the server at regular intervals for updates to status,
-     * saving the results in the <code>instanceState</code> field.
+     * saving the results in the <code>instanceState</code> field and queueing
+     * the download of each new output file with the DownloadManager.
      */
     private class StatusUpdater extends Thread
     {
@@ -416,100 +479,45 @@ public class GRexServiceInstanceClient
                 // Get maximum number of simultaneous downloads from service
                 // client
                 int maxSimultaneousDownloads = serviceClient.getMaxSimultaneousDownloads();
-                long numFilesDownloaded=0;
+                DownloadManager downloadManager = serviceClient.getDownloadManager();
+                boolean filesWaiting;
                 
                 log.debug("About to go into loop checking status every " + updateIntervalMs + " milliseconds");
                 do
                 {
-                    // Method to get the latest information about the service instance
+                    // Get the latest information about the service instance
                     // from the server
-                    GetMethod getStatus = new GetMethod(url + ".xml");
-                    instanceState = serviceClient.executeMethod(getStatus,
-                        InstanceResponse.class);
+                    boolean waited = updateInstanceState();
                     
-                    // Look through the list of output files and kick off a thread
-                    // to download each new one
+                    // Look through the list of output files and queue the
+                    // download of each new one
                     String baseUrl = instanceState.getOutputFilesBaseUrl();
-                    long bytesServer=0;
-                    long bytesClient=0;
-                    long bytesToDownload=0;
+                    filesWaiting = false;
                     
-                    if (instanceState.getOutputFiles().size() > 0) for (OutputFile outFile : instanceState.getOutputFiles())
+                    for (OutputFile outFile : instanceState.getOutputFiles())
                     {                        
-                        if (outFile.isReadyForDownload()) {
-                            
-                            /* Start download thread for this file if necessary
-                             */
-                            File fout = new File(outFile.getRelativePath());                                              
-                            //if (!filesBeingDownloaded.contains(outFile.getRelativePath()) && !fout.exists()) {
-                            if (!filesBeingDownloaded.contains(outFile.getRelativePath())) {
-                                if (filesBeingDownloaded.size() < maxSimultaneousDownloads) {
-                                    /* Calculate difference between size of file on server
-                                    * and size of file at client */
-                                    bytesClient = fout.getCanonicalFile().length();
-                                    bytesServer = outFile.getFileLengthBytes();
-                                    bytesToDownload=bytesServer-bytesClient;
-                                    /*
-                                    log.debug("File " + outFile.getRelativePath() + ": Size at client = "
-                                        + bytesClient + ", size at server = " + bytesServer
-                                        + ", bytes to download = " + bytesToDownload);*/
-                            
-                                    Thread downloader = new FileDownloader(baseUrl, outFile, bytesToDownload, this);
-                                    fileDownloadThreads.add(downloader);
-                                    downloader.start();
-                                    
-                                    // Update file lists
-                                    filesBeingDownloaded.add(outFile.getRelativePath());
-                                    if (filesNotAccountedFor.contains(outFile.getRelativePath()))
-                                        filesNotAccountedFor.remove(outFile.getRelativePath());
-                                    log.debug("Started downloading from " + outFile.getRelativePath() +
-                                        ". Number of files being downloaded is now " + filesBeingDownloaded.size());
-                                    
-                                }
-                                else {
-                                    if (!filesNotAccountedFor.contains(outFile.getRelativePath()))
-                                        filesNotAccountedFor.add(outFile.getRelativePath());
-                                }
+                        if (!outFile.isReadyForDownload()) continue;
+                        String relativePath = outFile.getRelativePath();
+                        synchronized(filesPending)
+                        {
+                            if (filesPending.contains(relativePath))
+                            {
+                                continue;
                             }
-                        }                        
-                    }
-                    
-                    //
-                    // Find out if any downloader threads have finished, and
-                    // update lists if necessary
-                    //
-                    List<Thread> finishedDownloadThreads = new ArrayList<Thread>();
-                    for (Thread thread : fileDownloadThreads) {
-                        // Extract relative path from thread name
-                        String relativePath = thread.getName().substring(DOWNLOADER_PREFIX.length());
-                        
-                        // Update file lists if the thread has finished, or if the instance
-                        // has finished and the thread is for stdout or stderr. Downloaders
-                        // for stdin and stdout can sometimes keep going indefinitely.
-                        if (!thread.isAlive() || (instanceState.getState().meansFinished() &&
-                                (relativePath.contains(AbstractJobRunner.STDOUT) ||
-                                relativePath.contains(AbstractJobRunner.STDERR)))) {
-                            finishedDownloadThreads.add(thread);
-                            filesBeingDownloaded.remove(relativePath);
-                            //filesAlreadyDownloaded.add(relativePath);
-                            numFilesDownloaded++;
-                            log.debug("Finished downloading from " + relativePath +
-                                    ". Total No. files downloaded is now " + numFilesDownloaded);
-                        }
-                        else if (instanceState.getState().meansFinished() &&
-                                (relativePath.contains(AbstractJobRunner.STDOUT) ||
-                                relativePath.contains(AbstractJobRunner.STDIN)) ) {
-                            // ??
+                            if (filesPending.size() >= maxSimultaneousDownloads)
+                            {
+                                // We'll pick this file up in a later update
+                                filesWaiting = true;
+                                continue;
+                            }
+                            filesPending.add(relativePath);
                         }
-                                
-                    }
-                    // Now remove the threads that have finished from the list of
-                    // active threads
-                    for (Thread thread : finishedDownloadThreads) {
-                        fileDownloadThreads.remove(thread);
+                        downloadManager.submit(new FileDownloader(baseUrl, outFile),
+                            isStandardStream(relativePath));
+                        log.debug("Queued download of " + relativePath +
+                            ". Number of files being downloaded is now " + filesPending.size());
                     }
                     
-
                     if (instanceState.getState().meansFinished())
                     {
                         // TODO: getExitCode() could return null, but this would
@@ -519,34 +527,35 @@ public class GRexServiceInstanceClient
                         }
                         else exitCode = instanceState.getExitCode();
                     
-                        /* Files are unaccounted for if they are available for download
-                         * but no attempt to download them had yet been made. This
-                         * situation can arise because there is a limit to the number of
-                         * downloads that can take place simultaneously. */
+                        /* Files can be left waiting because there is a limit
+                         * to the number of downloads that can be in progress
+                         * for this instance. */
                         log.info("Instance " + instanceState.getId() + " has finished.");
-                        if (filesNotAccountedFor.size()>0) {
-                            log.info(filesNotAccountedFor.size() + " files are not accounted for:");
-                            //for (String relativePath : filesNotAccountedFor) {
-                            //    log.debug(relativePath);
-                            //}
+                        if (filesWaiting) {
+                            log.info("Some files are waiting to be downloaded");
                         }
                         else {
-                            log.debug("The following " + filesBeingDownloaded.size() + " files are still being downloaded:");
-                            for (String relativePath : filesBeingDownloaded) {
-                                log.debug(relativePath);
-                            }
+                            log.debug(getNumDownloadsPending(true) + " files are still being downloaded");
                         }
                     }
                     
-                    // Wait for the required time before getting the next update
-                    try {
-                        Thread.sleep(updateIntervalMs);
-                    } catch (InterruptedException ie) {}
+                    // Wait for the required time before getting the next update,
+                    // unless the server has waited for a change
+                    if (!waited) {
+                        try {
+                            Thread.sleep(updateIntervalMs);
+                        } catch (InterruptedException ie) {}
+                    }
                     
                 /* We must keep going if the instance has not yet finished, if there are still files
-                 * being downloaded or if there are files still unnacounted for. */
-                } while (!instanceState.getState().meansFinished() || filesBeingDownloaded.size()>0
-                        || filesNotAccountedFor.size()>0);
+                 * being downloaded or if there are files waiting to be downloaded.  Once the instance
+                 * has finished we don't wait for the downloads of the standard streams, which can
+                 * sometimes keep going indefinitely. */
+                } while (!instanceState.getState().meansFinished() ||
+                        getNumDownloadsPending(true) > 0 || filesWaiting);
+                
+                log.debug(numFilesDownloaded.get() + " files downloaded, " +
+                    filesDownloadFailed.size() + " failed");
             }
             catch(Exception e)
             {
@@ -555,30 +564,112 @@ public class GRexServiceInstanceClient
                 // TODO: what do we do here?
             }
         }
-        
-
+    }
+    
+    /**
+     * Brings the <code>instanceState</code> field up to date, either by
+     * waiting for the server to tell us about changes to the instance or by
+     * getting the whole status of the instance
+     * @return true if we waited for changes, false if we polled
+     */
+    private boolean updateInstanceState() throws IOException, GRexException
+    {
+        if (this.useEvents)
+        {
+            GetMethod getEvents = new GetMethod(this.url + "/events?since=" +
+                this.eventsVersion + "&wait=" + EVENTS_WAIT_MS);
+            try
+            {
+                EventsResponse events = this.serviceClient.executeMethod(getEvents,
+                    EventsResponse.class);
+                this.instanceState.applyEvents(events);
+                this.eventsVersion = events.getVersion();
+                return true;
+            }
+            catch(GRexException gre)
+            {
+                log.info("Server can't report changes to the instance (" +
+                    gre.getMessage() + "): polling for status instead");
+                this.useEvents = false;
+            }
+            catch(RuntimeException re)
+            {
+                // Thrown by executeMethod() if the response is not recognized
+                log.info("Server can't report changes to the instance: polling for status instead");
+                this.useEvents = false;
+            }
+        }
+        GetMethod getStatus = new GetMethod(this.url + ".xml");
+        this.instanceState = this.serviceClient.executeMethod(getStatus,
+            InstanceResponse.class);
+        return false;
+    }
+    
+    /**
+     * @return true if the given path is that of the standard output or
+     * error stream of the instance
+     */
+    private static boolean isStandardStream(String relativePath)
+    {
+        return relativePath.equals(AbstractJobRunner.STDOUT) ||
+            relativePath.equals(AbstractJobRunner.STDERR);
+    }
+    
+    /**
+     * @param ignoreStandardStreams if true, the downloads of the standard
+     * output and error streams are not counted
+     * @return the number of downloads that are queued or in progress
+     */
+    private int getNumDownloadsPending(boolean ignoreStandardStreams)
+    {
+        synchronized(this.filesPending)
+        {
+            int num = this.filesPending.size();
+            if (ignoreStandardStreams)
+            {
+                if (this.filesPending.contains(AbstractJobRunner.STDOUT)) num--;
+                if (this.filesPending.contains(AbstractJobRunner.STDERR)) num--;
+            }
+            return num;
+        }
+    }
+    
+    /**
+     * Called by a FileDownloader when it has finished, whether or not the
+     * download succeeded.  If it failed, the file will be downloaded again if
+     * the server still lists it.
+     */
+    private void downloadFinished(String relativePath, boolean succeeded)
+    {
+        if (succeeded)
+        {
+            this.filesDownloadFailed.remove(relativePath);
+            long num = this.numFilesDownloaded.incrementAndGet();
+            log.debug("Finished downloading from " + relativePath +
+                ". Total No. files downloaded is now " + num);
+        }
+        else
+        {
+            this.filesDownloadFailed.add(relativePath);
         }
+        this.filesPending.remove(relativePath);
+    }
     
     /**
-     * Thread that handles the downloading of an output file from the server.
+     * Task that handles the downloading of an output file from the server.
+     * This is run by a worker thread of the DownloadManager.
      */
-    private class FileDownloader extends Thread
+    private class FileDownloader implements Runnable
     {
         private String baseUrl;
         private String relativePath;
-        private long bytesToDownload;
         private OutputFile outFile;
-        private StatusUpdater updater;
         
-        public FileDownloader(String baseUrl, OutputFile outFile,
-                long bytes, StatusUpdater updater)
+        public FileDownloader(String baseUrl, OutputFile outFile)
         {
-            super(DOWNLOADER_PREFIX + outFile.getRelativePath());
             this.baseUrl = baseUrl;
             this.outFile = outFile;
             this.relativePath = outFile.getRelativePath();
-            this.bytesToDownload = bytes; /* Not using this yet */
-            this.updater = updater;
         }
         
         public OutputFile getOutputFile() {
@@ -589,34 +680,80 @@ public class GRexServiceInstanceClient
         {
             String fileUrl = this.baseUrl + this.relativePath;
             //log.debug("Downloading from " + fileUrl);
+            // Name the worker thread after the file, for the logs
+            Thread worker = Thread.currentThread();
+            String workerName = worker.getName();
+            worker.setName(DOWNLOADER_PREFIX + this.relativePath);
+            boolean downloaded = false;
+            try
+            {
+                if (this.relativePath.equals(AbstractJobRunner.STDOUT))
+                {
+                    downloaded = this.downloadStream(fileUrl, stdoutDestination);
+                }
+                else if (this.relativePath.equals(AbstractJobRunner.STDERR))
+                {
+                    downloaded = this.downloadStream(fileUrl, stderrDestination);
+                }
+                else
+                {
+                    // Download the file, resuming any previous partial download
+                    // (or not at all if we already have an identical copy)
+                    new ResumableDownload(serviceClient.getHttpClient(), fileUrl,
+                        new File(this.relativePath), this.outFile.getFileLengthBytes(),
+                        this.outFile.getEtag(), this.outFile.getCheckSum()).download();
+                    downloaded = true;
+                }
+                if (downloaded)
+                {
+                    // Now that we have the whole file the server can delete it
+                    PostMethod deleteFile = new PostMethod(url + "/delete/" + this.relativePath);
+                    serviceClient.executeMethod(deleteFile, InstanceResponse.class);
+                }
+            }
+            catch(GRexException gre)
+            {
+                log.error("Error deleting " + fileUrl + " from server", gre);
+            }
+            catch(IOException ioe)
+            {
+                // TODO: do something more friendly here
+                ioe.printStackTrace();
+                log.error("Error downloading from " + fileUrl, ioe);
+            }
+            catch(RuntimeException re)
+            {
+                log.error("Error downloading from " + fileUrl, re);
+            }
+            finally
+            {
+                downloadFinished(this.relativePath, downloaded);
+                worker.setName(workerName);
+            }
+        }
+        
+        /**
+         * Downloads a standard stream from the server to the given destination,
+         * in a single request (we can't resume these downloads because the
+         * data have already been written to the destination)
+         * @return true if the stream was downloaded successfully
+         */
+        private boolean downloadStream(String fileUrl, OutputStream out)
+            throws IOException
+        {
             InputStream in = null;
-            OutputStream out = null;
             GetMethod downloader = new GetMethod(fileUrl);
+            downloader.setRequestHeader("Accept-Encoding", "gzip");
             try
             {
                 int status = serviceClient.getHttpClient().executeMethod(downloader);
                 if (status == HttpServletResponse.SC_OK)
                 {
-                    in = downloader.getResponseBodyAsStream();
-                    // Set the output stream
-                    if (this.relativePath.equals(AbstractJobRunner.STDOUT))
-                    {
-                        out = stdoutDestination;
-                    }
-                    else if (this.relativePath.equals(AbstractJobRunner.STDERR))
-                    {
-                        out = stderrDestination;
-                    }
-                    else
-                    {
-                        File fout = new File(this.relativePath);
-                        fout.getCanonicalFile().getParentFile().mkdirs();
-                        out = new FileOutputStream(fout);
-                    }
+                    in = ResumableDownload.getResponseStream(downloader);
                     
                     // Now read the contents of the stream
-                    int len, bufsize=1024;
-                    byte[] buf = new byte[bufsize];
+                    int len;
+                    byte[] buf = new byte[BUFFER_SIZE];
                     
                     while ((len = in.read(buf)) >= 0)
                     {
@@ -627,29 +764,20 @@ public class GRexServiceInstanceClient
                             out.flush();
                         }
                     }
-                    //log.debug("Finished downloading from " + fileUrl +
-                    //        ", checksum at server is " + outFile.getCheckSum());
-                    
+                    return true;
                 }
                 else
                 {
                     // TODO: do something better here
                     log.error("Got status " + status + " from " + fileUrl);
+                    return false;
                 }
             }
-            catch(IOException ioe)
-            {
-                // TODO: do something more friendly here
-                ioe.printStackTrace();
-                log.error("Error downloading from " + fileUrl, ioe);
-            }
             finally
             {
                 try
                 {
                     if (in != null) in.close();
-                    // Don't close the standard streams
-                    if (out != null && out != System.out && out != System.err) out.close();
                 }
                 catch (IOException ioe)
                 {
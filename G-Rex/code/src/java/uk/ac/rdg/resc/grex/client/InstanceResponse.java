@@ -63,6 +63,9 @@ class InstanceResponse
     @Element(name="exitCode", required=false)
     private Integer exitCode = null;
     
+    @Element(name="subJobs", required=false)
+    private SubJobs subJobs = null; // Only present if the instance has sub-jobs
+    
     @ElementList(name="parameters", type=Parameter.class)
     private List<Parameter> params;
     
@@ -99,6 +102,15 @@ class InstanceResponse
         return exitCode;
     }
 
+    /**
+     * @return the progress of the sub-jobs of the instance, or null if the
+     * instance has no sub-jobs
+     */
+    public SubJobs getSubJobs()
+    {
+        return subJobs;
+    }
+
     /**
      * @return the base url for all the output files that are currently available
      */
@@ -114,4 +126,16 @@ class InstanceResponse
     {
         return this.outputFiles.getOutputFileList();
     }
+    
+    /**
+     * Brings this object up to date with the given changes to the instance
+     */
+    void applyEvents(EventsResponse events)
+    {
+        this.state = events.getState();
+        this.exitCode = events.getExitCode();
+        this.subJobs = events.getSubJobs();
+        this.outputFiles.update(events.getOutputFiles(), events.getRemoved(),
+            events.isReset());
+    }
 }
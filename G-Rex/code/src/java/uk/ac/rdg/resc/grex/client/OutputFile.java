@@ -56,8 +56,12 @@ class OutputFile
     @Attribute(name="readyForDownload")
     private boolean readyForDownload;
     
-    @Attribute(name="checkSum")
-    private long checkSum;
+    @Attribute(name="checkSum", required=false)
+    private Long checkSum = null; // Left out by the server if it isn't known
+    
+    @Attribute(name="etag", required=false)
+    private String etag = null; // Used to check that the file hasn't changed
+                                // when resuming a download
     
     /** Creates a new instance of OutputFile */
     public OutputFile()
@@ -91,9 +95,22 @@ class OutputFile
         return readyForDownload;
     }
 
-    public long getCheckSum()
+    /**
+     * @return the CRC-32 check sum of the file on the server, or null if the
+     * server doesn't know it (e.g. because the file is still being written)
+     */
+    public Long getCheckSum()
     {
         return checkSum;
     }
     
+    /**
+     * @return the entity tag of the file on the server, or null if the
+     * server did not provide one
+     */
+    public String getEtag()
+    {
+        return etag;
+    }
+    
 }
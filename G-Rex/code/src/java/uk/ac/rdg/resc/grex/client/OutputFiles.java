@@ -28,7 +28,10 @@
 
 package uk.ac.rdg.resc.grex.client;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import simple.xml.Attribute;
 import simple.xml.ElementList;
 import simple.xml.Root;
@@ -61,4 +64,34 @@ class OutputFiles
         return outputFileList;
     }
     
+    /**
+     * Updates the list of output files with the changes from the server
+     * @param changed The files that have appeared or changed
+     * @param removed The files that are no longer listed
+     * @param reset true if the changed files are all the files that are
+     * listed, in which case the files we knew about before are forgotten
+     */
+    void update(OutputFiles changed, List<EventsResponse.RemovedFile> removed,
+        boolean reset)
+    {
+        this.baseUrl = changed.getBaseUrl();
+        Map<String, OutputFile> files = new LinkedHashMap<String, OutputFile>();
+        if (!reset)
+        {
+            for (OutputFile file : this.outputFileList)
+            {
+                files.put(file.getRelativePath(), file);
+            }
+            for (EventsResponse.RemovedFile file : removed)
+            {
+                files.remove(file.getRelativePath());
+            }
+        }
+        for (OutputFile file : changed.getOutputFileList())
+        {
+            files.put(file.getRelativePath(), file);
+        }
+        this.outputFileList = new ArrayList<OutputFile>(files.values());
+    }
+    
 }
@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.rdg.resc.grex.server.OutputFile;
+
+/**
+ * Downloads an output file from a service instance to a local file, using
+ * HTTP Range requests so that a download that is interrupted can be resumed
+ * rather than started again.  The data are written to a temporary file
+ * (with the suffix ".part") which is renamed when the download is complete,
+ * so a partial file that is left behind by a failed run of the client is
+ * also resumed the next time the file is downloaded.
+ *
+ * Large files are downloaded with several range requests in parallel, which
+ * can make better use of a high-latency link.
+ *
+ * The server only honours Range requests for files whose contents will not
+ * change any more.  In all requests we send the entity tag of the file that
+ * we got from the server as an If-Range header: if the file has changed, the
+ * server sends the whole file again and we start from the beginning.
+ *
+ * When we ask for the whole file we let the server compress it for transfer.
+ * Range requests always refer to the uncompressed data.
+ *
+ * The data are written to the file through its FileChannel, in blocks as large
+ * as the network will give us up to BUFFER_SIZE.
+ *
+ * If we know the CRC-32 check sum of the file on the server (from the list of
+ * output files or from the responses to our requests) we check the complete
+ * file against it, downloading the file again if it doesn't match.  If we
+ * already have a copy of the file with the same length and check sum (e.g.
+ * from a previous run of the client) we don't download it at all.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class ResumableDownload
+{
+    private static final Log log = LogFactory.getLog(ResumableDownload.class);
+    
+    /**
+     * Suffix of the temporary file that holds the data while we download
+     */
+    static final String PART_SUFFIX = ".part";
+    
+    /**
+     * Suffix of the temporary file that holds the data during a parallel
+     * download.  This file has gaps until all the ranges have arrived, so it
+     * is never resumed: it only becomes the partial file once it is complete.
+     */
+    private static final String PARALLEL_SUFFIX = ".parts";
+    
+    /**
+     * Files of this size or more are downloaded with parallel range requests
+     */
+    private static final long PARALLEL_THRESHOLD_BYTES = 64 * 1024 * 1024;
+    
+    /**
+     * The number of range requests to use for a parallel download
+     */
+    private static final int NUM_PARALLEL_RANGES = 4;
+    
+    /**
+     * The number of times we try to download a file before giving up
+     */
+    private static final int MAX_ATTEMPTS = 3;
+    
+    private static final int BUFFER_SIZE = 65536;
+    
+    private HttpClient client;
+    private String fileUrl;
+    private File target;
+    private File partFile;
+    private long length;
+    private String etag;
+    private Long checksum; // null if we don't know the check sum
+    private boolean checksumFromResponse = false;
+    
+    /**
+     * Creates a new ResumableDownload.  This does not start the download.
+     * @param client The HttpClient to use for the requests
+     * @param fileUrl The URL to the output file on the server
+     * @param target The local file to which the output file will be saved
+     * @param length The length of the file on the server as last reported
+     * @param etag The entity tag of the file on the server, or null if we
+     * don't know it (in which case we can't resume the download)
+     * @param checksum The CRC-32 check sum of the file on the server, or null
+     * if we don't know it
+     */
+    public ResumableDownload(HttpClient client, String fileUrl, File target,
+        long length, String etag, Long checksum)
+    {
+        this.client = client;
+        this.fileUrl = fileUrl;
+        this.target = target;
+        this.partFile = new File(target.getPath() + PART_SUFFIX);
+        this.length = length;
+        this.etag = etag;
+        this.checksum = checksum;
+    }
+    
+    /**
+     * Downloads the file, resuming a previous partial download if there is one.
+     * When this method returns successfully, the whole file is in the target
+     * location.
+     * @throws IOException if the file could not be downloaded, even after
+     * several attempts.
+     */
+    public void download() throws IOException
+    {
+        if (this.checksum != null && this.target.exists() &&
+            this.target.length() == this.length &&
+            checksum(this.target) == this.checksum.longValue())
+        {
+            log.debug(this.target.getPath() + " is identical to " + this.fileUrl
+                + ": not downloading");
+            return;
+        }
+        
+        this.partFile.getCanonicalFile().getParentFile().mkdirs();
+        
+        boolean done = false;
+        if (this.etag != null && this.length >= PARALLEL_THRESHOLD_BYTES &&
+            !this.partFile.exists())
+        {
+            done = this.downloadParallel() && this.checkPartFile();
+        }
+        
+        IOException lastError = null;
+        for (int attempt = 1; !done && attempt <= MAX_ATTEMPTS; attempt++)
+        {
+            try
+            {
+                this.downloadRemainder();
+                if (!this.checkPartFile())
+                {
+                    throw new IOException("Check sum of downloaded data does not match");
+                }
+                done = true;
+            }
+            catch(IOException ioe)
+            {
+                log.debug("Attempt " + attempt + " to download " + this.fileUrl
+                    + " failed: " + ioe.getMessage());
+                lastError = ioe;
+            }
+        }
+        if (!done)
+        {
+            throw lastError;
+        }
+        
+        // Move the completed file into place
+        if (this.target.exists() && !this.target.delete())
+        {
+            throw new IOException("Could not replace " + this.target.getPath());
+        }
+        if (!this.partFile.renameTo(this.target))
+        {
+            throw new IOException("Could not rename " + this.partFile.getPath()
+                + " to " + this.target.getPath());
+        }
+    }
+    
+    /**
+     * Checks the complete partial file against the check sum of the file on
+     * the server (if we know it), deleting the partial file if it doesn't
+     * match so that the next attempt starts again from the beginning.  The
+     * check sum from the list of output files only applies to the file as it
+     * was when it was listed, so unless the server sent a check sum with the
+     * data we only use it if we have exactly the length that was listed.
+     * @return true if the partial file matches the check sum or if we
+     * don't know the check sum
+     */
+    private boolean checkPartFile() throws IOException
+    {
+        Long expected = this.getChecksum();
+        if (expected == null ||
+            (!this.isChecksumFromResponse() && this.partFile.length() != this.length))
+        {
+            return true;
+        }
+        long actual = checksum(this.partFile);
+        if (actual == expected.longValue())
+        {
+            return true;
+        }
+        log.debug("Check sum of " + this.partFile.getPath() + " is " + actual +
+            ", expected " + expected);
+        this.partFile.delete();
+        return false;
+    }
+    
+    /**
+     * Records the check sum of the file from the response to a request, if
+     * the server has given one.  This takes precedence over the check sum
+     * from the list of output files because it refers to the version of the
+     * file that was sent.
+     */
+    private synchronized void readChecksum(GetMethod get)
+    {
+        Header header = get.getResponseHeader(OutputFile.CHECKSUM_HEADER);
+        if (header != null)
+        {
+            try
+            {
+                this.checksum = Long.valueOf(header.getValue().trim());
+                this.checksumFromResponse = true;
+            }
+            catch(NumberFormatException nfe)
+            {
+                log.debug("Invalid check sum " + header.getValue() + " from " + this.fileUrl);
+            }
+        }
+    }
+    
+    private synchronized Long getChecksum()
+    {
+        return this.checksum;
+    }
+    
+    private synchronized boolean isChecksumFromResponse()
+    {
+        return this.checksumFromResponse;
+    }
+    
+    /**
+     * @return the CRC-32 check sum of the contents of the given file
+     */
+    static long checksum(File file) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0)
+            {
+                crc.update(buf, 0, len);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return crc.getValue();
+    }
+    
+    /**
+     * Downloads the part of the file that we don't have yet in a single
+     * request, appending it to the partial file.  If the server sends the
+     * whole file (because it has changed, or because it doesn't support
+     * ranges for this file) the partial file is overwritten.
+     */
+    private void downloadRemainder() throws IOException
+    {
+        long offset = this.partFile.exists() ? this.partFile.length() : 0;
+        GetMethod get = new GetMethod(this.fileUrl);
+        if (offset > 0 && this.etag != null)
+        {
+            get.setRequestHeader("Range", "bytes=" + offset + "-");
+            get.setRequestHeader("If-Range", this.etag);
+        }
+        else
+        {
+            get.setRequestHeader("Accept-Encoding", "gzip");
+        }
+        try
+        {
+            int status = this.client.executeMethod(get);
+            this.readChecksum(get);
+            boolean append;
+            if (status == HttpServletResponse.SC_PARTIAL_CONTENT)
+            {
+                log.debug("Resuming download of " + this.fileUrl + " from byte " + offset);
+                append = true;
+            }
+            else if (status == HttpServletResponse.SC_OK)
+            {
+                append = false;
+            }
+            else if (status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE
+                && offset == this.length)
+            {
+                // We already have the whole file
+                return;
+            }
+            else
+            {
+                if (status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+                {
+                    // Our partial file is no good: start again next time
+                    this.partFile.delete();
+                }
+                get.abort();
+                throw new IOException("Got status " + status + " from " + this.fileUrl);
+            }
+            RandomAccessFile out = new RandomAccessFile(this.partFile, "rw");
+            try
+            {
+                if (!append)
+                {
+                    out.setLength(0);
+                }
+                copy(getResponseStream(get), out.getChannel(), out.length(), Long.MAX_VALUE);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            get.releaseConnection();
+        }
+    }
+    
+    /**
+     * Downloads the file using several range requests in parallel, each of
+     * which writes to its own section of a separate temporary file.  The
+     * temporary file will contain gaps until all the ranges have arrived, so
+     * it is only renamed to the partial file when the download has succeeded.
+     * If the client stops in the middle, the next run therefore doesn't
+     * mistake the temporary file for a partial download that it can resume.
+     * @return true if the download succeeded, false if it failed (in which
+     * case the temporary file is deleted)
+     */
+    private boolean downloadParallel() throws IOException
+    {
+        log.debug("Downloading " + this.fileUrl + " in " + NUM_PARALLEL_RANGES
+            + " parallel parts");
+        File parallelFile = new File(this.target.getPath() + PARALLEL_SUFFIX);
+        // Get rid of anything left by an earlier run that didn't finish
+        parallelFile.delete();
+        long rangeSize = (this.length + NUM_PARALLEL_RANGES - 1) / NUM_PARALLEL_RANGES;
+        RangeFetcher[] fetchers = new RangeFetcher[NUM_PARALLEL_RANGES];
+        for (int i = 0; i < fetchers.length; i++)
+        {
+            long first = i * rangeSize;
+            long last = Math.min(this.length, first + rangeSize) - 1;
+            fetchers[i] = new RangeFetcher(parallelFile, first, last);
+            fetchers[i].start();
+        }
+        boolean succeeded = true;
+        for (RangeFetcher fetcher : fetchers)
+        {
+            boolean finished = false;
+            while (!finished)
+            {
+                try
+                {
+                    fetcher.join();
+                    finished = true;
+                }
+                catch(InterruptedException ie)
+                {
+                    // Carry on waiting
+                }
+            }
+            if (fetcher.error != null)
+            {
+                log.debug("Error downloading bytes " + fetcher.first + "-" +
+                    fetcher.last + " of " + this.fileUrl + ": " + fetcher.error);
+                succeeded = false;
+            }
+        }
+        if (succeeded && !parallelFile.renameTo(this.partFile))
+        {
+            log.debug("Could not rename " + parallelFile.getPath() + " to " +
+                this.partFile.getPath());
+            succeeded = false;
+        }
+        if (!succeeded)
+        {
+            parallelFile.delete();
+        }
+        return succeeded;
+    }
+    
+    /**
+     * Gets the body of the response to the given method, decompressing it
+     * if the server has compressed it
+     */
+    static InputStream getResponseStream(GetMethod get) throws IOException
+    {
+        InputStream in = get.getResponseBodyAsStream();
+        Header encoding = get.getResponseHeader("Content-Encoding");
+        if (encoding != null && encoding.getValue().trim().equalsIgnoreCase("gzip"))
+        {
+            in = new GZIPInputStream(in);
+        }
+        return in;
+    }
+    
+    /**
+     * Copies the given input stream to the given channel, starting at the given
+     * position in the channel and stopping at the end of the stream or after
+     * the given maximum number of bytes.  Closes the input stream afterwards.
+     * @return the number of bytes copied
+     */
+    private static long copy(InputStream in, FileChannel out, long position,
+        long maxBytes) throws IOException
+    {
+        long total = 0;
+        try
+        {
+            byte[] buf = new byte[BUFFER_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            int len;
+            while (total < maxBytes &&
+                (len = in.read(buf, 0, (int)Math.min(buf.length, maxBytes - total))) >= 0)
+            {
+                bb.limit(len).position(0);
+                while (bb.hasRemaining())
+                {
+                    position += out.write(bb, position);
+                }
+                total += len;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return total;
+    }
+    
+    /**
+     * Thread that downloads one range of bytes of the file into the
+     * corresponding position in the given file
+     */
+    private class RangeFetcher extends Thread
+    {
+        private File file;
+        private long first;
+        private long last;
+        private Throwable error = null; // Set if the range could not be downloaded
+        
+        public RangeFetcher(File file, long first, long last)
+        {
+            super("range-" + first + "-" + target.getName());
+            this.file = file;
+            this.first = first;
+            this.last = last;
+        }
+        
+        public void run()
+        {
+            GetMethod get = new GetMethod(fileUrl);
+            get.setRequestHeader("Range", "bytes=" + this.first + "-" + this.last);
+            get.setRequestHeader("If-Range", etag);
+            RandomAccessFile raf = null;
+            try
+            {
+                int status = client.executeMethod(get);
+                readChecksum(get);
+                if (status != HttpServletResponse.SC_PARTIAL_CONTENT)
+                {
+                    // The file has changed, or the server isn't giving us ranges.
+                    // Don't let releaseConnection() read the rest of the response
+                    get.abort();
+                    throw new IOException("Got status " + status + " from " + fileUrl);
+                }
+                raf = new RandomAccessFile(this.file, "rw");
+                long expected = this.last - this.first + 1;
+                long total = copy(get.getResponseBodyAsStream(), raf.getChannel(),
+                    this.first, expected);
+                if (total != expected)
+                {
+                    throw new IOException("Expected " + expected + " bytes but got " + total);
+                }
+            }
+            catch(Throwable t)
+            {
+                // Any failure (not just an IOException) means that there is a
+                // gap in the file
+                this.error = t;
+            }
+            finally
+            {
+                try
+                {
+                    if (raf != null) raf.close();
+                }
+                catch(IOException ioe)
+                {
+                    // Unlikely to happen and we don't really care anyway
+                }
+                get.releaseConnection();
+            }
+        }
+    }
+}
@@ -111,6 +111,22 @@ public class GRexConfig implements ApplicationContextAware
     private String masterWorkingHome = UNSPECIFIED;
     private File masterWorkingDirectory;
     
+    /**
+     * The maximum number of sub-jobs that will be run at once on this server
+     * by LocalJobRunners.  Zero (the default) means the number of processors
+     * on this machine.
+     */
+    @Attribute(name="local-job-slots", required=false)
+    private int localJobSlots = 0;
+    
+    /**
+     * The maximum number of instances (of all services) that can run at once
+     * on this server.  Instances that are started when this many are running
+     * are queued (see InstanceScheduler).  Zero (the default) means no limit.
+     */
+    @Attribute(name="max-running-instances", required=false)
+    private int maxRunningInstances = 0;
+    
     /**
      * The users that can access this G-Rex server
      */
@@ -252,6 +268,28 @@ public class GRexConfig implements ApplicationContextAware
         return this.masterWorkingHome;
     }
     
+    /**
+     * @return the maximum number of sub-jobs that will be run at once on this
+     * server by LocalJobRunners
+     */
+    public int getLocalJobSlots()
+    {
+        if (this.localJobSlots == 0)
+        {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return this.localJobSlots;
+    }
+    
+    /**
+     * @return the maximum number of instances that can run at once on this
+     * server, or zero if there is no limit
+     */
+    public int getMaxRunningInstances()
+    {
+        return this.maxRunningInstances;
+    }
+    
     /**
      * @return a List of users that have access to the system
      */
@@ -268,6 +306,15 @@ public class GRexConfig implements ApplicationContextAware
     @Validate
     public void validate() throws PersistenceException
     {
+        if (this.localJobSlots < 0)
+        {
+            throw new PersistenceException("local-job-slots cannot be negative");
+        }
+        if (this.maxRunningInstances < 0)
+        {
+            throw new PersistenceException("max-running-instances cannot be negative");
+        }
+        
         // Now create the home directory if it does not exists
         this.homeDirectory = new File(this.homeDirectoryStr);
         if (!homeDirectory.exists()) {
@@ -77,6 +77,21 @@ public class GridServiceConfigForServer extends GridServiceConfigForClient
     @Attribute(name="persistent-dir", required=false)
     private String persistentDirName=""; // A persistent working directory to be used instead of the temporary one (if specified in GRexConfig.xml)
     
+    @Attribute(name="output-flush", required=false)
+    private String outputFlush = "idle"; // When to flush output that is streamed to clients while
+                                // the job is running: "always" flushes after every block of data,
+                                // "idle" flushes only when we have caught up with the job's output
+    
+    @Attribute(name="compression", required=false)
+    private String compression = "gzip"; // How output files are compressed for clients that accept
+                                // it: "gzip", "fast" (gzip at the fastest level) or "none" (e.g.
+                                // if the outputs are already compressed)
+    
+    @Attribute(name="max-running-instances", required=false)
+    private int maxRunningInstances = 0; // The maximum number of instances of this service
+                                // that can run at once (zero means no limit).  Other
+                                // instances are queued (see InstanceScheduler)
+    
     // Note that we will disallow setting both allowed-users and allowed-groups
     
     @Attribute(name="allowed-users", required=false)
@@ -135,6 +150,42 @@ public class GridServiceConfigForServer extends GridServiceConfigForClient
         return options;
     }
     
+    /**
+     * @return true if output that is streamed to clients should be flushed
+     * after every block of data, false if it should only be flushed when
+     * there is no more data to send for the moment
+     */
+    public boolean isAlwaysFlushOutput()
+    {
+        return this.outputFlush.trim().equals("always");
+    }
+    
+    /**
+     * @return true if output files may be sent to clients in compressed form
+     */
+    public boolean isCompressionEnabled()
+    {
+        return !this.compression.trim().equals("none");
+    }
+    
+    /**
+     * @return true if output files should be compressed with the fastest
+     * (rather than the default) compression level
+     */
+    public boolean isFastCompression()
+    {
+        return this.compression.trim().equals("fast");
+    }
+    
+    /**
+     * @return the maximum number of instances of this service that can run
+     * at once, or zero if there is no limit
+     */
+    public int getMaxRunningInstances()
+    {
+        return this.maxRunningInstances;
+    }
+    
     /**
      * Checks that all the names are unique and that only zero or one Parameters
      * are marked greedy.  Also check that the security settings (allowed-users
@@ -146,6 +197,24 @@ public class GridServiceConfigForServer extends GridServiceConfigForClient
         // Check that the parameters have been set correctly
         super.validate();
         
+        if (!this.outputFlush.trim().equals("always") &&
+            !this.outputFlush.trim().equals("idle"))
+        {
+            throw new PersistenceException("output-flush must be \"always\" or \"idle\"");
+        }
+        
+        if (!this.compression.trim().equals("gzip") &&
+            !this.compression.trim().equals("fast") &&
+            !this.compression.trim().equals("none"))
+        {
+            throw new PersistenceException("compression must be \"gzip\", \"fast\" or \"none\"");
+        }
+        
+        if (this.maxRunningInstances < 0)
+        {
+            throw new PersistenceException("max-running-instances cannot be negative");
+        }
+        
         // Check that permissions have been set correctly (can't have both 
         // allowed-users and allowed-groups)
         if (!this.allowedUsersStr.trim().equals(""))
@@ -61,6 +61,17 @@ public class Group implements GrantedAuthority
      * Group that contains all users
      */
     public static final Group ALL_USERS = new Group(ALL_USERS_NAME);
+    /**
+     * The name of the group that contains all members of the admin group.
+     * Acegi only recognises roles whose names start with "ROLE_", so this is
+     * the name that is used in applicationContext.xml to restrict URLs to
+     * administrators.
+     */
+    private static final String ADMINS_NAME = "ROLE_ADMINS";
+    /**
+     * Group that contains all administrators
+     */
+    public static final Group ADMINS = new Group(ADMINS_NAME);
     
     @Attribute(name="name")
     private String name; // The unique name for the Group
@@ -113,10 +124,10 @@ public class Group implements GrantedAuthority
     @Validate
     public void validate() throws PersistenceException
     {
-        if (this.name.equals(ALL_USERS_NAME))
+        if (this.name.equals(ALL_USERS_NAME) || this.name.equals(ADMINS_NAME))
         {
             throw new PersistenceException("Can't create a group with the name " +
-                ALL_USERS_NAME);
+                this.name);
         }
     }
     
@@ -138,6 +138,9 @@ public class User implements UserDetails
         this.groups.add(group);
         if (group.isAdminGroup())
         {
+            // Administrators also get the ADMINS role, which Acegi security
+            // uses to protect the admin-only URLs
+            this.groups.add(Group.ADMINS);
             this.admin = true;
         }
     }
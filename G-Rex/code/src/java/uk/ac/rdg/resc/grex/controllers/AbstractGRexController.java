@@ -29,9 +29,13 @@
 package uk.ac.rdg.resc.grex.controllers;
 
 import java.io.File;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
+import org.springframework.web.servlet.mvc.multiaction.NoSuchRequestHandlingMethodException;
 import uk.ac.rdg.resc.grex.config.GRexConfig;
 import uk.ac.rdg.resc.grex.config.GridServiceConfigForServer;
 import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
@@ -39,7 +43,9 @@ import uk.ac.rdg.resc.grex.db.GRexServiceInstancesStore;
 import uk.ac.rdg.resc.grex.db.Job;
 import uk.ac.rdg.resc.grex.exceptions.GRexException;
 import uk.ac.rdg.resc.grex.exceptions.InstancesStoreException;
+import uk.ac.rdg.resc.grex.server.InstanceScheduler;
 import uk.ac.rdg.resc.grex.server.JobRunnerFactory;
+import uk.ac.rdg.resc.grex.server.Metrics;
 
 /**
  * Contains common methods and fields for all controllers in the G-Rex application
@@ -68,6 +74,43 @@ public abstract class AbstractGRexController extends MultiActionController
      */
     protected JobRunnerFactory jobRunnerFactory;
     
+    /**
+     * Decides when started instances are run. Injected by Spring.
+     */
+    protected InstanceScheduler scheduler;
+    
+    /**
+     * Handles the request by calling the method that the methodNameResolver
+     * chooses (as the superclass does), recording any failure against the
+     * name of the method.  The time taken is recorded by the
+     * RequestTimingInterceptor, so that it includes rendering the view.
+     */
+    protected ModelAndView handleRequestInternal(HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        String methodName;
+        try
+        {
+            methodName = this.getMethodNameResolver().getHandlerMethodName(request);
+        }
+        catch(NoSuchRequestHandlingMethodException nsrhme)
+        {
+            // Let the superclass deal with it
+            return super.handleRequestInternal(request, response);
+        }
+        try
+        {
+            return super.handleRequestInternal(request, response);
+        }
+        catch(Exception e)
+        {
+            Metrics.getMetrics().getCounter("grex_request_errors_total",
+                "Number of requests that failed with an exception",
+                "method", methodName).increment();
+            throw e;
+        }
+    }
+    
     /**
      * Finds the configuration information for the service being referred to in
      * the given request URI.
@@ -235,6 +278,15 @@ public abstract class AbstractGRexController extends MultiActionController
         this.jobRunnerFactory = factory;
     }
     
+    /**
+     * This will be called by the Spring framework to inject the object that
+     * decides when started instances are run
+     */
+    public void setScheduler(InstanceScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+    
     /**
      * @return the file extension for the given request URI.  For example, if the 
      * requestURI is "/foo/bar/baz.html" this method will return "html".  Returns
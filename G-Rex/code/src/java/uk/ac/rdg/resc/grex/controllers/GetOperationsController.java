@@ -34,9 +34,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
@@ -49,8 +54,16 @@ import org.springframework.web.servlet.ModelAndView;
 import uk.ac.rdg.resc.grex.config.GridServiceConfigForServer;
 import uk.ac.rdg.resc.grex.config.User;
 import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
+import uk.ac.rdg.resc.grex.db.InstanceSummary;
+import uk.ac.rdg.resc.grex.db.Job;
 import uk.ac.rdg.resc.grex.exceptions.GRexException;
+import uk.ac.rdg.resc.grex.exceptions.InstancesStoreException;
+import uk.ac.rdg.resc.grex.server.CompressingInputStream;
+import uk.ac.rdg.resc.grex.server.InstanceEvents;
+import uk.ac.rdg.resc.grex.server.JobRunner;
+import uk.ac.rdg.resc.grex.server.Metrics;
 import uk.ac.rdg.resc.grex.server.OutputFile;
+import uk.ac.rdg.resc.grex.server.OutputWatcher;
 
 // TODO: these instructions are out of date and do not belong here anymore!
 /**
@@ -63,6 +76,8 @@ import uk.ac.rdg.resc.grex.server.OutputFile;
  * <tr><td>/T-Rex/</td><td>Root of the server: perform a GET to list the services
  * that are visible to the client (might be different for each client depending
  * on authentication).</td><td><b>XML</b>, HTML</td></tr>
+ * <tr><td>/T-Rex/metrics.txt</td><td>Counters and timings of the internals
+ * of the server</td><td>Prometheus text</td></tr>
  * <tr><td>/T-Rex/myservice/</td><td>Root of a service: perform a GET to get
  * information about this service (description etc)</td><td><b>XML</b>, HTML</td></tr>
  * <tr><td>/T-Rex/myservice/clone</td><td>Cloning endpoint: POST a message to this
@@ -70,11 +85,15 @@ import uk.ac.rdg.resc.grex.server.OutputFile;
  * indicating success or otherwise of clone operation</td></tr>
  * <tr><td>/T-Rex/myservice/config.xml</td><td>Configuration of this service</td><td><b>XML</b></td></tr>
  * <tr><td>/T-Rex/myservice/instances</td><td>Instances of this service that
- * are visible to the user. Can be filtered (TODO) to show only running services,
- * failed services etc</td><td><b>XML</b>, HTML</td></tr>
+ * are visible to the user. Can be filtered by state and owner and paged through
+ * with the offset and max parameters</td><td><b>XML</b>, HTML</td></tr>
  * <tr><td>/T-Rex/myservices/instances/0034</td><td>A particular service instance.
  * Perform a GET to obtain information about this instance (TODO: comprising what?)</td>
  * <td><b>XML</b>, HTML</td></tr>
+ * <tr><td>/T-Rex/myservices/instances/0034/events</td><td>Changes to a service
+ * instance since the version given in the since parameter.  Waits (for up to
+ * the number of milliseconds in the wait parameter) until there is a change</td>
+ * <td><b>XML</b></td></tr>
  * <tr><td>/T-Rex/myservice/instances/0034/ctl</td><td>The control endpoint for
  * this service instance. Clients control the instance by POSTing messages to
  * start, stop and cleanup the service</td><td><b>XML</b> responses (simply
@@ -114,6 +133,45 @@ public class GetOperationsController extends AbstractGRexController
 {
     private static final Log log = LogFactory.getLog(GetOperationsController.class);
     
+    /**
+     * Size of the buffer used when sending output files to clients
+     */
+    private static final int DOWNLOAD_BUFFER_SIZE = 65536;
+    
+    /**
+     * Maximum time in milliseconds that we wait for an output file to grow
+     * before checking again whether output to the file has finished
+     */
+    private static final long MAX_OUTPUT_WAIT_MS = 2000;
+    
+    /**
+     * Default and maximum times in milliseconds that a client can wait for
+     * changes to an instance
+     */
+    private static final int DEFAULT_EVENTS_WAIT_MS = 30000;
+    private static final int MAX_EVENTS_WAIT_MS = 60000;
+    
+    /**
+     * Maximum number of filtered lists of instances that we keep in memory
+     */
+    private static final int MAX_CACHED_LISTINGS = 100;
+    
+    /**
+     * Counts the bytes of output files that are sent to clients
+     */
+    private static final Metrics.Counter BYTES_DOWNLOADED = Metrics.getMetrics()
+        .getCounter("grex_download_bytes_total",
+            "Number of bytes of output files sent to clients");
+    
+    /**
+     * Lists of instances that match the filters given in recent requests,
+     * in order of access (least recently used first), keyed by service name,
+     * user and filters.  Each list is valid for as long as the listing version
+     * of the service stays the same.
+     */
+    private final Map<String, CachedListing> listingCache =
+        new LinkedHashMap<String, CachedListing>(16, 0.75f, true);
+    
     /**
      * Shows the welcome page (in response to a request for welcome.html)
      */
@@ -147,8 +205,46 @@ public class GetOperationsController extends AbstractGRexController
     }
     
     /**
-     * Lists all the instances for the given service that the user has permissions
-     * to see
+     * Shows the counters and timings of the internals of the server, and the
+     * numbers of JobRunners and of queued and running instances, in the
+     * Prometheus text format (in response to a request for metrics.txt)
+     */
+    public ModelAndView showMetrics(HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        Metrics.getMetrics().writeTo(out);
+        Metrics.writeGauge(out, "grex_job_runners",
+            "Number of JobRunners held in memory", this.jobRunnerFactory.getNumRunners());
+        if (this.scheduler != null)
+        {
+            Metrics.writeGauge(out, "grex_instances_queued",
+                "Number of instances waiting to run", this.scheduler.getNumQueued());
+            Metrics.writeGauge(out, "grex_instances_running",
+                "Number of instances that have been run and have not finished",
+                this.scheduler.getNumRunning());
+            Metrics.writeGauge(out, "grex_instances_started",
+                "Number of instances that the scheduler has run", this.scheduler.getNumStarted());
+            Metrics.writeGauge(out, "grex_queue_wait_mean_seconds",
+                "Mean time that instances have spent in the queue",
+                this.scheduler.getMeanQueueWaitMs() / 1000.0);
+            Metrics.writeGauge(out, "grex_queue_wait_max_seconds",
+                "Longest time that an instance has spent in the queue",
+                this.scheduler.getMaxQueueWaitMs() / 1000.0);
+        }
+        out.flush();
+        return null;
+    }
+    
+    /**
+     * Lists the instances for the given service that the user has permissions
+     * to see.  The list can be filtered by giving the "state" and "owner"
+     * parameters and paged through by giving the "offset" (default 0) and
+     * "max" (default unlimited) parameters.  If the store of instances keeps
+     * track of changes the response has an ETag, and clients that give this in
+     * the If-None-Match header will get a 304 (Not Modified) response until an
+     * instance of the service changes.
      */
     public ModelAndView listInstancesForService(HttpServletRequest request,
         HttpServletResponse response) throws Exception
@@ -168,26 +264,139 @@ public class GetOperationsController extends AbstractGRexController
                 + gs.getName());
         }
         
-        // Get the list of service instance from the store, checking the
-        // permissions of each one
-        List<GRexServiceInstance> viewables = new ArrayList<GRexServiceInstance>();
-        for (GRexServiceInstance instance : this.instancesStore
-            .getServiceInstancesByServiceName(gs.getName()))
+        // Read the filters and the page of results that the user wants
+        Job.State state = null;
+        String stateStr = request.getParameter("state");
+        if (stateStr != null && !stateStr.trim().equals(""))
         {
-            if (instance.canBeReadBy(loggedInUser))
+            try
+            {
+                state = Job.State.valueOf(stateStr.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException iae)
             {
-                viewables.add(instance);
+                throw new GRexException("Unknown state: " + stateStr);
             }
         }
+        String owner = request.getParameter("owner");
+        if (owner != null && owner.trim().equals(""))
+        {
+            owner = null;
+        }
+        int offset = getIntParameter(request, "offset", 0);
+        int max = getIntParameter(request, "max", -1);
+        
+        // If the listing hasn't changed since the client last saw it we
+        // don't need to send it again.  Different users see different
+        // listings at the same URI so the user is part of the ETag.
+        String listingVersion = this.instancesStore.getListingVersion(gs.getName());
+        if (listingVersion != null)
+        {
+            String etag = "\"" + listingVersion + "-" +
+                Integer.toHexString(loggedInUser.getUsername().hashCode()) + "\"";
+            response.setHeader("ETag", etag);
+            response.setHeader("Cache-Control", "private, must-revalidate");
+            if (matchesEtag(request.getHeader("If-None-Match"), etag))
+            {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return null;
+            }
+        }
+        
+        List<InstanceSummary> matching = this.getMatchingInstances(gs,
+            loggedInUser, state, owner, listingVersion);
+        int total = matching.size();
+        int from = Math.min(offset, total);
+        int to = max < 0 ? total : from + Math.min(max, total - from);
         
         // Create the model map that will be passed to the JSPs
         Map<String, Object> modelMap = new HashMap<String, Object>();
-        modelMap.put("instances", viewables);
+        modelMap.put("instances", matching.subList(from, to));
         modelMap.put("serviceName", gs.getName());
+        modelMap.put("total", total);
+        modelMap.put("offset", from);
+        modelMap.put("max", max);
+        modelMap.put("state", state);
+        modelMap.put("owner", owner);
         return new ModelAndView("instancesForService_" +
             getFileExtension(request.getRequestURI()), modelMap);
     }
     
+    /**
+     * Gets summaries of the instances of the given service that the given
+     * user can read and that match the given state and owner (either of
+     * which may be null to match all instances).  The list is taken from
+     * the cache if it is still valid for the given listing version (which may
+     * be null, in which case nothing is cached).
+     * @return an unmodifiable list of summaries, in the order in which they
+     * were returned from the store
+     */
+    private List<InstanceSummary> getMatchingInstances(GridServiceConfigForServer gs,
+        User user, Job.State state, String owner, String listingVersion)
+        throws InstancesStoreException
+    {
+        String key = gs.getName() + "\n" + user.getUsername() + "\n" +
+            state + "\n" + owner;
+        if (listingVersion != null)
+        {
+            synchronized(this.listingCache)
+            {
+                CachedListing cached = this.listingCache.get(key);
+                if (cached != null && cached.listingVersion.equals(listingVersion))
+                {
+                    return cached.instances;
+                }
+            }
+        }
+        
+        // Get summaries of the service instances from the store, checking the
+        // permissions of each one
+        List<InstanceSummary> matching = new ArrayList<InstanceSummary>();
+        for (InstanceSummary instance : this.instancesStore
+            .getInstanceSummariesByServiceName(gs.getName()))
+        {
+            if ((state == null || instance.getState() == state) &&
+                (owner == null || owner.equals(instance.getOwner())) &&
+                instance.canBeReadBy(user))
+            {
+                matching.add(instance);
+            }
+        }
+        matching = Collections.unmodifiableList(matching);
+        
+        // If the listing changed while we were reading it the cached list
+        // will simply not match the next listing version
+        if (listingVersion != null)
+        {
+            synchronized(this.listingCache)
+            {
+                this.listingCache.put(key, new CachedListing(listingVersion, matching));
+                if (this.listingCache.size() > MAX_CACHED_LISTINGS)
+                {
+                    String eldest = this.listingCache.keySet().iterator().next();
+                    this.listingCache.remove(eldest);
+                }
+            }
+        }
+        return matching;
+    }
+    
+    /**
+     * A list of instances that match a set of filters, with the listing version
+     * for which it was created
+     */
+    private static final class CachedListing
+    {
+        private String listingVersion;
+        private List<InstanceSummary> instances;
+        
+        public CachedListing(String listingVersion, List<InstanceSummary> instances)
+        {
+            this.listingVersion = listingVersion;
+            this.instances = instances;
+        }
+    }
+    
     /**
      * Shows the configuration information for a particular service
      */
@@ -234,6 +443,44 @@ public class GetOperationsController extends AbstractGRexController
             getFileExtension(request.getRequestURI()), "instance", instance);
     }
     
+    /**
+     * Waits for changes to a specific service instance, then describes the
+     * changes since the version of the instance that the client gives in the
+     * "since" parameter (zero or absent if the client hasn't seen any version).
+     * If the instance doesn't change within the number of milliseconds given
+     * in the "wait" parameter the response describes no changes.  The client
+     * gives the version in the response in its next request.
+     */
+    public ModelAndView showInstanceEvents(HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        User loggedInUser = (User)SecurityContextHolder.getContext()
+            .getAuthentication().getPrincipal();
+        // The URL pattern is /G-Rex/serviceName/instances/instanceID/events
+        GRexServiceInstance instance = this.getServiceInstance(request.getRequestURI());
+        
+        if (!instance.canBeReadBy(loggedInUser))
+        {
+            throw new GRexException("User " + loggedInUser.getUsername() +
+                " does not have permission to view information for instance "
+                + instance.getId() + " of service " + instance.getServiceName());
+        }
+        long since = getLongParameter(request, "since", 0);
+        int waitMs = Math.min(getIntParameter(request, "wait", DEFAULT_EVENTS_WAIT_MS),
+            MAX_EVENTS_WAIT_MS);
+        
+        // The JobRunner holds the live copy of the instance
+        JobRunner runner = this.jobRunnerFactory.getRunnerForInstance(instance);
+        InstanceEvents.Changes changes =
+            InstanceEvents.getEvents().waitForChanges(runner, since, waitMs);
+        
+        response.setHeader("Cache-Control", "no-cache");
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("instance", runner.getServiceInstance());
+        model.put("changes", changes);
+        return new ModelAndView("instanceEvents_xml", model);
+    }
+    
     /**
      * Downloads an output file from this instance.  Writes the output directly
      * to the response's output stream.
@@ -272,34 +519,99 @@ public class GetOperationsController extends AbstractGRexController
             return;
         }
         
+        // The JobRunner holds the live copy of the instance, whose state
+        // is updated as the job runs, so we don't need to keep re-reading
+        // the instance from the database.  We ask the JobRunner for its copy
+        // every time we look because some JobRunners (e.g. the SGEJobRunner)
+        // replace their copy with a fresh one from the store.
+        JobRunner runner = this.jobRunnerFactory.getRunnerForInstance(instance);
+        
         // Set the content-length in the file header if this is not a stream, 
-        // if the instance has finished or if output to the file has finished
-        if (!opFile.isAppendOnly() || instance.isFinished() || opFile.isOutputFinished())
+        // if the instance has finished or if output to the file has finished.
+        // Only files like this (whose contents will not change) can be
+        // downloaded in parts using the Range header.
+        long position = 0; // The position in the file from which we'll read
+        long remaining = Long.MAX_VALUE; // The number of bytes we'll send
+        if (!opFile.isAppendOnly() || runner.getServiceInstance().isFinished()
+            || opFile.isOutputFinished())
         {
-            // Why won't setContentLength() accept a long integer?
-            response.setContentLength((int)opFile.getLengthBytes());
+            long length = opFile.getLengthBytes();
+            String etag = opFile.getEtag();
+            response.setHeader("ETag", etag);
+            response.setHeader("Accept-Ranges", "bytes");
+            // The check sum is always that of the whole, uncompressed file,
+            // so that clients can check the file once they have all of it.
+            // It is only known once the file will not change again.
+            Long checkSum = opFile.getCheckSum();
+            if (checkSum != null)
+            {
+                response.setHeader(OutputFile.CHECKSUM_HEADER, checkSum.toString());
+            }
+            long[] range = null;
+            // If the client gives an If-Range header we only honour the Range
+            // if the file has not changed since the client last saw it
+            String ifRange = request.getHeader("If-Range");
+            if (ifRange == null || ifRange.equals(etag))
+            {
+                range = parseRange(request.getHeader("Range"), length);
+            }
+            GridServiceConfigForServer gsConfig = instance.getGridServiceConfig();
+            if (range == null && gsConfig.isCompressionEnabled() &&
+                acceptsGzip(request.getHeader("Accept-Encoding")))
+            {
+                // We send the whole file compressed.  We don't know the length
+                // of the compressed data in advance so we don't set the
+                // Content-Length and the container will send the data chunked.
+                // The compressed data are a different entity from the
+                // uncompressed data so they get a different ETag.
+                response.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-gzip\"");
+                response.setHeader("Content-Encoding", "gzip");
+                response.setHeader("Vary", "Accept-Encoding");
+                sendCompressed(opFile.getFile(), gsConfig.isFastCompression(), response);
+                return;
+            }
+            if (range == null)
+            {
+                remaining = length;
+            }
+            else if (range[0] >= length || range[0] > range[1])
+            {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            else
+            {
+                long last = Math.min(range[1], length - 1);
+                position = range[0];
+                remaining = last - position + 1;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + position + "-" +
+                    last + "/" + length);
+            }
+            // setContentLength() won't accept a long integer
+            response.setHeader("Content-Length", Long.toString(remaining));
         }
         // TODO: set the MIME type correctly (how?)
         
         // Now output the file to the client.  This logic works for both
         // "live" streams and static files.
         log.debug("Started reading from " + opFile.getFile().getName());
-        InputStream in = null;
+        boolean alwaysFlush = instance.getGridServiceConfig().isAlwaysFlushOutput();
+        FileInputStream in = null;
         OutputStream out = null;
         try
         {
             in = new FileInputStream(opFile.getFile());
+            FileChannel chan = in.getChannel();
+            chan.position(position);
             out = response.getOutputStream();
-            byte[] buf = new byte[1024];
-            int len, maxlen;
+            ByteBuffer buf = ByteBuffer.allocate(DOWNLOAD_BUFFER_SIZE);
+            int len;
             boolean done = false;
             boolean isOutputFinished = false;
-            boolean reportedError=false;
             do // Loop until the file is finished and the file has been read completely
             {
-                // Make sure our view of the instance is up to date
-                instance = this.instancesStore.getServiceInstanceById(instance.getId());
-                //done = instance.isFinished();
                 
                 /*
                  * Check list of finished files
@@ -311,31 +623,46 @@ public class GetOperationsController extends AbstractGRexController
                 if (isOutputFinished ==true)
                     log.debug("Output to " + opFile.getFile().getName() + " has finished. Reading to end of file...");
                                 
-                done = ( isOutputFinished || instance.isFinished() );
+                done = ( isOutputFinished || runner.getServiceInstance().isFinished() );
                 
                 // Even if the file or the instance have finished we make sure we've read
-                // the entire file
-                while ((len = in.read(buf)) >= 0)
+                // the entire file (or the entire range that the client asked for)
+                buf.limit((int)Math.min(buf.capacity(), remaining));
+                while (remaining > 0 && (len = chan.read(buf)) > 0)
                 {
-                    out.write(buf, 0, len);
-                    out.flush();
+                    out.write(buf.array(), 0, len);
+                    BYTES_DOWNLOADED.add(len);
+                    position += len;
+                    remaining -= len;
+                    if (alwaysFlush)
+                    {
+                        out.flush();
+                    }
+                    buf.clear();
+                    buf.limit((int)Math.min(buf.capacity(), remaining));
                 }
                 
                 // We've now reached EOF, but if the instance is still running,
-                // we'll pause and carry on
+                // we'll send what we have and wait until the file grows or
+                // the job runner tells us that the instance has changed
                 if (!done)
                 {
-                    try { Thread.sleep(2000); } catch (InterruptedException ie) {}
+                    out.flush();
+                    try
+                    {
+                        OutputWatcher.getWatcher().waitForGrowth(opFile.getFile(),
+                            position, instance.getId(), MAX_OUTPUT_WAIT_MS);
+                    }
+                    catch (InterruptedException ie) {}
                 }
                 else {
                     log.debug("Finished reading " + opFile.getFile().getName());
                 }
             } while (!done);
             
-            /* Now delete the file.  Deletion should really be initiated by the client */
-            //log.debug("Deleting file " + opFile.getFile().getName());
-            if (!opFile.getFile().delete())
-                    log.error("Error deleting file " + opFile.getFile().getName());
+            // We don't delete the file here: the client might not have
+            // received all of it.  The client deletes the file when it
+            // has the whole file (see PostOperationsController.deleteOutputFile())
         }
         catch(FileNotFoundException fnfe)
         {
@@ -362,4 +689,226 @@ public class GetOperationsController extends AbstractGRexController
             }
         }
     }
+    
+    /**
+     * Sends the gzipped contents of the given (complete) file to the client.
+     * The compression is done in a separate thread so that it overlaps with
+     * the sending of the data.
+     */
+    private static void sendCompressed(File file, boolean fast, HttpServletResponse response)
+    {
+        log.debug("Sending compressed contents of " + file.getName());
+        InputStream in = null;
+        OutputStream out = null;
+        try
+        {
+            in = new CompressingInputStream(new FileInputStream(file), fast);
+            out = response.getOutputStream();
+            byte[] buf = new byte[DOWNLOAD_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0)
+            {
+                out.write(buf, 0, len);
+                BYTES_DOWNLOADED.add(len);
+            }
+            log.debug("Finished reading " + file.getName());
+        }
+        catch(FileNotFoundException fnfe)
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+        catch(IOException ioe)
+        {
+            // This is most likely to happen if the client disconnects unexpectedly
+            log.error("Error downloading file " + file.getName(), ioe);
+        }
+        finally
+        {
+            try
+            {
+                if (in != null) in.close();
+                if (out != null) out.close();
+            }
+            catch (IOException ioe)
+            {
+                // Unlikely to happen and we don't really care anyway
+            }
+        }
+    }
+    
+    /**
+     * @return true if the given value of an HTTP If-None-Match header contains
+     * the given entity tag (or is "*").  Weak tags are compared as if they
+     * were strong.
+     */
+    private static boolean matchesEtag(String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null)
+        {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(","))
+        {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+            {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the value of the given request parameter as a non-negative integer
+     * @return the value of the parameter, or the given default value if the
+     * parameter was not given
+     * @throws GRexException if the parameter is not a non-negative integer
+     */
+    private static int getIntParameter(HttpServletRequest request, String name,
+        int defaultValue) throws GRexException
+    {
+        String value = request.getParameter(name);
+        if (value == null || value.trim().equals(""))
+        {
+            return defaultValue;
+        }
+        try
+        {
+            int i = Integer.parseInt(value.trim());
+            if (i >= 0)
+            {
+                return i;
+            }
+        }
+        catch (NumberFormatException nfe)
+        {
+            // Fall through to the exception below
+        }
+        throw new GRexException("Parameter " + name +
+            " must be a non-negative integer");
+    }
+    
+    /**
+     * Gets the value of the given request parameter as a non-negative long
+     * integer
+     * @return the value of the parameter, or the given default value if the
+     * parameter was not given
+     * @throws GRexException if the parameter is not a non-negative integer
+     */
+    private static long getLongParameter(HttpServletRequest request, String name,
+        long defaultValue) throws GRexException
+    {
+        String value = request.getParameter(name);
+        if (value == null || value.trim().equals(""))
+        {
+            return defaultValue;
+        }
+        try
+        {
+            long l = Long.parseLong(value.trim());
+            if (l >= 0)
+            {
+                return l;
+            }
+        }
+        catch (NumberFormatException nfe)
+        {
+            // Fall through to the exception below
+        }
+        throw new GRexException("Parameter " + name +
+            " must be a non-negative integer");
+    }
+    
+    /**
+     * @return true if the given value of an HTTP Accept-Encoding header shows
+     * that the client will accept gzipped data (i.e. gzip is listed and its
+     * quality value is not zero)
+     */
+    private static boolean acceptsGzip(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+        {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(","))
+        {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip"))
+            {
+                for (int i = 1; i < parts.length; i++)
+                {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q="))
+                    {
+                        try
+                        {
+                            return Double.parseDouble(param.substring(2).trim()) > 0.0;
+                        }
+                        catch(NumberFormatException nfe)
+                        {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Parses the value of an HTTP Range header.  We only support a single
+     * range of bytes ("bytes=first-last", "bytes=first-" or "bytes=-suffixLength").
+     * @param rangeHeader The value of the Range header (may be null)
+     * @param length The length of the file in bytes
+     * @return an array containing the positions of the first and last bytes
+     * requested (the last position may be beyond the end of the file), or
+     * null if the whole file should be sent (i.e. if there is no Range header,
+     * or we can't understand it, which is allowed by the HTTP spec)
+     */
+    private static long[] parseRange(String rangeHeader, long length)
+    {
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=") ||
+            rangeHeader.indexOf(',') >= 0)
+        {
+            return null;
+        }
+        String spec = rangeHeader.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+        {
+            return null;
+        }
+        try
+        {
+            String firstStr = spec.substring(0, dash).trim();
+            String lastStr = spec.substring(dash + 1).trim();
+            if (firstStr.equals(""))
+            {
+                // This is a suffix range: we send the last N bytes
+                long suffixLength = Long.parseLong(lastStr);
+                if (suffixLength <= 0)
+                {
+                    return null;
+                }
+                return new long[]{Math.max(0, length - suffixLength), length - 1};
+            }
+            long first = Long.parseLong(firstStr);
+            long last = lastStr.equals("") ? Long.MAX_VALUE : Long.parseLong(lastStr);
+            if (first < 0 || last < first)
+            {
+                return null;
+            }
+            return new long[]{first, last};
+        }
+        catch(NumberFormatException nfe)
+        {
+            return null;
+        }
+    }
 }
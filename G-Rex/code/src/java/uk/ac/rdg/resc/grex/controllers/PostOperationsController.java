@@ -29,10 +29,13 @@
 package uk.ac.rdg.resc.grex.controllers;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.acegisecurity.context.SecurityContextHolder;
@@ -51,7 +54,10 @@ import uk.ac.rdg.resc.grex.db.Job;
 import uk.ac.rdg.resc.grex.exceptions.GRexException;
 import uk.ac.rdg.resc.grex.exceptions.InstanceNotReadyException;
 import uk.ac.rdg.resc.grex.server.AbstractJobRunner;
+import uk.ac.rdg.resc.grex.server.CompressingInputStream;
 import uk.ac.rdg.resc.grex.server.JobRunner;
+import uk.ac.rdg.resc.grex.server.Metrics;
+import uk.ac.rdg.resc.grex.server.OutputFile;
 
 /**
  * Controller that handles all the POST operations (i.e. requests for information
@@ -72,6 +78,34 @@ public class PostOperationsController extends AbstractGRexController
      */
     private static final String NUMSUBJOBS_PARAMETER_NAME = "numSubJobs";
     
+    /**
+     * Size of the buffer used to copy uploaded data to files
+     */
+    private static final int UPLOAD_BUFFER_SIZE = 262144;
+    
+    /**
+     * Counts the bytes of input files and standard input received from clients
+     */
+    private static final Metrics.Counter BYTES_UPLOADED = Metrics.getMetrics()
+        .getCounter("grex_upload_bytes_total",
+            "Number of bytes of input files and standard input received from clients");
+    
+    /**
+     * Uploaded files whose names start with this prefix, followed by the id
+     * of a sub-job and a slash (e.g. "subjob/3/input.dat") are saved in the
+     * working directory of that sub-job
+     */
+    public static final String SUBJOB_FILE_PREFIX = "subjob/";
+    
+    /**
+     * Uploaded files whose names start with this prefix (e.g.
+     * "subjobs/input.dat") are saved once in the working directory of the
+     * instance and linked into the working directory of every sub-job.  The
+     * standard input is copied rather than linked, because it is appended to
+     * by later uploads and each sub-job must keep its own copy.
+     */
+    public static final String ALL_SUBJOBS_FILE_PREFIX = "subjobs/";
+    
     /**
      * Creates a new instance of a particular service
      */
@@ -144,7 +178,13 @@ public class PostOperationsController extends AbstractGRexController
     /**
      * Sets up a service instance by setting parameter values, creating sub-jobs,
      * uploading input files, etc.  This method can be called many times: each
-     * invocation will overwrite any existing data.
+     * invocation will overwrite any existing data.  Input files are saved in
+     * the working directory of the instance, unless their names show that they
+     * belong in the working directory of a particular sub-job or in those of
+     * all the sub-jobs (see SUBJOB_FILE_PREFIX and ALL_SUBJOBS_FILE_PREFIX).
+     * The sub-jobs must have been created (by setting the numSubJobs parameter
+     * earlier in the same request or in a previous request) before such
+     * files are uploaded.
      */
     public ModelAndView setupServiceInstance(HttpServletRequest request,
         HttpServletResponse response) throws Exception
@@ -238,11 +278,43 @@ public class PostOperationsController extends AbstractGRexController
                 // standard input and the job is interactive
                 
                 log.debug("Detected upload of file called " + name);
+                // Work out which working directory the file belongs in
+                String wd = instance.getWorkingDirectory();
+                boolean linkToSubJobs = false;
+                if (name.startsWith(ALL_SUBJOBS_FILE_PREFIX))
+                {
+                    name = name.substring(ALL_SUBJOBS_FILE_PREFIX.length());
+                    linkToSubJobs = true;
+                }
+                else if (name.startsWith(SUBJOB_FILE_PREFIX))
+                {
+                    String subJobPath = name.substring(SUBJOB_FILE_PREFIX.length());
+                    int slash = subJobPath.indexOf('/');
+                    Job subJob = null;
+                    try
+                    {
+                        if (slash > 0)
+                        {
+                            subJob = instance.getSubJob(Integer.parseInt(subJobPath.substring(0, slash)));
+                        }
+                    }
+                    catch(NumberFormatException nfe)
+                    {
+                        // subJob is still null
+                    }
+                    if (subJob == null)
+                    {
+                        throw new GRexException("Cannot upload " + name + ": no such sub-job"
+                            + " (sub-jobs must be created before their files are uploaded)");
+                    }
+                    wd = subJob.getWorkingDirectory();
+                    name = subJobPath.substring(slash + 1);
+                }
                 // Make sure we only save files in the working directory itself
                 // (otherwise a client could set the name to "..\..\123\wd\foo.dat"
                 // and overwrite data in another instance)
-                File targetFile = new File(instance.getWorkingDirectory(), name);
-                if (!isChild(instance.getWorkingDirectory(), targetFile))
+                File targetFile = new File(wd, name);
+                if (!isChild(wd, targetFile))
                 {
                     log.error("Not allowed to write a file to " + targetFile.getCanonicalPath());
                     throw new GRexException("Not allowed to write a file that" +
@@ -258,18 +330,50 @@ public class PostOperationsController extends AbstractGRexController
                 }
                 // Copy the input stream to the target file
                 log.debug("Saving file " + name + " to " + targetFile.getPath());
+                // The client may have compressed the file for transfer
+                if (CompressingInputStream.GZIP_CONTENT_TYPE.equals(item.getContentType()))
+                {
+                    log.debug("Decompressing upload of " + name);
+                    stream = new GZIPInputStream(stream);
+                }
                 // TODO: monitor progress somehow?
                 // Append to the existing file if this is the standard input stream
-                OutputStream fout = new FileOutputStream(targetFile,
-                    name.equals(AbstractJobRunner.STDIN));
-                byte[] buf = new byte[1024];
-                int len;
-                while ((len = stream.read(buf)) > 0)
+                try
+                {
+                    copyToFile(stream, targetFile, name.equals(AbstractJobRunner.STDIN));
+                }
+                finally
+                {
+                    stream.close();
+                }
+                
+                if (linkToSubJobs)
                 {
-                    fout.write(buf, 0, len);
+                    if (instance.getNumSubJobs() == 0)
+                    {
+                        throw new GRexException("Cannot upload " + name + " to all"
+                            + " sub-jobs: sub-jobs must be created before their files are uploaded");
+                    }
+                    for (Job subJob : instance.getSubJobs())
+                    {
+                        File link = new File(subJob.getWorkingDirectory(), name);
+                        if (!isChild(subJob.getWorkingDirectory(), link))
+                        {
+                            throw new GRexException("Not allowed to write a file that" +
+                                " is not in the working directory of a sub-job");
+                        }
+                        if (name.equals(AbstractJobRunner.STDIN))
+                        {
+                            copyFile(targetFile, link);
+                        }
+                        else
+                        {
+                            linkFile(targetFile, link);
+                        }
+                    }
+                    log.debug("Linked or copied " + targetFile.getPath() + " into the working directories of "
+                        + instance.getNumSubJobs() + " sub-jobs");
                 }
-                stream.close();
-                fout.close();
             }
         }
 
@@ -281,20 +385,227 @@ public class PostOperationsController extends AbstractGRexController
         return new ModelAndView("instance_xml", "instance", instance);
     }
     
+    /**
+     * Appends the body of the request to the standard input of a service
+     * instance.  Unlike setupServiceInstance() this does not expect a multipart
+     * request: the whole body of the request (which will usually be sent with
+     * chunked transfer encoding, since the client won't know how long it is)
+     * is the data.  This allows a client to stream its standard input to the
+     * server in a single request rather than uploading it in many small pieces.
+     * The data are written to the standard input file in the working directory
+     * of the instance, so this can only be done before the instance is started
+     * (we don't support interactive jobs yet).
+     */
+    public ModelAndView uploadStdin(HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        User loggedInUser = (User)SecurityContextHolder.getContext()
+            .getAuthentication().getPrincipal();
+        
+        // Work out which service instance we're interested in.  The URL
+        // pattern is /G-Rex/serviceName/instances/instanceId/stdin
+        GRexServiceInstance instance = this.getServiceInstance(request.getRequestURI());
+        
+        if (!instance.canBeModifiedBy(loggedInUser))
+        {
+            throw new GRexException("User " + loggedInUser.getUsername() +
+                " does not have permission to modify instance "
+                + instance.getId() + " of service " + instance.getServiceName());
+        }
+        if (instance.getState() != Job.State.CREATED)
+        {
+            throw new GRexException("Cannot upload standard input to an" +
+                " instance in state " + instance.getState());
+        }
+        
+        File stdinFile = new File(instance.getWorkingDirectory(), AbstractJobRunner.STDIN);
+        log.debug("Streaming standard input to " + stdinFile.getPath());
+        long totalSize = copyToFile(request.getInputStream(), stdinFile, true);
+        log.debug("Appended " + totalSize + " bytes to standard input of instance "
+            + instance.getId());
+        
+        return new ModelAndView("instance_xml", "instance", instance);
+    }
+    
+    /**
+     * Deletes an output file from the working directory of a service instance.
+     * Clients call this when they have successfully downloaded the whole of
+     * an output file: the server does not delete files itself after a download
+     * because it can't tell whether the client received all the data.  The
+     * URL pattern is /G-Rex/serviceName/instances/instanceId/delete/path/to/file
+     */
+    public ModelAndView deleteOutputFile(HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        User loggedInUser = (User)SecurityContextHolder.getContext()
+            .getAuthentication().getPrincipal();
+        GRexServiceInstance instance = this.getServiceInstance(request.getRequestURI());
+        
+        if (!instance.canBeModifiedBy(loggedInUser))
+        {
+            throw new GRexException("User " + loggedInUser.getUsername() +
+                " does not have permission to modify instance "
+                + instance.getId() + " of service " + instance.getServiceName());
+        }
+        
+        // We only allow output files to be deleted
+        String filePath = this.getFilePath(request.getRequestURI());
+        OutputFile opFile = instance.getMasterJob().getOutputFile(filePath);
+        if (opFile == null)
+        {
+            throw new GRexException(filePath + " is not an output file of instance "
+                + instance.getId());
+        }
+        if (opFile.getFile().exists() && !opFile.getFile().delete())
+        {
+            log.error("Error deleting file " + opFile.getFile().getPath());
+            throw new GRexException("Could not delete output file " + filePath);
+        }
+        log.debug("Deleted output file " + opFile.getFile().getPath());
+        
+        return new ModelAndView("instance_xml", "instance", instance);
+    }
+    
+    /**
+     * Copies the given stream to the given file through the file's channel,
+     * using a large buffer.  Does not close the input stream.
+     * @param append true if the data are to be appended to the file, false if
+     * the file is to be replaced
+     * @return the number of bytes copied
+     */
+    private static long copyToFile(InputStream in, File file, boolean append)
+        throws IOException
+    {
+        // The file might be a link to a file that is shared with other
+        // sub-jobs: we must replace the link, not write through it.  Files
+        // that are appended to (i.e. the standard input) are never linked.
+        if (!append && file.exists() && !file.delete())
+        {
+            throw new IOException("Could not replace " + file.getPath());
+        }
+        FileChannel out = new FileOutputStream(file, append).getChannel();
+        long total = 0;
+        try
+        {
+            byte[] buf = new byte[UPLOAD_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0)
+            {
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+                while (bb.hasRemaining())
+                {
+                    out.write(bb);
+                }
+                total += len;
+            }
+        }
+        finally
+        {
+            out.close();
+            BYTES_UPLOADED.add(total);
+        }
+        return total;
+    }
+    
+    /**
+     * Makes the given file appear at the location of the given link, replacing
+     * anything that is already there.  We make a hard link if we can, then
+     * try a symbolic link (e.g. if the link is on a different filesystem),
+     * and copy the file as a last resort.
+     */
+    private static void linkFile(File file, File link) throws IOException
+    {
+        if (!link.getParentFile().exists() && !link.getParentFile().mkdirs())
+        {
+            throw new IOException("Could not create directory for " + link.getPath());
+        }
+        String source = file.getAbsolutePath();
+        String target = link.getAbsolutePath();
+        if (exec(new String[]{"ln", "-f", source, target}) ||
+            exec(new String[]{"ln", "-sf", source, target}))
+        {
+            return;
+        }
+        log.debug("Could not link " + target + " to " + source + ": copying");
+        copyFile(file, link);
+    }
+    
+    /**
+     * Copies the given file to the given destination, replacing anything that
+     * is already there.  The destination is deleted first so that we never
+     * write through a link to a file that is shared with other sub-jobs.
+     */
+    private static void copyFile(File file, File dest) throws IOException
+    {
+        if (!dest.getParentFile().exists() && !dest.getParentFile().mkdirs())
+        {
+            throw new IOException("Could not create directory for " + dest.getPath());
+        }
+        if (dest.exists() && !dest.delete())
+        {
+            throw new IOException("Could not replace " + dest.getPath());
+        }
+        FileChannel in = new FileInputStream(file).getChannel();
+        FileChannel out = null;
+        try
+        {
+            out = new FileOutputStream(dest).getChannel();
+            long position = 0;
+            long size = in.size();
+            while (position < size)
+            {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+        finally
+        {
+            in.close();
+            if (out != null) out.close();
+        }
+    }
+    
+    /**
+     * Runs the given command, which must not produce much output
+     * @return true if the command ran and succeeded
+     */
+    private static boolean exec(String[] cmdArray)
+    {
+        try
+        {
+            Process proc = Runtime.getRuntime().exec(cmdArray);
+            proc.getOutputStream().close();
+            proc.getInputStream().close();
+            proc.getErrorStream().close();
+            return proc.waitFor() == 0;
+        }
+        catch(IOException ioe)
+        {
+            return false;
+        }
+        catch(InterruptedException ie)
+        {
+            return false;
+        }
+    }
+    
     /**
      * Checks to see if one file is contained within a given directory
      * (as a direct child or in a sub-directory), by comparing their canonical
-     * paths.
+     * paths.  Only the directory containing the child is made canonical, not
+     * the child itself: the child might be a link to a file in another
+     * working directory (see linkFile()), which we are allowed to replace.
      * @throws IOException (might be thrown when calculating the canonical path)
      */
     private static boolean isChild(String parent, File child)
         throws IOException
     {
         File parentFile = new File(parent);
-        if (parentFile.isDirectory())
+        String name = child.getName();
+        if (parentFile.isDirectory() && !name.equals("..") && !name.equals("."))
         {
-            String parentPath = parentFile.getCanonicalPath();
-            String childPath = child.getCanonicalPath();
+            String parentPath = parentFile.getCanonicalPath() + File.separator;
+            String childPath = new File(child.getParentFile().getCanonicalFile(),
+                name).getPath();
             return childPath.startsWith(parentPath);
         }
         return false;
@@ -359,7 +670,9 @@ public class PostOperationsController extends AbstractGRexController
             //    3) In future we might support interactive jobs and therefore
             //       the standard input file might not exist.
             
-            jobRunner.start();
+            // The scheduler runs the instance now or queues it until the
+            // limits on the number of running instances allow it to run
+            this.scheduler.start(jobRunner);
         }
         else if (request.getParameter("operation").trim().equals("abort"))
         {
@@ -373,7 +686,7 @@ public class PostOperationsController extends AbstractGRexController
             else if (instance.getState() != Job.State.ABORTED)
             {
                 // We ignore the request if the job has already been aborted
-                jobRunner.abort();
+                this.scheduler.abort(jobRunner);
             }
         }
         // TODO: add a method for cleanup
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.controllers;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
+import org.springframework.web.servlet.mvc.multiaction.NoSuchRequestHandlingMethodException;
+import uk.ac.rdg.resc.grex.server.Metrics;
+
+/**
+ * Records the time taken to handle each request against the name of the
+ * controller method that handles it.  The time runs from before the controller
+ * is called until after the view (i.e. the JSP) has been rendered, so it
+ * includes the time taken to write the response.  Note that the time taken by
+ * a download includes the time that the file spends growing.  Registered with
+ * the handler mapping in G-Rex-servlet.xml.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class RequestTimingInterceptor extends HandlerInterceptorAdapter
+{
+    // Name of the request attribute that holds the time at which we started
+    // handling the request
+    private static final String START_TIME_ATTRIBUTE =
+        RequestTimingInterceptor.class.getName() + ".startTime";
+    
+    /**
+     * Records the time at which we start handling the request
+     */
+    public boolean preHandle(HttpServletRequest request,
+        HttpServletResponse response, Object handler) throws Exception
+    {
+        request.setAttribute(START_TIME_ATTRIBUTE, System.nanoTime());
+        return true;
+    }
+    
+    /**
+     * Records the time taken to handle the request, including rendering the
+     * view.  Called whether or not the request succeeded.
+     */
+    public void afterCompletion(HttpServletRequest request,
+        HttpServletResponse response, Object handler, Exception ex)
+        throws Exception
+    {
+        Long start = (Long)request.getAttribute(START_TIME_ATTRIBUTE);
+        if (start == null || !(handler instanceof MultiActionController))
+        {
+            return;
+        }
+        String methodName;
+        try
+        {
+            methodName = ((MultiActionController)handler).getMethodNameResolver()
+                .getHandlerMethodName(request);
+        }
+        catch(NoSuchRequestHandlingMethodException nsrhme)
+        {
+            // Not a request that a controller method handles
+            return;
+        }
+        Metrics.getMetrics().getTimer("grex_request_duration_seconds",
+            "Time taken to handle requests", "method", methodName)
+            .recordSince(start);
+    }
+}
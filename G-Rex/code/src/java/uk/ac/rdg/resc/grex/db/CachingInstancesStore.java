@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.rdg.resc.grex.exceptions.InstancesStoreException;
+
+/**
+ * A store of service instances that keeps recently-used instances in memory,
+ * in front of another store (which holds the instances persistently).  Reads
+ * of cached instances do not touch the underlying store.  Each caller gets its
+ * own copy of the instance, just as with a database, so callers can modify
+ * the instances they read without affecting anyone else.
+ *
+ * The cache holds at most {@link #setMaxCachedInstances maxCachedInstances}
+ * instances (the least recently used are discarded).  When an instance is
+ * updated through this store, the cached copy is replaced by the new version.
+ * Changes to single sub-jobs are not written separately: the underlying store
+ * only writes the sub-jobs whose modified flags are set.
+ * A version counter is used to make sure that an instance that was read from
+ * the underlying store while it was being updated is not cached.
+ *
+ * The store also keeps a summary of every instance of each service whose
+ * instances have been listed, so that listing instances does not require
+ * reading the instances themselves.  A counter of changes is kept for each
+ * service so that clients can tell whether a listing has changed.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class CachingInstancesStore implements GRexServiceInstancesStore
+{
+    private static final Log log = LogFactory.getLog(CachingInstancesStore.class);
+    
+    private GRexServiceInstancesStore instancesStore; // The underlying store
+    
+    private int maxCachedInstances = 500;
+    
+    // Cached instances in order of access (least recently used first)
+    private Map<Integer, GRexServiceInstance> cache =
+        new LinkedHashMap<Integer, GRexServiceInstance>(16, 0.75f, true);
+    
+    // Summaries of instances, keyed by service name then instance id
+    private Map<String, Map<Integer, InstanceSummary>> summaries =
+        new HashMap<String, Map<Integer, InstanceSummary>>();
+    
+    // Incremented on every update, so that we can tell whether an instance
+    // might have changed while we were reading it from the underlying store
+    private long version = 0;
+    
+    // Numbers of changes to the instances of each service, keyed by service name
+    private Map<String, Long> listingVersions = new HashMap<String, Long>();
+    
+    // Distinguishes the listing versions from those issued before a restart
+    private final long startTime = System.currentTimeMillis();
+    
+    public GRexServiceInstance getServiceInstanceById(int instanceID)
+        throws InstancesStoreException
+    {
+        long versionBeforeRead;
+        synchronized(this)
+        {
+            GRexServiceInstance cached = this.cache.get(instanceID);
+            if (cached != null)
+            {
+                return cached.copy();
+            }
+            versionBeforeRead = this.version;
+        }
+        
+        GRexServiceInstance instance = this.instancesStore.getServiceInstanceById(instanceID);
+        if (instance != null)
+        {
+            synchronized(this)
+            {
+                if (this.version == versionBeforeRead)
+                {
+                    this.cacheInstance(instance.copy());
+                }
+            }
+        }
+        return instance;
+    }
+    
+    public GRexServiceInstance getServiceInstanceById(int instanceID, String serviceName)
+        throws InstancesStoreException
+    {
+        GRexServiceInstance instance = this.getServiceInstanceById(instanceID);
+        if (instance != null && instance.getServiceName().equals(serviceName))
+        {
+            return instance;
+        }
+        return null;
+    }
+    
+    /**
+     * Gets all the service instances that belong to the given service from the
+     * underlying store (these are not cached).
+     */
+    public List<GRexServiceInstance> getServiceInstancesByServiceName(String serviceName)
+        throws InstancesStoreException
+    {
+        return this.instancesStore.getServiceInstancesByServiceName(serviceName);
+    }
+    
+    /**
+     * Gets summaries of all the service instances that belong to the given
+     * service.  The summaries are read from the underlying store the first
+     * time this is called for each service, and kept up to date after that.
+     */
+    public synchronized List<InstanceSummary> getInstanceSummariesByServiceName(String serviceName)
+        throws InstancesStoreException
+    {
+        // We hold the lock while reading from the underlying store so that
+        // no updates can be missed.  This only happens once per service.
+        Map<Integer, InstanceSummary> serviceSummaries = this.summaries.get(serviceName);
+        if (serviceSummaries == null)
+        {
+            serviceSummaries = new LinkedHashMap<Integer, InstanceSummary>();
+            for (InstanceSummary summary :
+                this.instancesStore.getInstanceSummariesByServiceName(serviceName))
+            {
+                serviceSummaries.put(summary.getId(), summary);
+            }
+            this.summaries.put(serviceName, serviceSummaries);
+            log.debug("Read summaries of " + serviceSummaries.size() +
+                " instances of " + serviceName);
+        }
+        return new ArrayList<InstanceSummary>(serviceSummaries.values());
+    }
+    
+    /**
+     * Gets a tag made from the time at which this store was created and the
+     * number of changes that have been made to instances of the given service
+     * since then.
+     */
+    public synchronized String getListingVersion(String serviceName)
+    {
+        Long listingVersion = this.listingVersions.get(serviceName);
+        return Long.toString(this.startTime, 36) + "." +
+            (listingVersion == null ? 0 : listingVersion.longValue());
+    }
+    
+    public int addServiceInstance(GRexServiceInstance instance,
+        File parentWorkingDirectory) throws InstancesStoreException
+    {
+        int id = this.instancesStore.addServiceInstance(instance, parentWorkingDirectory);
+        synchronized(this)
+        {
+            this.version++;
+            this.updateSummary(instance);
+        }
+        return id;
+    }
+    
+    public void updateServiceInstance(GRexServiceInstance instance)
+        throws InstancesStoreException
+    {
+        try
+        {
+            this.instancesStore.updateServiceInstance(instance);
+        }
+        finally
+        {
+            // We don't cache this copy: the update might have failed, or
+            // another thread might have updated the instance since
+            synchronized(this)
+            {
+                this.version++;
+                this.cache.remove(instance.getId());
+                this.updateSummary(instance);
+            }
+        }
+    }
+    
+    /**
+     * Queues the update in the underlying store.  The instances that are
+     * queued are the live copies held by the JobRunners, so the cached copy
+     * is replaced with a copy of the instance: readers see the change straight
+     * away without waiting for it to be written.
+     */
+    public void queueUpdate(GRexServiceInstance instance)
+    {
+        synchronized(this)
+        {
+            this.version++;
+            this.cacheInstance(instance.copy());
+            this.updateSummary(instance);
+        }
+        this.instancesStore.queueUpdate(instance);
+    }
+    
+    /**
+     * Adds the given instance to the cache, discarding the least recently
+     * used instance if the cache is full.  Must be called with the lock held.
+     */
+    private void cacheInstance(GRexServiceInstance instance)
+    {
+        this.cache.put(instance.getId(), instance);
+        if (this.cache.size() > this.maxCachedInstances)
+        {
+            Integer eldest = this.cache.keySet().iterator().next();
+            this.cache.remove(eldest);
+        }
+    }
+    
+    /**
+     * Replaces the summary of the given instance, if we are keeping summaries
+     * for its service, and records that the listing of instances of the
+     * service has changed.  Must be called with the lock held.
+     */
+    private void updateSummary(GRexServiceInstance instance)
+    {
+        Long listingVersion = this.listingVersions.get(instance.getServiceName());
+        this.listingVersions.put(instance.getServiceName(),
+            listingVersion == null ? 1 : listingVersion.longValue() + 1);
+        Map<Integer, InstanceSummary> serviceSummaries =
+            this.summaries.get(instance.getServiceName());
+        if (serviceSummaries != null)
+        {
+            serviceSummaries.put(instance.getId(), new InstanceSummary(instance));
+        }
+    }
+
+    /**
+     * This will be used by the Spring framework to inject the underlying store
+     */
+    public void setInstancesStore(GRexServiceInstancesStore instancesStore)
+    {
+        this.instancesStore = instancesStore;
+    }
+
+    /**
+     * Sets the maximum number of instances that will be kept in memory
+     * (default 500)
+     */
+    public void setMaxCachedInstances(int maxCachedInstances)
+    {
+        this.maxCachedInstances = maxCachedInstances;
+    }
+}
@@ -102,7 +102,18 @@ public class GRexServiceInstance
     private Job masterJob = new Job(this);
     
     /**
-     * The sub-jobs (if any) that belong to this instance
+     * The sub-jobs (if any) that belong to this instance.  These are stored
+     * separately from the instance in the database (see SubJobRecord) so that
+     * a change to one sub-job does not mean rewriting the whole instance.
+     * InstancesStoreBerkeley attaches them to the instance when it is read.
+     */
+    private transient List<Job> subJobList = new ArrayList<Job>();
+    
+    /**
+     * Sub-jobs used to be stored as part of the instance.  This field is only
+     * kept so that old databases can still be read: InstancesStoreBerkeley
+     * moves these sub-jobs into their own records when the database is opened,
+     * so this list is always empty otherwise.
      */
     private List<Job> subJobs = new ArrayList<Job>();
     
@@ -251,22 +262,35 @@ public class GRexServiceInstance
      * @return true if the given user cen read information from this instance
      */
     public boolean canBeReadBy(User user)
+    {
+        return canBeReadBy(user, this.owner, this.group, this.ownerPermissions,
+            this.groupPermissions, this.otherPermissions);
+    }
+    
+    /**
+     * @return true if the given user can read information from an instance
+     * with the given owner, group and permissions (this is shared with
+     * InstanceSummary)
+     */
+    static boolean canBeReadBy(User user, String owner, String group,
+        Permissions ownerPermissions, Permissions groupPermissions,
+        Permissions otherPermissions)
     {
         if (user.isAdmin())
         {
             return true;
         }
-        else if (this.owner.equals(user.getUsername()) &&
-            this.ownerPermissions != Permissions.NONE)
+        else if (owner.equals(user.getUsername()) &&
+            ownerPermissions != Permissions.NONE)
         {
             return true;
         }
-        else if (user.isMemberOf(this.group) &&
-            this.groupPermissions != Permissions.NONE)
+        else if (user.isMemberOf(group) &&
+            groupPermissions != Permissions.NONE)
         {
             return true;
         }
-        else if (this.otherPermissions != Permissions.NONE)
+        else if (otherPermissions != Permissions.NONE)
         {
             return true;
         }
@@ -418,6 +442,15 @@ public class GRexServiceInstance
      * an empty list if there are no sub-jobs (does not return null).
      */
     public List<Job> getSubJobs()
+    {
+        return this.subJobList;
+    }
+    
+    /**
+     * @return the sub-jobs that were stored as part of this instance by old
+     * versions of G-Rex (see InstancesStoreBerkeley.migrateSubJobs())
+     */
+    List<Job> getLegacySubJobs()
     {
         return this.subJobs;
     }
@@ -430,9 +463,9 @@ public class GRexServiceInstance
     {
         try
         {
-            return this.subJobs.get(subJobId);
+            return this.subJobList.get(subJobId);
         }
-        catch(ArrayIndexOutOfBoundsException aioobe)
+        catch(IndexOutOfBoundsException ioobe)
         {
             return null;
         }
@@ -440,6 +473,68 @@ public class GRexServiceInstance
 
     public int getNumSubJobs()
     {
-        return this.subJobs.size();
+        return this.subJobList.size();
+    }
+    
+    /**
+     * @return the number of sub-jobs of this instance that are running
+     */
+    public int getNumSubJobsRunning()
+    {
+        int numRunning = 0;
+        for (Job subJob : this.subJobList)
+        {
+            if (subJob.getState() == Job.State.RUNNING)
+            {
+                numRunning++;
+            }
+        }
+        return numRunning;
+    }
+    
+    /**
+     * @return the number of sub-jobs of this instance that have finished
+     * (normally, with an error or by being aborted)
+     */
+    public int getNumSubJobsFinished()
+    {
+        int numFinished = 0;
+        for (Job subJob : this.subJobList)
+        {
+            if (subJob.isFinished())
+            {
+                numFinished++;
+            }
+        }
+        return numFinished;
+    }
+    
+    /**
+     * @return a copy of this instance, including copies of its jobs, that
+     * can be modified without affecting this instance.  This is used by
+     * CachingInstancesStore, which has to give each caller its own copy
+     * (as the database does).
+     */
+    GRexServiceInstance copy()
+    {
+        GRexServiceInstance copy = new GRexServiceInstance();
+        copy.id = this.id;
+        copy.serviceName = this.serviceName;
+        copy.persistentDirName = this.persistentDirName;
+        copy.description = this.description;
+        copy.baseUrl = this.baseUrl;
+        copy.owner = this.owner;
+        copy.group = this.group;
+        copy.interactive = this.interactive;
+        copy.ownerPermissions = this.ownerPermissions;
+        copy.groupPermissions = this.groupPermissions;
+        copy.otherPermissions = this.otherPermissions;
+        copy.masterJob = this.masterJob.copy(copy);
+        for (Job subJob : this.subJobList)
+        {
+            copy.subJobList.add(subJob.copy(copy));
+        }
+        copy.gsConfig = this.gsConfig;
+        return copy;
     }
 }
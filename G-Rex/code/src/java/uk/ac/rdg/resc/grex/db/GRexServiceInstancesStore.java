@@ -71,6 +71,26 @@ public interface GRexServiceInstancesStore
     public List<GRexServiceInstance> getServiceInstancesByServiceName(String serviceName)
         throws InstancesStoreException;
     
+    /**
+     * Finds summaries of all the instances of the service with the given name.
+     * This is used to list instances without reading all their details.
+     * @param serviceName The name of the service as specified in the config file
+     * @return a List of summaries of all the instances of this service
+     */
+    public List<InstanceSummary> getInstanceSummariesByServiceName(String serviceName)
+        throws InstancesStoreException;
+    
+    /**
+     * Gets a tag that changes whenever an instance of the service with the
+     * given name is added or updated, i.e. whenever the listing of instances
+     * of the service might have changed.  This is used to tell clients whether
+     * their copy of the listing is still current.
+     * @param serviceName The name of the service as specified in the config file
+     * @return an opaque tag, or null if this store does not keep track of
+     * changes to instances
+     */
+    public String getListingVersion(String serviceName);
+    
     /**
      * Adds the given instance to the database, creates a unique ID for this instance
      * and creates the working directory for the instance.  The creation of the
@@ -99,6 +119,18 @@ public interface GRexServiceInstancesStore
     public void updateServiceInstance(GRexServiceInstance instance)
         throws InstancesStoreException;
     
+    /**
+     * Queues the given instance to be written to the database some time
+     * soon.  This is for frequent updates (e.g. changes of state from the
+     * JobRunners): implementations may coalesce several updates to the same
+     * instance and write several instances together.  Updates to instances
+     * that have finished must be written before this method returns.  Reads
+     * from the store must always see queued updates.
+     * 
+     * @param instance the GRexServiceInstance to update
+     */
+    public void queueUpdate(GRexServiceInstance instance);
+    
     /**
      * Finds all the service instances (of any service) that belong to the 
      * user with the given username
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.db;
+
+import uk.ac.rdg.resc.grex.config.User;
+
+/**
+ * Java Bean that summarizes a service instance for the pages that list
+ * instances.  This contains only the information needed for the list (and
+ * for checking that the user can see the instance), so it is much cheaper
+ * to keep in memory than the GRexServiceInstance itself.  Summaries are
+ * immutable: a new summary is created when the instance changes.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class InstanceSummary
+{
+    private int id;
+    private String serviceName;
+    private String description;
+    private String url;
+    private String owner;
+    private String group;
+    private GRexServiceInstance.Permissions ownerPermissions;
+    private GRexServiceInstance.Permissions groupPermissions;
+    private GRexServiceInstance.Permissions otherPermissions;
+    private Job.State state;
+    private Integer exitCode;
+    
+    /**
+     * Creates a summary of the current state of the given instance
+     */
+    public InstanceSummary(GRexServiceInstance instance)
+    {
+        this.id = instance.getId();
+        this.serviceName = instance.getServiceName();
+        this.description = instance.getDescription();
+        this.url = instance.getUrl();
+        this.owner = instance.getOwner();
+        this.group = instance.getGroup();
+        this.ownerPermissions = instance.getOwnerPermissions();
+        this.groupPermissions = instance.getGroupPermissions();
+        this.otherPermissions = instance.getOtherPermissions();
+        this.state = instance.getState();
+        this.exitCode = instance.getExitCode();
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public String getServiceName()
+    {
+        return serviceName;
+    }
+
+    /**
+     * @return the description of the instance, or null if none has been set
+     */
+    public String getDescription()
+    {
+        return description;
+    }
+
+    /**
+     * @return the full URL to the service instance
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public String getOwner()
+    {
+        return owner;
+    }
+
+    public String getGroup()
+    {
+        return group;
+    }
+
+    public Job.State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Gets the exit code as an Integer, or null if the exit code has not yet
+     * been set
+     */
+    public Integer getExitCode()
+    {
+        return exitCode;
+    }
+    
+    /**
+     * @return true if the given user can read information from the instance
+     */
+    public boolean canBeReadBy(User user)
+    {
+        return GRexServiceInstance.canBeReadBy(user, this.owner, this.group,
+            this.ownerPermissions, this.groupPermissions, this.otherPermissions);
+    }
+}
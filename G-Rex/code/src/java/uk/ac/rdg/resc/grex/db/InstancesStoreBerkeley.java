@@ -40,18 +40,26 @@ import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.rdg.resc.grex.config.GRexConfig;
 import uk.ac.rdg.resc.grex.config.GridServiceConfigForServer;
 import uk.ac.rdg.resc.grex.exceptions.InstancesStoreException;
+import uk.ac.rdg.resc.grex.server.Metrics;
 
 /**
  * Stores and accesses service instances that are held in a Berkeley database.
  * This is not a relational database: it is essentially like an on-disk Hashtable,
  * where the keys are instance IDs and the values are GRexServiceInstance objects.
  *
+ * Updates to instances that are made by the JobRunners (which can be very
+ * frequent) are queued and written behind: several changes to the same
+ * instance are coalesced and all the queued changes are written in a single
+ * transaction at short intervals (see queueUpdate()).
+ *
  * @todo Sort out thread safety very carefully!
  *
  * @author Jon Blower
@@ -68,6 +76,24 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
     private static final String STORE_NAME = "instances";
     private static final int MAX_DEADLOCK_RETRIES = 10;
     private static final String MASTER_WORKING_DIR_NAME = "master";
+    // Interval in milliseconds between writes of queued updates to the database
+    private static final long FLUSH_INTERVAL_MS = 250;
+    
+    // Times taken by successful writes of queued updates and reads of
+    // instances (including any retries), and the numbers of retries after
+    // deadlocks
+    private static final String TXN_TIME_METRIC = "grex_db_transaction_duration_seconds";
+    private static final String TXN_TIME_HELP = "Time taken by transactions on the instances database";
+    private static final String RETRIES_METRIC = "grex_db_deadlock_retries_total";
+    private static final String RETRIES_HELP = "Number of times that an operation on the instances database was retried after a deadlock";
+    private static final Metrics.Timer WRITE_TIME =
+        Metrics.getMetrics().getTimer(TXN_TIME_METRIC, TXN_TIME_HELP, "operation", "write");
+    private static final Metrics.Timer READ_TIME =
+        Metrics.getMetrics().getTimer(TXN_TIME_METRIC, TXN_TIME_HELP, "operation", "read");
+    private static final Metrics.Counter WRITE_RETRIES =
+        Metrics.getMetrics().getCounter(RETRIES_METRIC, RETRIES_HELP, "operation", "write");
+    private static final Metrics.Counter READ_RETRIES =
+        Metrics.getMetrics().getCounter(RETRIES_METRIC, RETRIES_HELP, "operation", "read");
     
     private GRexConfig config; // We need this to find the home directory of the G-Rex server
     
@@ -77,6 +103,18 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
     private PrimaryIndex<Integer, GRexServiceInstance> instancesById;
     private SecondaryIndex<String, Integer, GRexServiceInstance> instancesByServiceName;
     
+    // Sub-jobs are stored separately from their instances
+    private PrimaryIndex<SubJobRecord.Key, SubJobRecord> subJobsByKey;
+    private SecondaryIndex<Integer, SubJobRecord.Key, SubJobRecord> subJobsByInstanceId;
+    
+    // Instances whose changes have been queued but not yet written, keyed by id
+    private Map<Integer, GRexServiceInstance> queuedUpdates =
+        new LinkedHashMap<Integer, GRexServiceInstance>();
+    // Held while writing to the database, so that writes happen in order
+    private Object writeLock = new Object();
+    private Thread writerThread;
+    private volatile boolean closed = false;
+    
     /**
      * This is called by the Spring framework to initialize this object
      * @throws Exception if there was an error initializing the database
@@ -104,10 +142,91 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
         // GRexServiceInstance
         this.instancesByServiceName = this.store.getSecondaryIndex(this.instancesById,
             String.class, "serviceName");
+        this.subJobsByKey = this.store.getPrimaryIndex(SubJobRecord.Key.class,
+            SubJobRecord.class);
+        // The string "instanceId" matches the name of the field in SubJobRecord
+        this.subJobsByInstanceId = this.store.getSecondaryIndex(this.subJobsByKey,
+            Integer.class, "instanceId");
+        
+        this.migrateSubJobs();
+        
+        // Start the thread that writes queued updates
+        this.writerThread = new Thread("instances-writer")
+        {
+            public void run()
+            {
+                while (!closed)
+                {
+                    try
+                    {
+                        Thread.sleep(FLUSH_INTERVAL_MS);
+                    }
+                    catch(InterruptedException ie)
+                    {
+                        // close() has been called
+                    }
+                    flushQueuedUpdates();
+                }
+            }
+        };
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
         
         log.debug("Database created in " + dbPath.getPath());
     }
     
+    /**
+     * Older versions of G-Rex stored sub-jobs as part of the instance.  This
+     * moves any sub-jobs that are stored like this into their own records
+     * (one transaction per instance).
+     * @throws DatabaseException if an error occurred
+     */
+    private void migrateSubJobs() throws DatabaseException
+    {
+        // Find the instances that need to be migrated
+        List<Integer> ids = new ArrayList<Integer>();
+        EntityCursor<GRexServiceInstance> cursor = this.instancesById.entities();
+        try
+        {
+            for (GRexServiceInstance instance : cursor)
+            {
+                if (instance.getLegacySubJobs().size() > 0)
+                {
+                    ids.add(instance.getId());
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        
+        for (int id : ids)
+        {
+            Transaction txn = this.env.beginTransaction(null, null);
+            try
+            {
+                GRexServiceInstance instance = this.instancesById.get(txn, id, null);
+                for (Job subJob : instance.getLegacySubJobs())
+                {
+                    this.subJobsByKey.put(txn, new SubJobRecord(id, subJob));
+                }
+                instance.getLegacySubJobs().clear();
+                this.instancesById.put(txn, instance);
+                txn.commit();
+                txn = null;
+            }
+            finally
+            {
+                if (txn != null) txn.abort();
+            }
+        }
+        if (ids.size() > 0)
+        {
+            log.info("Moved sub-jobs of " + ids.size() + " instances into separate records");
+        }
+    }
+    
     /**
      * Adds the given instance to the database, creates a unique ID for this instance
      * and creates the working directory for the instance.  The creation of the
@@ -276,7 +395,7 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
     
     /**
      * Updates the copy of the given instance object in the database
-     * (identified by its id).
+     * (identified by its id).  Any queued updates are written first.
      * 
      * @param instance the GRexServiceInstance to update
      * @throws InstancesStoreException if there was an error updating the instance
@@ -284,29 +403,147 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
      */
     public void updateServiceInstance(GRexServiceInstance instance)
         throws InstancesStoreException
+    {
+        List<GRexServiceInstance> instances = new ArrayList<GRexServiceInstance>();
+        instances.add(instance);
+        synchronized(this.writeLock)
+        {
+            this.flushQueuedUpdates();
+            this.writeInstances(instances);
+        }
+    }
+    
+    /**
+     * Queues the given instance to be written to the database.  If the
+     * instance is already queued, the changes are coalesced (the instance is
+     * only written once).  All the queued instances are written in a single
+     * transaction, within a fraction of a second.  If the instance has finished
+     * the queued updates are written before this method returns, so that the
+     * end of a job is never lost.  Errors in writing queued updates are logged
+     * and the instances are queued again, so that the write is retried.
+     * 
+     * @param instance the GRexServiceInstance to update
+     */
+    public void queueUpdate(GRexServiceInstance instance)
+    {
+        synchronized(this.queuedUpdates)
+        {
+            this.queuedUpdates.put(instance.getId(), instance);
+        }
+        if (instance.isFinished() || this.closed)
+        {
+            this.flushQueuedUpdates();
+        }
+    }
+    
+    /**
+     * Writes all the queued updates to the database in a single transaction.
+     * If the write fails, the instances are put back in the queue (unless they
+     * have been queued again in the meantime) so that the next flush retries them.
+     */
+    private void flushQueuedUpdates()
+    {
+        synchronized(this.writeLock)
+        {
+            List<GRexServiceInstance> instances;
+            synchronized(this.queuedUpdates)
+            {
+                if (this.queuedUpdates.isEmpty()) return;
+                instances = new ArrayList<GRexServiceInstance>(this.queuedUpdates.values());
+                this.queuedUpdates.clear();
+            }
+            try
+            {
+                this.writeInstances(instances);
+            }
+            catch (InstancesStoreException ise)
+            {
+                // TODO: what should we do here?  This error is very unlikely to 
+                // happen but if it does it will mean that the status of the instances
+                // is not recorded correctly in the database, and hence the user 
+                // might get inconsistent information.  However, if there is a problem
+                // with the database almost every call to this server will fail.
+                // For now, we log the error and queue the instances again so
+                // that the next flush retries them.
+                log.error("Can't persist " + instances.size() + " instances to store", ise);
+                synchronized(this.queuedUpdates)
+                {
+                    for (GRexServiceInstance instance : instances)
+                    {
+                        if (!this.queuedUpdates.containsKey(instance.getId()))
+                        {
+                            this.queuedUpdates.put(instance.getId(), instance);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return true if there are queued updates for the instance with the given id
+     */
+    private boolean isQueued(int instanceID)
+    {
+        synchronized(this.queuedUpdates)
+        {
+            return this.queuedUpdates.containsKey(instanceID);
+        }
+    }
+    
+    /**
+     * Writes the given instances (and their sub-jobs that have changed) to the
+     * database in a single transaction
+     * @throws InstancesStoreException if there was an error updating the instances
+     * (e.g. there is no existing instance with the same id)
+     */
+    private void writeInstances(List<GRexServiceInstance> instances)
+        throws InstancesStoreException
     {
         Transaction txn = null;
         int retry_count = 0;
         boolean success = false;
+        long start = System.nanoTime();
         while (retry_count < MAX_DEADLOCK_RETRIES && !success) {
+            // The sub-jobs whose modified flags we have cleared in this attempt
+            List<Job> modifiedSubJobs = new ArrayList<Job>();
             try
             {
                 if (retry_count > 0) {
                     log.debug("Attempt No. " + (retry_count+1) + " to execute update transaction");
+                    WRITE_RETRIES.increment();
                 }
                 txn = this.env.beginTransaction(null, null);
-                // Check to see if this instance exists
-                if (!this.instancesById.contains(txn, instance.getId(), null))
+                for (GRexServiceInstance instance : instances)
                 {
-                    throw new DatabaseException("There is no instance with id "
-                        + instance.getId() + " to update");
+                    // Check to see if this instance exists
+                    if (!this.instancesById.contains(txn, instance.getId(), null))
+                    {
+                        throw new DatabaseException("There is no instance with id "
+                            + instance.getId() + " to update");
+                    }
+                    this.instancesById.putNoReturn(txn, instance);
+                    // Only write the sub-jobs that have changed.  We clear the
+                    // modified flag before we write the sub-job so that a
+                    // change made by another thread while we are writing
+                    // (e.g. the end of the sub-job) sets it again and is
+                    // written next time, rather than being lost.
+                    for (Job subJob : instance.getSubJobs())
+                    {
+                        if (subJob.clearModified())
+                        {
+                            modifiedSubJobs.add(subJob);
+                            this.subJobsByKey.putNoReturn(txn, new SubJobRecord(instance.getId(), subJob));
+                        }
+                    }
                 }
-                // The ID will be created automatically from a sequence
-                this.instancesById.put(txn, instance);
                 txn.commit();
+                WRITE_TIME.recordSince(start);
                 success = true;
             }
             catch(DeadlockException de) {
+                // The sub-jobs weren't written
+                setModified(modifiedSubJobs);
                 try {
                     txn.abort();
                 }
@@ -326,6 +563,7 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
             }
             catch(DatabaseException dbe)
             {
+                setModified(modifiedSubJobs);
                 if (txn != null)
                 {
                     try
@@ -338,12 +576,24 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
                         throw new InstancesStoreException(dbe2);
                     }
                 }
-                log.error("Aborted update of service instance due to exception:", dbe);
+                log.error("Aborted update of service instances due to exception:", dbe);
                 throw new InstancesStoreException(dbe);
             }
         }
     }
     
+    /**
+     * Sets the modified flags of the given sub-jobs again after a failed
+     * write, so that they are written next time
+     */
+    private static void setModified(List<Job> subJobs)
+    {
+        for (Job subJob : subJobs)
+        {
+            subJob.setModified(true);
+        }
+    }
+    
     /**
      * Gets a GRexServiceInstance object representing the instance with the 
      * given id.  This always returns a newly-created object (see the Javadoc
@@ -359,13 +609,21 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
         GRexServiceInstance inst=null;
         GridServiceConfigForServer gsConfig=null;
         
+        // Make sure we don't read an out-of-date copy of the instance
+        if (this.isQueued(instanceID))
+        {
+            this.flushQueuedUpdates();
+        }
+        
         int retry_count = 0;
         boolean success = false;
+        long start = System.nanoTime();
         while (retry_count < MAX_DEADLOCK_RETRIES && !success) {
             try
             {
                 if (retry_count > 0) {
                     log.debug("Attempt No. " + (retry_count+1) + " to execute this.instancesById.get(instanceID)");
+                    READ_RETRIES.increment();
                 }
                 inst = this.instancesById.get(instanceID);        
                 if (inst == null)
@@ -388,13 +646,28 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
                     }                                                
                     inst.setGridServiceConfig(gsConfig);
                     
-                    // Then set the handle to the instance in the jobs
+                    // Then read the sub-jobs, which are stored separately,
+                    // and set the handle to the instance in the jobs
                     inst.getMasterJob().setInstance(inst);
-                    for (Job subJob : inst.getSubJobs())
+                    inst.getSubJobs().clear();
+                    EntityCursor<SubJobRecord> cursor =
+                        this.subJobsByInstanceId.subIndex(instanceID).entities();
+                    try
+                    {
+                        // The records are in order of sub-job ID
+                        for (SubJobRecord record : cursor)
+                        {
+                            Job subJob = record.getJob();
+                            subJob.setInstance(inst);
+                            inst.getSubJobs().add(subJob);
+                        }
+                    }
+                    finally
                     {
-                        subJob.setInstance(inst);
-                    }                
+                        cursor.close();
+                    }
                 }
+                READ_TIME.recordSince(start);
                 success = true;
             }
             catch(DeadlockException de) {
@@ -446,7 +719,8 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
     }
     
     /**
-     * Gets all the service instances that belong to the given service. 
+     * Gets all the service instances that belong to the given service.  The
+     * sub-jobs of the instances are not read.
      * @param serviceName Name of the service to which the instances belong. 
      * @return a List of instances that belong to the service.
      * @throws InstancesStoreException if there was an error retrieving the data
@@ -454,6 +728,7 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
     public synchronized List<GRexServiceInstance> getServiceInstancesByServiceName(String serviceName)
         throws InstancesStoreException
     {
+        this.flushQueuedUpdates();
         // EntityCursors are not thread-safe so this method must be synchronized
         EntityCursor<GRexServiceInstance> cursor = null;
         ArrayList<GRexServiceInstance> instances = new ArrayList<GRexServiceInstance>();
@@ -486,6 +761,33 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
         }        
     }
     
+    /**
+     * Gets summaries of all the service instances that belong to the given
+     * service.  (We have to read the whole instances to do this, but
+     * CachingInstancesStore only calls this once per service.)
+     * @param serviceName Name of the service to which the instances belong. 
+     * @return a List of summaries of the instances that belong to the service.
+     * @throws InstancesStoreException if there was an error retrieving the data
+     */
+    public List<InstanceSummary> getInstanceSummariesByServiceName(String serviceName)
+        throws InstancesStoreException
+    {
+        List<InstanceSummary> summaries = new ArrayList<InstanceSummary>();
+        for (GRexServiceInstance instance : this.getServiceInstancesByServiceName(serviceName))
+        {
+            summaries.add(new InstanceSummary(instance));
+        }
+        return summaries;
+    }
+    
+    /**
+     * Returns null: this store does not keep track of changes to listings.
+     */
+    public String getListingVersion(String serviceName)
+    {
+        return null;
+    }
+    
     /**
      * Closes the database.  This will be called automatically by the Spring
      * framework.
@@ -493,6 +795,21 @@ public class InstancesStoreBerkeley implements GRexServiceInstancesStore
      */
     public void close() throws DatabaseException
     {
+        // Stop the writer thread and write any remaining queued updates
+        this.closed = true;
+        if (this.writerThread != null)
+        {
+            this.writerThread.interrupt();
+            try
+            {
+                this.writerThread.join();
+            }
+            catch(InterruptedException ie)
+            {
+                // Carry on and close the database
+            }
+        }
+        this.flushQueuedUpdates();
         if (this.store != null) this.store.close();
         if (this.env != null)
         {
@@ -34,11 +34,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import org.springframework.util.AntPathMatcher;
-import org.springframework.util.PathMatcher;
 import uk.ac.rdg.resc.grex.config.GridServiceConfigForServer;
 import uk.ac.rdg.resc.grex.config.Output;
 import uk.ac.rdg.resc.grex.server.OutputFile;
+import uk.ac.rdg.resc.grex.server.OutputIndex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -84,6 +83,13 @@ public class Job
     
     private transient GRexServiceInstance instance; // The instance to which this job belongs
     
+    // True if this job has been changed since it was read from (or last
+    // written to) the database.  The store uses this to write only the
+    // sub-jobs that have changed when an instance is updated.  Guarded by
+    // the lock on this object, which the setters hold while they make
+    // their changes.
+    private transient boolean modified = false;
+    
     // WARNING!  The state is stored in the database as an index number, not a string
     // so if you add a new state to the start or middle of this list the indices
     // will change and the database will appear to contain the wrong state!
@@ -95,7 +101,9 @@ public class Job
         RUNNING,  // The instance is running
         FINISHED, // The instance has completed normally
         ABORTED,  // The instance has been aborted by the user
-        ERROR;    // The instance has failed due to an error
+        ERROR,    // The instance has failed due to an error
+        QUEUED;   // The instance has been started but is waiting for the
+                  // InstanceScheduler to run it
             
         /**
          * @return true if this state means that the service instance has finished,
@@ -129,9 +137,10 @@ public class Job
         return id;
     }
 
-    public void setId(int id)
+    public synchronized void setId(int id)
     {
         this.id = id;
+        this.modified = true;
     }
     
     /**
@@ -166,9 +175,10 @@ public class Job
     /**
      * Sets a value of a parameter on this sub-job
      */
-    public void setParameter(String name, String value)
+    public synchronized void setParameter(String name, String value)
     {
         this.params.put(name, value);
+        this.modified = true;
     }
 
     public State getState()
@@ -176,9 +186,10 @@ public class Job
         return state;
     }
 
-    public void setState(State state)
+    public synchronized void setState(State state)
     {
         this.state = state;
+        this.modified = true;
     }
 
     public String getWorkingDirectory()
@@ -195,9 +206,10 @@ public class Job
         return new File(this.workingDirectory);
     }
 
-    public void setWorkingDirectory(String workingDirectory)
+    public synchronized void setWorkingDirectory(String workingDirectory)
     {
         this.workingDirectory = workingDirectory;
+        this.modified = true;
     }
     
     public boolean isFinished()
@@ -214,9 +226,37 @@ public class Job
         return this.exitCode;
     }
 
-    public void setExitCode(Integer exitCode)
+    public synchronized void setExitCode(Integer exitCode)
     {
         this.exitCode = exitCode;
+        this.modified = true;
+    }
+    
+    /**
+     * @return true if this job has been changed since it was read from
+     * or last written to the database
+     */
+    synchronized boolean isModified()
+    {
+        return this.modified;
+    }
+    
+    synchronized void setModified(boolean modified)
+    {
+        this.modified = modified;
+    }
+    
+    /**
+     * Clears the modified flag.  The store calls this before it writes the
+     * job, so that a change that is made while the job is being written
+     * sets the flag again and is written next time.
+     * @return true if the job had been modified
+     */
+    synchronized boolean clearModified()
+    {
+        boolean wasModified = this.modified;
+        this.modified = false;
+        return wasModified;
     }
     
     /**
@@ -224,84 +264,37 @@ public class Job
      * job that are available for downloading now, or will be available for
      * downloading when the job has finished.  This method is called by the JSPs
      * that provide XML and HTML output to the web.
+     * The list is read from an index of the output files that is kept up to
+     * date incrementally (see OutputIndex), so we don't walk the whole working
+     * directory every time.  At most MAX_FILES files are returned, in the
+     * order in which they were found, so the files that the client has
+     * already seen stay at the start of the list.
      * @todo What happens with directories?
-     *
-     * @todo Provide list in increading order of last modified time, so the number
-     * of files the client knows about does not increase too much if files start
-     * to accumulate in the working direcory at the server.  One way to achieve this
-     * is to read from the outputFiles set in the job runner object (currently
-     * not used). The problem with the
-     * current method is that the list of MAX_FILES files will, in general, contain
-     * a mixture of files the client has seen before and files that have just been
-     * created.  This means that as data starts to accumulate on the server the
-     * client has to account for an increasing number of files.
-     *
      */
     public List<OutputFile> getCurrentOutputFiles()
     {
-        List<OutputFile> files = new ArrayList<OutputFile>();
-        
-        /*
-        // Get first MAX_FILES files in outputFiles set.  This set is sorted in
-        // increasing order of last time modified.
-        log.debug("No. of output files is now " + this.getInstance().getRunner().getOutputFiles().size());
-        for (OutputFile opFile : this.getInstance().getRunner().getOutputFiles()) {
-            if (files.size() < MAX_FILES) {
-                files.add(opFile);
-                log.debug(opFile.getFile().getName() + " was last modified at " +
-                        opFile.getFile().lastModified());
-            }
-            else break;
+        List<Output> outputs = this.getOutputs();
+        if (outputs == null)
+        {
+            return new ArrayList<OutputFile>();
         }
-        return files;
-         */
-        
-        /* Call recursive method to traverse directory structure in working
-         * directory
-         */
-        this.getCurrentOutputFiles("", files);
-        return files;
+        return OutputIndex.getIndex(this).getOutputFiles(this, outputs, MAX_FILES);
     }
     
     /**
-     * Recursive method to get the output files in the the directory whose
-     * path (relative to the instance's working directory) is given by
-     * relativeDirPath.  The results are added to the given List of OutputFiles.
-     * If relativeDirPath is not the empty string, it must end with a forward
-     * slash (irrespective of operating system).
+     * @return the total number of downloadable output files in the working
+     * directory of this job
      */
-     private void getCurrentOutputFiles(String relativeDirPath, List<OutputFile> files)
+    public int getNumCurrentOutputFiles()
     {
-        File dir = new File(this.getWorkingDirectoryFile(), relativeDirPath);
-        for (String filename : dir.list())
+        List<Output> outputs = this.getOutputs();
+        if (outputs == null)
         {
-            String relativePath = relativeDirPath + filename;
-            File f = new File(dir, relativePath);
-            if (f.isDirectory())
-            {
-                // recursively call this method
-                // We must always use forward slashes even on Windows for the
-                // pattern matching in getOutputFile() to work
-                //log.debug("Checking directory " + relativePath + "....");
-                this.getCurrentOutputFiles(relativePath + "/", files);
-            }
-            else
-            {
-                if (files.size() < MAX_FILES) {
-                    // Check to see if this file is downloadable
-                    //log.debug("Checking file " + relativePath + "....");
-                    OutputFile opFile = this.getOutputFile(relativePath);
-                    if (opFile != null) {
-                        files.add(opFile);
-                    }
-                }
-                else break;
-            }
-            if (files.size() >= MAX_FILES) break;
+            return 0;
         }
+        return OutputIndex.getIndex(this).getNumOutputFiles(this, outputs);
     }
     
-    
     /**
      * @return an OutputFile corresponding with the given path relative to the 
      * working directory of this instance, or null if the
@@ -309,16 +302,26 @@ public class Job
      * through the web interface.  Note that the relativeFilePath must be delimited
      * by forward slashes ("/") on all platforms for the pattern matching to work.
      * relativeFilePath must not start with a slash.
-     * Matches according to Ant syntax.
+     * Matches according to Ant syntax.  If this path matches more than one
+     * output the later outputs take priority.
      * @see org.springframework.util.AntPathMatcher
      */
     public OutputFile getOutputFile(String relativeFilePath)
     {
-        // Look through all the output definitions in the configuration and
-        // see if we have a match.  Note that if this path matches more than one
-        // pattern the later patterns take priority
-        OutputFile opFile = null;
-        //log.debug("Checking file " + relativeFilePath + "....");
+        List<Output> outputs = this.getOutputs();
+        if (outputs == null)
+        {
+            return null;
+        }
+        return OutputIndex.getIndex(this).getOutputFile(this, outputs, relativeFilePath);
+    }
+    
+    /**
+     * @return the output definitions from the configuration of the service,
+     * or null if they are not available
+     */
+    private List<Output> getOutputs()
+    {
         if (instance == null) {
             log.debug("instance is null!!!");
             return null;
@@ -326,69 +329,33 @@ public class Job
         GridServiceConfigForServer gsConfig = this.instance.getGridServiceConfig();
         if (gsConfig == null) {
             log.debug("gsConfig is null!!!");
-            /*log.debug("Waiting 5 seconds to see if this is temporary");
-            Process proc;
-            try {
-                proc = Runtime.getRuntime().wait(5000);
-            }
-            catch (InterruptedException ie) {
-                log.error("wait interrupted." + ie.toString());
-            }
-             */
             return null;
         }
         List<Output> outputs = gsConfig.getOutputs();
         if (outputs == null) {
             log.debug("outputs is null!!!");
-            return null;
-        }
-        for (Output op : outputs)
-        {
-            String pattern = op.getName();
-            if (op.getLinkedParameterName() != null)
-            {
-                /*
-                 *The pattern to match comes from the value of this parameter.
-                 *Additional characters may have been specified before and after
-                 *the parameter identifier (i.e. ${<paramName>}) in GRexConfig.xml,
-                 *wildcards for example, e.g. "*${<paramName>}.dat"
-                 */
-                int i1 = op.getName().indexOf("${");
-                int i2 = op.getName().indexOf("}");
-                // First add any characters preceding the parameter identifier.
-                if (i1>0) {
-                    // One or more preceding characters has been specified
-                    pattern = op.getName().substring(0,i1);
-                    pattern = pattern.concat(this.getParamValue(op.getLinkedParameterName()));
-                }
-                else {
-                    // No preceding characters specified
-                    pattern = this.getParamValue(op.getLinkedParameterName());                    
-                }
-                // Now add any characters after the parameter identifier
-                if (i2 < op.getName().length()-1) {
-                    // One or more characters after parameter ID have been specified
-                    pattern = pattern.concat(op.getName().substring(i2+1));
-                }
-                //log.debug("Output " + op.getName() + " is linked to parameter " + op.getLinkedParameterName());
-                //log.debug("Output file pattern derived from linked parameter is " + pattern);
-            }
-            PathMatcher pathMatcher = new AntPathMatcher();
-            if (pathMatcher.match(pattern, relativeFilePath))
-            {
-                File f = new File(this.getWorkingDirectoryFile(), relativeFilePath);
-                if (!f.isDirectory())
-                {
-                    // TODO: watch out for unmodified input files in the working directory
-                    opFile = new OutputFile(relativeFilePath, this, op.isAppendOnly(), op.deleteAfter());
-                }
-            }
         }
-        return opFile;
+        return outputs;
     }
 
     public void setInstance(GRexServiceInstance instance)
     {
         this.instance = instance;
     }
+    
+    /**
+     * @return a copy of this job that belongs to the given instance
+     * (see GRexServiceInstance.copy())
+     */
+    Job copy(GRexServiceInstance instance)
+    {
+        Job copy = new Job(instance);
+        copy.id = this.id;
+        copy.params = new HashMap<String, String>(this.params);
+        copy.workingDirectory = this.workingDirectory;
+        copy.exitCode = this.exitCode;
+        copy.state = this.state;
+        copy.modified = this.modified;
+        return copy;
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.db;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.KeyField;
+import com.sleepycat.persist.model.Persistent;
+import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
+
+/**
+ * A sub-job as it is stored in the Berkeley database.  Sub-jobs are stored
+ * separately from the GRexServiceInstance to which they belong, so that the
+ * state of a single sub-job can be changed without rewriting the instance
+ * and all its other sub-jobs.  The records are indexed by instance ID so that
+ * all the sub-jobs of an instance can be read together.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+@Entity
+class SubJobRecord
+{
+    @PrimaryKey
+    private Key key;
+    
+    @SecondaryKey(relate=Relationship.MANY_TO_ONE) // An instance may contain many sub-jobs
+    // WARNING! If you change the name of this field, you also need to change
+    // the constructor for the secondary key in InstancesStoreBerkeley!
+    private int instanceId;
+    
+    private Job job;
+    
+    /**
+     * Default constructor needed by the database
+     */
+    private SubJobRecord()
+    {
+    }
+    
+    /**
+     * Creates a record for the given sub-job of the given instance
+     */
+    public SubJobRecord(int instanceId, Job subJob)
+    {
+        this.key = new Key(instanceId, subJob.getId());
+        this.instanceId = instanceId;
+        this.job = subJob;
+    }
+    
+    public Job getJob()
+    {
+        return this.job;
+    }
+    
+    /**
+     * The primary key of a sub-job record: the ID of the instance and the
+     * ID of the sub-job within the instance
+     */
+    @Persistent
+    static class Key
+    {
+        @KeyField(1)
+        private int instanceId;
+        
+        @KeyField(2)
+        private int subJobId;
+        
+        /**
+         * Default constructor needed by the database
+         */
+        private Key()
+        {
+        }
+        
+        public Key(int instanceId, int subJobId)
+        {
+            this.instanceId = instanceId;
+            this.subJobId = subJobId;
+        }
+    }
+}
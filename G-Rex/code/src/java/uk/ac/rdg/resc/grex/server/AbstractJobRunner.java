@@ -36,7 +36,7 @@ import org.apache.commons.logging.LogFactory;
 import uk.ac.rdg.resc.grex.config.GridServiceConfigForServer;
 import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
 import uk.ac.rdg.resc.grex.db.GRexServiceInstancesStore;
-import uk.ac.rdg.resc.grex.exceptions.InstancesStoreException;
+import uk.ac.rdg.resc.grex.db.Job;
 
 /**
  * Convenience abstract class that implements the common methods of the JobRunner
@@ -159,25 +159,40 @@ public abstract class AbstractJobRunner implements JobRunner
     }
     
     /**
-     * Stores any changes to the instance in the persistent store.
+     * Queues any changes to the instance to be stored in the persistent store
+     * (the changes are written behind, but straight away if the job has
+     * finished), then wakes up any clients that are waiting for output from
+     * the instance or for changes to it so that they see the change (e.g.
+     * the end of the job) straight away.
      */
     protected void saveInstance()
     {
-        try
-        {
-            this.instancesStore.updateServiceInstance(this.instance);
-        }
-        catch (InstancesStoreException ise)
+        this.instancesStore.queueUpdate(this.instance);
+        OutputWatcher.getWatcher().instanceChanged(this.instance);
+        InstanceEvents.getEvents().instanceChanged(this.instance);
+    }
+
+    /**
+     * Called when the server starts up for an instance that had not finished
+     * when the server last stopped.  The processes that were running the
+     * instance died with the server so there is no way of picking them up
+     * again: this version puts the instance and any unfinished sub-jobs into
+     * the ERROR state.  Subclasses whose jobs outlive the server (e.g. jobs
+     * submitted to a batch queue) should override this.
+     */
+    public void recover()
+    {
+        log.warn("Instance " + this.instance.getId() + " was in state "
+            + this.instance.getState() + " when the server stopped: the job has been lost");
+        this.instance.setState(Job.State.ERROR);
+        for (Job subJob : this.instance.getSubJobs())
         {
-            // TODO: what should we do here?  This error is very unlikely to 
-            // happen but if it does it will mean that the status of the instance
-            // is not recorded correctly in the database, and hence the user 
-            // might get inconsistent information.  However, if there is a problem
-            // with the database almost every call to this server will fail.
-            // For now, we swallow the error and log it.
-            log.error("Can't persist instance " + this.instance.getId() +
-                " to store", ise);
+            if (!subJob.isFinished())
+            {
+                subJob.setState(Job.State.ERROR);
+            }
         }
+        this.saveInstance();
     }
 
     /* Decides whether or not output to a file has finished.
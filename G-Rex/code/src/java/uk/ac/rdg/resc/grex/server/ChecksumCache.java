@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Calculates the CRC-32 check sums of output files in a background thread,
+ * remembering how much of each file has been checked so that a file is only
+ * read again when it changes.  Append-only files (such as the standard output)
+ * are checked incrementally: the OutputIndex tells the cache about them
+ * whenever it is refreshed (see {@link #track track()}) and only the data
+ * that have been appended since the last check are read.  Other files are
+ * read again from the start if their length or modification time has changed,
+ * so they are only checked once they have been asked for.
+ *
+ * Check sums are never calculated in the thread that asks for them (which is
+ * usually rendering the response to a status request): {@link #getChecksum
+ * getChecksum()} only returns a check sum that is already up to date and
+ * otherwise asks the background thread to bring it up to date.  Only a
+ * limited number of files are remembered (the least recently used are
+ * forgotten).
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class ChecksumCache
+{
+    private static final Log log = LogFactory.getLog(ChecksumCache.class);
+    
+    /**
+     * Maximum number of files whose check sums we remember
+     */
+    private static final int MAX_ENTRIES = 10000;
+    
+    private static final int BUFFER_SIZE = 65536;
+    
+    private static final ChecksumCache cache = new ChecksumCache();
+    
+    /**
+     * Check sums keyed by the absolute path of the file, in order of access
+     * (least recently used first)
+     */
+    private final Map<String, Sum> sums = new LinkedHashMap<String, Sum>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, Sum> eldest)
+        {
+            return this.size() > MAX_ENTRIES;
+        }
+    };
+    
+    /**
+     * Check sums that are waiting to be brought up to date by the updater
+     * thread.  Guarded by the lock on this object.
+     */
+    private final Set<Sum> pending = new LinkedHashSet<Sum>();
+    
+    private Thread updaterThread = null;
+    
+    /**
+     * Private constructor: use getCache()
+     */
+    private ChecksumCache()
+    {
+    }
+    
+    /**
+     * @return the ChecksumCache that is shared by all output files
+     */
+    public static ChecksumCache getCache()
+    {
+        return cache;
+    }
+    
+    /**
+     * Called when the given append-only file has been seen (and may have
+     * grown): the data that have been appended to it since the last check
+     * will be added to its check sum in the background.  Returns immediately.
+     */
+    public void track(File file)
+    {
+        Sum sum = this.getSum(file, true);
+        if (!sum.isUpToDate())
+        {
+            this.schedule(sum);
+        }
+    }
+    
+    /**
+     * Returns the check sum of the given file if it is up to date with the
+     * current contents of the file.  Otherwise the check sum will be brought up
+     * to date in the background and null is returned.  Never reads the file.
+     * @param file The file whose check sum we want
+     * @param appendOnly true if data are only ever appended to the file, in
+     * which case we only read the data that have been appended since the
+     * last check
+     * @return the CRC-32 check sum of the current contents of the file, or
+     * null if it is not yet known
+     */
+    public Long getChecksum(File file, boolean appendOnly)
+    {
+        Sum sum = this.getSum(file, appendOnly);
+        Long value = sum.getValueIfUpToDate();
+        if (value == null)
+        {
+            this.schedule(sum);
+        }
+        return value;
+    }
+    
+    /**
+     * @return the Sum for the given file, creating it if necessary
+     */
+    private Sum getSum(File file, boolean appendOnly)
+    {
+        synchronized(this.sums)
+        {
+            String key = file.getAbsolutePath();
+            Sum sum = this.sums.get(key);
+            if (sum == null)
+            {
+                sum = new Sum(file, appendOnly);
+                this.sums.put(key, sum);
+            }
+            return sum;
+        }
+    }
+    
+    /**
+     * Asks the updater thread to bring the given Sum up to date, starting the
+     * thread if necessary
+     */
+    private synchronized void schedule(Sum sum)
+    {
+        if (this.pending.add(sum))
+        {
+            if (this.updaterThread == null)
+            {
+                this.updaterThread = new UpdaterThread();
+                this.updaterThread.start();
+            }
+            this.notifyAll();
+        }
+    }
+    
+    /**
+     * @return the next Sum to bring up to date, waiting until there is one
+     */
+    private synchronized Sum nextPending() throws InterruptedException
+    {
+        while (this.pending.isEmpty())
+        {
+            this.wait();
+        }
+        Iterator<Sum> it = this.pending.iterator();
+        Sum sum = it.next();
+        it.remove();
+        return sum;
+    }
+    
+    /**
+     * Thread that brings check sums up to date, one at a time
+     */
+    private class UpdaterThread extends Thread
+    {
+        public UpdaterThread()
+        {
+            super("checksum-updater");
+            this.setDaemon(true);
+        }
+        
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    nextPending().update();
+                }
+                catch(InterruptedException ie)
+                {
+                    log.debug("Check sum updater interrupted");
+                }
+                catch(RuntimeException re)
+                {
+                    // Make sure that the updater thread never dies
+                    log.error("Error calculating check sum", re);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The check sum of the part of a file that we have read.  The CRC and the
+     * offset are only used by the updater thread, which reads the file without
+     * holding the lock; the check sum is published (under the lock) once it
+     * has been brought up to date, so other threads never wait for the file
+     * to be read.
+     */
+    private static class Sum
+    {
+        private File file;
+        private boolean appendOnly;
+        private CRC32 crc = new CRC32();
+        private long offset = 0; // The number of bytes that we have read
+        
+        // The published check sum and the length and modification time of
+        // the file that it covers.  A modification time of -1 means that no
+        // check sum has been published.
+        private long value = 0;
+        private long length = -1;
+        private long lastModified = -1;
+        
+        public Sum(File file, boolean appendOnly)
+        {
+            this.file = file;
+            this.appendOnly = appendOnly;
+        }
+        
+        /**
+         * @return true if the published check sum covers the current contents
+         * of the file
+         */
+        public synchronized boolean isUpToDate()
+        {
+            return this.lastModified >= 0 && this.file.length() == this.length &&
+                this.file.lastModified() == this.lastModified;
+        }
+        
+        /**
+         * @return the published check sum if it covers the current contents
+         * of the file, otherwise null
+         */
+        public synchronized Long getValueIfUpToDate()
+        {
+            return this.isUpToDate() ? Long.valueOf(this.value) : null;
+        }
+        
+        private synchronized void publish(long value, long length, long lastModified)
+        {
+            this.value = value;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+        
+        /**
+         * Brings the check sum up to date with the contents of the file,
+         * reading only the data that have been appended if possible.  Only
+         * called by the updater thread.
+         */
+        public void update()
+        {
+            long length = this.file.length();
+            long modified = this.file.lastModified();
+            if (this.isUpToDate())
+            {
+                return;
+            }
+            if (!this.appendOnly || length < this.offset)
+            {
+                this.crc.reset();
+                this.offset = 0;
+            }
+            FileInputStream in = null;
+            try
+            {
+                in = new FileInputStream(this.file);
+                FileChannel chan = in.getChannel();
+                chan.position(this.offset);
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+                // Only read up to the length we saw: anything appended after
+                // that will be read next time
+                while (this.offset < length)
+                {
+                    buf.clear();
+                    buf.limit((int)Math.min(buf.capacity(), length - this.offset));
+                    int len = chan.read(buf);
+                    if (len < 0)
+                    {
+                        break; // The file has been truncated
+                    }
+                    this.crc.update(buf.array(), 0, len);
+                    this.offset += len;
+                }
+                if (this.offset == length)
+                {
+                    this.publish(this.crc.getValue(), length, modified);
+                }
+            }
+            catch(IOException ioe)
+            {
+                log.debug("Could not calculate check sum of " + this.file.getPath()
+                    + ": " + ioe.getMessage());
+                this.crc.reset();
+                this.offset = 0;
+                this.publish(0, -1, -1);
+            }
+            finally
+            {
+                try
+                {
+                    if (in != null) in.close();
+                }
+                catch(IOException ioe)
+                {
+                    // Unlikely to happen and we don't really care anyway
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An InputStream that provides the gzipped contents of another InputStream.
+ * The compression is done in a separate thread, which reads and compresses
+ * the source data while the thread that reads from this stream is busy
+ * sending the data over the network.  The compressed data are passed between
+ * the threads in a bounded queue of chunks, so the compressor never gets very
+ * far ahead of the reader.
+ *
+ * This is used by the G-Rex server to send output files to clients and by
+ * clients to upload input files to the server.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class CompressingInputStream extends InputStream
+{
+    /**
+     * The content type of the parts of a multipart upload that have been
+     * compressed by the client and must be decompressed by the server
+     */
+    public static final String GZIP_CONTENT_TYPE = "application/x-grex-gzip";
+    
+    private static final int BUFFER_SIZE = 65536;
+    private static final int QUEUE_LENGTH = 16; // Maximum number of chunks that
+                                                // can be waiting to be read
+    private static final byte[] EOF = new byte[0]; // Marks the end of the data
+    
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(QUEUE_LENGTH);
+    private final Thread compressor;
+    private byte[] current = null; // The chunk that we're reading from
+    private int pos = 0;           // The position in the current chunk
+    private volatile IOException error = null; // Set if the compressor fails
+    
+    /**
+     * Creates a CompressingInputStream and starts compressing the source data
+     * @param source The stream of data to compress.  This will be closed
+     * when all its data have been read, or when this stream is closed.
+     * @param fast If this is true, the data will be compressed with the fastest
+     * compression level, otherwise the default level will be used
+     */
+    public CompressingInputStream(InputStream source, boolean fast)
+    {
+        this.compressor = new Compressor(source, fast);
+        this.compressor.start();
+    }
+    
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        while (this.current != EOF && (this.current == null || this.pos == this.current.length))
+        {
+            try
+            {
+                this.current = this.chunks.take();
+                this.pos = 0;
+            }
+            catch(InterruptedException ie)
+            {
+                throw new InterruptedIOException("Interrupted while waiting for compressed data");
+            }
+        }
+        if (this.current == EOF)
+        {
+            if (this.error != null)
+            {
+                throw this.error;
+            }
+            return -1;
+        }
+        int n = Math.min(len, this.current.length - this.pos);
+        System.arraycopy(this.current, this.pos, b, off, n);
+        this.pos += n;
+        return n;
+    }
+    
+    /**
+     * Stops the compressor thread (if it is still running) and closes the
+     * source stream
+     */
+    public void close()
+    {
+        this.compressor.interrupt();
+        this.chunks.clear();
+    }
+    
+    /**
+     * Thread that reads the source data and compresses them into chunks
+     */
+    private class Compressor extends Thread
+    {
+        private InputStream source;
+        private boolean fast;
+        
+        public Compressor(InputStream source, boolean fast)
+        {
+            super("compressor");
+            this.setDaemon(true);
+            this.source = source;
+            this.fast = fast;
+        }
+        
+        public void run()
+        {
+            try
+            {
+                GZIPOutputStream gzout = new GZIPOutputStream(new ChunkOutputStream(), BUFFER_SIZE)
+                {
+                    {
+                        if (fast)
+                        {
+                            this.def.setLevel(Deflater.BEST_SPEED);
+                        }
+                    }
+                };
+                byte[] buf = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = this.source.read(buf)) >= 0)
+                {
+                    gzout.write(buf, 0, len);
+                }
+                gzout.close();
+            }
+            catch(InterruptedIOException iioe)
+            {
+                // The reader has closed the stream: there's nobody to tell
+                return;
+            }
+            catch(IOException ioe)
+            {
+                error = ioe;
+            }
+            finally
+            {
+                try
+                {
+                    this.source.close();
+                }
+                catch(IOException ioe)
+                {
+                    // Unlikely to happen and we don't really care anyway
+                }
+            }
+            try
+            {
+                chunks.put(EOF);
+            }
+            catch(InterruptedException ie)
+            {
+                // The reader has closed the stream
+            }
+        }
+    }
+    
+    /**
+     * OutputStream that puts the data that are written to it onto the queue
+     * of chunks
+     */
+    private class ChunkOutputStream extends OutputStream
+    {
+        public void write(int b) throws IOException
+        {
+            this.write(new byte[]{(byte)b}, 0, 1);
+        }
+        
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return;
+            }
+            byte[] chunk = new byte[len];
+            System.arraycopy(b, off, chunk, 0, len);
+            try
+            {
+                chunks.put(chunk);
+            }
+            catch(InterruptedException ie)
+            {
+                throw new InterruptedIOException("Compressed stream closed by reader");
+            }
+        }
+    }
+}
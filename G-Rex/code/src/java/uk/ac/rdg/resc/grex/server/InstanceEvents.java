@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
+import uk.ac.rdg.resc.grex.db.Job;
+
+/**
+ * Keeps track of the changes to service instances that clients are watching,
+ * so that a client can wait for the next change to an instance and then be
+ * told only what has changed, rather than repeatedly fetching the whole status
+ * of the instance.  The changes that are tracked are those to the state and
+ * exit code of the instance, to the progress of its sub-jobs and to its list
+ * of output files (files that appear, become ready for download, change after
+ * becoming ready or disappear).  The growth of files that are still being
+ * written is not a change.
+ *
+ * Each instance that is being watched has a version number, which increases
+ * whenever the instance changes.  Clients give the version that they have
+ * seen and get back the changes since that version.  Version numbers start at
+ * the time at which we start tracking an instance, so a client that has
+ * numbers from an earlier period of tracking (e.g. before the server was
+ * restarted) is given the whole status of the instance again.
+ *
+ * JobRunners tell us when the state of an instance changes (see
+ * AbstractJobRunner.saveInstance()), so that waiting clients are told
+ * straight away.  Nobody tells us about output files, so while clients are
+ * waiting we check the list of output files once every
+ * {@link #SCAN_INTERVAL_MS} milliseconds, using the OutputIndex.  Instances
+ * that no client has asked about for a while are forgotten.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class InstanceEvents
+{
+    /**
+     * Interval in milliseconds between checks on the output files of an
+     * instance while clients are waiting for changes
+     */
+    private static final long SCAN_INTERVAL_MS = 1000;
+    
+    /**
+     * Instances that no client has asked about for this number of milliseconds
+     * are forgotten
+     */
+    private static final long IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+    
+    /**
+     * Maximum number of removed files that we remember for each instance.
+     * Clients that haven't seen the removal of older files are given the
+     * whole list of output files again.
+     */
+    private static final int MAX_REMOVED_FILES = 1000;
+    
+    private static final InstanceEvents events = new InstanceEvents();
+    
+    /**
+     * The instances that are being watched, keyed by instance id
+     */
+    private final Map<Integer, Record> records = new HashMap<Integer, Record>();
+    private long lastSweep = System.currentTimeMillis();
+    
+    /**
+     * Private constructor: use getEvents()
+     */
+    private InstanceEvents()
+    {
+    }
+    
+    /**
+     * @return the InstanceEvents object that is shared by all clients
+     */
+    public static InstanceEvents getEvents()
+    {
+        return events;
+    }
+    
+    /**
+     * Called by JobRunners when the state of an instance has changed.  Wakes
+     * up the clients that are waiting for changes to the instance.
+     */
+    public void instanceChanged(GRexServiceInstance instance)
+    {
+        Record record;
+        synchronized(this)
+        {
+            record = this.records.get(instance.getId());
+        }
+        if (record != null)
+        {
+            // When the instance finishes all its files become ready for
+            // download, and clients must see this before they stop watching
+            record.update(instance, instance.isFinished());
+        }
+    }
+    
+    /**
+     * Blocks until the instance of the given JobRunner has changed since the
+     * given version, or the given time has elapsed, whichever comes first.
+     * @param runner The JobRunner of the instance.  We ask it for its copy of
+     * the instance every time we look, because some JobRunners (e.g. the
+     * SGEJobRunner) replace their copy with a fresh one from the store.
+     * @param since The last version of the instance that the client has seen,
+     * or zero if the client hasn't seen any
+     * @param maxWaitMs The maximum time to wait in milliseconds
+     * @return the changes to the instance since the given version (which might
+     * be none if we timed out)
+     * @throws InterruptedException if the calling thread was interrupted while
+     * waiting
+     */
+    public Changes waitForChanges(JobRunner runner, long since,
+        long maxWaitMs) throws InterruptedException
+    {
+        return this.getRecord(runner.getServiceInstance())
+            .waitForChanges(runner, since, maxWaitMs);
+    }
+    
+    /**
+     * Gets the record of the given instance, creating it if necessary, and
+     * forgets about instances that clients haven't asked about for a while
+     */
+    private synchronized Record getRecord(GRexServiceInstance instance)
+    {
+        long now = System.currentTimeMillis();
+        if (now - this.lastSweep > IDLE_TIMEOUT_MS)
+        {
+            Iterator<Record> it = this.records.values().iterator();
+            while (it.hasNext())
+            {
+                if (now - it.next().lastAccess > IDLE_TIMEOUT_MS)
+                {
+                    it.remove();
+                }
+            }
+            this.lastSweep = now;
+        }
+        Record record = this.records.get(instance.getId());
+        if (record == null)
+        {
+            record = new Record();
+            this.records.put(instance.getId(), record);
+        }
+        record.lastAccess = now;
+        return record;
+    }
+    
+    /**
+     * What we know about an instance that is being watched
+     */
+    private static class Record
+    {
+        private long firstVersion; // We can't give changes since earlier versions
+        private long version;
+        private long lastAccess;
+        private long lastScan = 0;
+        
+        private Job.State state = null;
+        private Integer exitCode = null;
+        private int numSubJobsRunning = 0;
+        private int numSubJobsFinished = 0;
+        
+        // The output files that are currently listed, in the order in which
+        // they were first listed, and the versions at which they were
+        // removed from the list
+        private Map<String, FileRecord> files = new LinkedHashMap<String, FileRecord>();
+        private Map<String, Long> removed = new LinkedHashMap<String, Long>();
+        
+        public Record()
+        {
+            this.firstVersion = System.currentTimeMillis();
+            this.version = this.firstVersion;
+        }
+        
+        /**
+         * Compares the instance with what we know about it, incrementing the
+         * version and waking up waiting clients if it has changed
+         * @param scanFiles true if we are to check the list of output files
+         * as well as the state of the instance
+         */
+        public synchronized void update(GRexServiceInstance instance, boolean scanFiles)
+        {
+            long newVersion = this.version + 1;
+            boolean changed = false;
+            
+            Integer newExitCode = instance.getExitCode();
+            if (instance.getState() != this.state ||
+                (newExitCode == null ? this.exitCode != null : !newExitCode.equals(this.exitCode)) ||
+                instance.getNumSubJobsRunning() != this.numSubJobsRunning ||
+                instance.getNumSubJobsFinished() != this.numSubJobsFinished)
+            {
+                this.state = instance.getState();
+                this.exitCode = newExitCode;
+                this.numSubJobsRunning = instance.getNumSubJobsRunning();
+                this.numSubJobsFinished = instance.getNumSubJobsFinished();
+                changed = true;
+            }
+            
+            if (scanFiles)
+            {
+                this.lastScan = System.currentTimeMillis();
+                Set<String> listed = new HashSet<String>();
+                for (OutputFile opFile : instance.getCurrentOutputFiles())
+                {
+                    String path = opFile.getRelativePath();
+                    listed.add(path);
+                    boolean ready = opFile.isReadyForDownload();
+                    // The ETag changes whenever the file grows, so we only
+                    // check it once the file is ready
+                    String etag = ready ? opFile.getEtag() : null;
+                    // The check sum is calculated in the background, so it
+                    // can become known after the file has stopped changing
+                    boolean summed = ready && opFile.getCheckSum() != null;
+                    FileRecord fileRecord = this.files.get(path);
+                    if (fileRecord == null || fileRecord.ready != ready ||
+                        (ready && !etag.equals(fileRecord.etag)) ||
+                        fileRecord.summed != summed)
+                    {
+                        this.files.put(path, new FileRecord(opFile, ready, etag,
+                            summed, newVersion));
+                        this.removed.remove(path);
+                        changed = true;
+                    }
+                }
+                Iterator<Map.Entry<String, FileRecord>> it = this.files.entrySet().iterator();
+                while (it.hasNext())
+                {
+                    String path = it.next().getKey();
+                    if (!listed.contains(path))
+                    {
+                        it.remove();
+                        this.removed.put(path, newVersion);
+                        changed = true;
+                    }
+                }
+                // Forget the oldest removals if there are too many
+                Iterator<Long> rit = this.removed.values().iterator();
+                while (this.removed.size() > MAX_REMOVED_FILES)
+                {
+                    this.firstVersion = Math.max(this.firstVersion, rit.next());
+                    rit.remove();
+                }
+            }
+            
+            if (changed)
+            {
+                this.version = newVersion;
+                this.notifyAll();
+            }
+        }
+        
+        public synchronized Changes waitForChanges(JobRunner runner,
+            long since, long maxWaitMs) throws InterruptedException
+        {
+            long endTime = System.currentTimeMillis() + maxWaitMs;
+            while (true)
+            {
+                long now = System.currentTimeMillis();
+                if (now - this.lastScan >= SCAN_INTERVAL_MS)
+                {
+                    this.update(runner.getServiceInstance(), true);
+                }
+                // The client is behind, or its version is unknown
+                if (since < this.firstVersion || since != this.version || now >= endTime)
+                {
+                    break;
+                }
+                this.wait(Math.min(endTime - now, SCAN_INTERVAL_MS));
+            }
+            
+            boolean reset = since < this.firstVersion || since > this.version;
+            Changes changes = new Changes(this.version, reset, this.state,
+                this.exitCode, this.numSubJobsRunning, this.numSubJobsFinished);
+            for (FileRecord fileRecord : this.files.values())
+            {
+                if (reset || fileRecord.version > since)
+                {
+                    changes.outputFiles.add(fileRecord.opFile);
+                }
+            }
+            if (!reset)
+            {
+                for (Map.Entry<String, Long> entry : this.removed.entrySet())
+                {
+                    if (entry.getValue() > since)
+                    {
+                        changes.removed.add(entry.getKey());
+                    }
+                }
+            }
+            return changes;
+        }
+    }
+    
+    /**
+     * An output file as it was when it last changed
+     */
+    private static class FileRecord
+    {
+        private OutputFile opFile;
+        private boolean ready;
+        private String etag;
+        private boolean summed; // True if the check sum was known
+        private long version;
+        
+        public FileRecord(OutputFile opFile, boolean ready, String etag,
+            boolean summed, long version)
+        {
+            this.opFile = opFile;
+            this.ready = ready;
+            this.etag = etag;
+            this.summed = summed;
+            this.version = version;
+        }
+    }
+    
+    /**
+     * The changes to an instance since a given version.  The state, exit code
+     * and progress of sub-jobs are always given, whether or not they have
+     * changed.
+     */
+    public static class Changes
+    {
+        private long version;
+        private boolean reset;
+        private Job.State state;
+        private Integer exitCode;
+        private int numSubJobsRunning;
+        private int numSubJobsFinished;
+        private List<OutputFile> outputFiles = new ArrayList<OutputFile>();
+        private List<String> removed = new ArrayList<String>();
+        
+        private Changes(long version, boolean reset, Job.State state,
+            Integer exitCode, int numSubJobsRunning, int numSubJobsFinished)
+        {
+            this.version = version;
+            this.reset = reset;
+            this.state = state;
+            this.exitCode = exitCode;
+            this.numSubJobsRunning = numSubJobsRunning;
+            this.numSubJobsFinished = numSubJobsFinished;
+        }
+        
+        /**
+         * @return the current version of the instance, which the client gives
+         * when it next asks for changes
+         */
+        public long getVersion()
+        {
+            return this.version;
+        }
+        
+        /**
+         * @return true if the client's version was unknown, in which case the
+         * changes include all the output files and no removed files, and the
+         * client must forget the output files that it knew about
+         */
+        public boolean isReset()
+        {
+            return this.reset;
+        }
+        
+        public Job.State getState()
+        {
+            return this.state;
+        }
+        
+        public Integer getExitCode()
+        {
+            return this.exitCode;
+        }
+        
+        public int getNumSubJobsRunning()
+        {
+            return this.numSubJobsRunning;
+        }
+        
+        public int getNumSubJobsFinished()
+        {
+            return this.numSubJobsFinished;
+        }
+        
+        /**
+         * @return the output files that have appeared or changed
+         */
+        public List<OutputFile> getOutputFiles()
+        {
+            return this.outputFiles;
+        }
+        
+        /**
+         * @return the relative paths of the output files that have been
+         * removed from the list
+         */
+        public List<String> getRemoved()
+        {
+            return this.removed;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.rdg.resc.grex.config.GRexConfig;
+import uk.ac.rdg.resc.grex.config.GridServiceConfigForServer;
+import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
+import uk.ac.rdg.resc.grex.db.Job;
+
+/**
+ * Decides when service instances that users have started are actually run.
+ * The number of instances that can run at once can be limited for the whole
+ * server (the max-running-instances attribute of the server configuration)
+ * and for each service (the max-running-instances attribute of the service).
+ * An instance that is started when it cannot run goes into the QUEUED state
+ * until there is room for it.
+ *
+ * When there is room, the scheduler picks the queued instance whose owner
+ * has the fewest instances running, then the one whose group has the fewest
+ * running, then the one that has been waiting longest.  This stops a user who
+ * starts a hundred instances from holding up everyone else.
+ *
+ * While instances are queued, a thread checks every {@link #POLL_INTERVAL_MS}
+ * milliseconds whether any of the running instances have finished.  The
+ * scheduler keeps statistics on how long instances wait in the queue.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class InstanceScheduler
+{
+    private static final Log log = LogFactory.getLog(InstanceScheduler.class);
+    
+    /**
+     * Interval in milliseconds between checks for finished instances while
+     * there are instances in the queue
+     */
+    private static final long POLL_INTERVAL_MS = 1000;
+    
+    private GRexConfig config;
+    
+    // JobRunners of the instances that have been run and were not finished
+    // when we last looked
+    private final List<JobRunner> running = new ArrayList<JobRunner>();
+    
+    // JobRunners of the instances that are waiting to run, in order of arrival
+    private final List<QueuedRunner> queue = new LinkedList<QueuedRunner>();
+    
+    private Thread schedulerThread = null;
+    
+    // Statistics on the time that instances have spent in the queue
+    private long numStarted = 0;
+    private long totalQueueWaitMs = 0;
+    private long maxQueueWaitMs = 0;
+    
+    /**
+     * Runs the instance of the given JobRunner straight away if the limits
+     * allow, otherwise puts it in the QUEUED state and runs it (in another
+     * thread) when there is room.
+     */
+    public void start(JobRunner runner)
+    {
+        List<JobRunner> toStart;
+        synchronized(this)
+        {
+            this.queue.add(new QueuedRunner(runner));
+            toStart = this.admit();
+            if (!toStart.contains(runner))
+            {
+                GRexServiceInstance instance = runner.getServiceInstance();
+                log.info("Instance " + instance.getId() + " of service " +
+                    instance.getServiceName() + " has been queued: " +
+                    this.queue.size() + " instances are waiting to run");
+                instance.setState(Job.State.QUEUED);
+                runner.getInstancesStore().queueUpdate(instance);
+                if (this.schedulerThread == null)
+                {
+                    this.schedulerThread = new SchedulerThread();
+                    this.schedulerThread.start();
+                }
+            }
+        }
+        startRunners(toStart);
+    }
+    
+    /**
+     * Aborts the instance of the given JobRunner, removing it from the queue
+     * if it hasn't been run yet
+     */
+    public void abort(JobRunner runner)
+    {
+        synchronized(this)
+        {
+            for (Iterator<QueuedRunner> it = this.queue.iterator(); it.hasNext(); )
+            {
+                if (it.next().runner == runner)
+                {
+                    it.remove();
+                }
+            }
+            // There might be room for another instance now
+            this.notifyAll();
+        }
+        runner.abort();
+    }
+    
+    /**
+     * @return the number of instances that are waiting to run
+     */
+    public synchronized int getNumQueued()
+    {
+        return this.queue.size();
+    }
+    
+    /**
+     * @return the number of instances that are running (this may include
+     * instances that have finished in the last {@link #POLL_INTERVAL_MS}
+     * milliseconds)
+     */
+    public synchronized int getNumRunning()
+    {
+        return this.running.size();
+    }
+    
+    /**
+     * @return the number of instances that have been run since the server
+     * started
+     */
+    public synchronized long getNumStarted()
+    {
+        return this.numStarted;
+    }
+    
+    /**
+     * @return the mean time in milliseconds that the instances that have
+     * been run spent in the queue (zero for instances that were not queued)
+     */
+    public synchronized long getMeanQueueWaitMs()
+    {
+        return this.numStarted == 0 ? 0 : this.totalQueueWaitMs / this.numStarted;
+    }
+    
+    /**
+     * @return the longest time in milliseconds that an instance has spent in
+     * the queue
+     */
+    public synchronized long getMaxQueueWaitMs()
+    {
+        return this.maxQueueWaitMs;
+    }
+    
+    /**
+     * Moves as many instances as the limits allow from the queue to the list
+     * of running instances, fairest first.  Must be called with the lock held.
+     * @return the JobRunners that can now be started
+     */
+    private List<JobRunner> admit()
+    {
+        // Forget about the instances that have finished
+        for (Iterator<JobRunner> it = this.running.iterator(); it.hasNext(); )
+        {
+            if (it.next().getServiceInstance().isFinished())
+            {
+                it.remove();
+            }
+        }
+        
+        List<JobRunner> admitted = new ArrayList<JobRunner>();
+        while (true)
+        {
+            QueuedRunner next = null;
+            for (QueuedRunner queued : this.queue)
+            {
+                if (this.canRun(queued.runner) &&
+                    (next == null || this.isFairer(queued, next)))
+                {
+                    next = queued;
+                }
+            }
+            if (next == null)
+            {
+                return admitted;
+            }
+            this.queue.remove(next);
+            this.running.add(next.runner);
+            admitted.add(next.runner);
+            
+            long waitMs = System.currentTimeMillis() - next.queuedAt;
+            this.numStarted++;
+            this.totalQueueWaitMs += waitMs;
+            this.maxQueueWaitMs = Math.max(this.maxQueueWaitMs, waitMs);
+            if (waitMs > 0)
+            {
+                log.debug("Instance " + next.runner.getServiceInstance().getId() +
+                    " waited " + waitMs + " ms to run");
+            }
+        }
+    }
+    
+    /**
+     * @return true if the limits on the numbers of running instances allow
+     * the instance of the given JobRunner to run.  Must be called with the
+     * lock held.
+     */
+    private boolean canRun(JobRunner runner)
+    {
+        int maxRunning = this.config.getMaxRunningInstances();
+        if (maxRunning > 0 && this.running.size() >= maxRunning)
+        {
+            return false;
+        }
+        GridServiceConfigForServer gsConfig = runner.getGridServiceConfig();
+        int maxRunningForService = gsConfig.getMaxRunningInstances();
+        if (maxRunningForService > 0)
+        {
+            int numRunningForService = 0;
+            for (JobRunner r : this.running)
+            {
+                if (r.getGridServiceConfig() == gsConfig)
+                {
+                    numRunningForService++;
+                }
+            }
+            return numRunningForService < maxRunningForService;
+        }
+        return true;
+    }
+    
+    /**
+     * @return true if it would be fairer to run queued instance a than queued
+     * instance b.  Must be called with the lock held.
+     */
+    private boolean isFairer(QueuedRunner a, QueuedRunner b)
+    {
+        GRexServiceInstance instA = a.runner.getServiceInstance();
+        GRexServiceInstance instB = b.runner.getServiceInstance();
+        int ownerA = this.countRunning(instA.getOwner(), null);
+        int ownerB = this.countRunning(instB.getOwner(), null);
+        if (ownerA != ownerB)
+        {
+            return ownerA < ownerB;
+        }
+        int groupA = this.countRunning(null, instA.getGroup());
+        int groupB = this.countRunning(null, instB.getGroup());
+        if (groupA != groupB)
+        {
+            return groupA < groupB;
+        }
+        return a.queuedAt < b.queuedAt;
+    }
+    
+    /**
+     * @return the number of running instances that belong to the given owner
+     * (if not null) and the given group (if not null).  Must be called with
+     * the lock held.
+     */
+    private int countRunning(String owner, String group)
+    {
+        int count = 0;
+        for (JobRunner r : this.running)
+        {
+            GRexServiceInstance instance = r.getServiceInstance();
+            if ((owner == null || owner.equals(instance.getOwner())) &&
+                (group == null || group.equals(instance.getGroup())))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Starts the given JobRunners.  Must be called without the lock held,
+     * because starting a JobRunner can take a while (e.g. submitting a job
+     * to a queueing system).  Instances that have been aborted since they
+     * were admitted (when abort() no longer finds them in the queue) are not
+     * started.
+     */
+    private static void startRunners(List<JobRunner> runners)
+    {
+        for (JobRunner runner : runners)
+        {
+            if (runner.getServiceInstance().isFinished())
+            {
+                log.debug("Instance " + runner.getServiceInstance().getId() +
+                    " finished before it could be started");
+                continue;
+            }
+            try
+            {
+                runner.start();
+            }
+            catch (RuntimeException re)
+            {
+                log.error("Error starting instance " +
+                    runner.getServiceInstance().getId(), re);
+            }
+        }
+    }
+    
+    /**
+     * Thread that runs queued instances as the running instances finish.
+     * Stops when the queue is empty.
+     */
+    private class SchedulerThread extends Thread
+    {
+        public SchedulerThread()
+        {
+            super("instance-scheduler");
+            this.setDaemon(true);
+        }
+        
+        public void run()
+        {
+            while (true)
+            {
+                List<JobRunner> toStart;
+                synchronized(InstanceScheduler.this)
+                {
+                    try
+                    {
+                        InstanceScheduler.this.wait(POLL_INTERVAL_MS);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        // Carry on
+                    }
+                    toStart = admit();
+                    if (queue.isEmpty() && toStart.isEmpty())
+                    {
+                        // start() will create a new thread when it is needed
+                        schedulerThread = null;
+                        return;
+                    }
+                }
+                startRunners(toStart);
+            }
+        }
+    }
+    
+    /**
+     * A JobRunner that is waiting to run, with the time at which it was queued
+     */
+    private static final class QueuedRunner
+    {
+        private JobRunner runner;
+        private long queuedAt = System.currentTimeMillis();
+        
+        public QueuedRunner(JobRunner runner)
+        {
+            this.runner = runner;
+        }
+    }
+
+    /**
+     * Called by the Spring framework to set the configuration information for
+     * this server
+     */
+    public void setGrexConfig(GRexConfig config)
+    {
+        this.config = config;
+    }
+}
@@ -110,6 +110,15 @@ public interface JobRunner
      */
     public void abort();
     
+    /**
+     * Called when the server starts up for an instance that had been started
+     * but had not finished when the server last stopped.  Picks up the
+     * tracking of the instance again if its job is still running, otherwise
+     * sets the state of the instance to reflect the fact that the job has been
+     * lost.
+     */
+    public void recover();
+    
     /**
      * Cleans up the service, i.e. removes all files from the working directory.
      * Can only be called once the service has finished (or been aborted).
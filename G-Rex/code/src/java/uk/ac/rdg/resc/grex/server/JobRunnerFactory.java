@@ -32,12 +32,18 @@ import java.io.File;
 import java.lang.reflect.Constructor;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.rdg.resc.grex.config.GRexConfig;
 import uk.ac.rdg.resc.grex.config.GridServiceConfigForServer;
 import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
 import uk.ac.rdg.resc.grex.db.GRexServiceInstancesStore;
+import uk.ac.rdg.resc.grex.db.InstanceSummary;
+import uk.ac.rdg.resc.grex.db.Job;
+import uk.ac.rdg.resc.grex.exceptions.InstancesStoreException;
 import uk.ac.rdg.resc.grex.exceptions.InvalidJobRunnerException;
 import uk.ac.rdg.resc.grex.exceptions.JobTypeNotSupportedException;
 
@@ -55,11 +61,30 @@ public class JobRunnerFactory
     private static final Log log = LogFactory.getLog(JobRunnerFactory.class);
     
     /**
-     * Contains all the JobRunners that have been created, keyed by
-     * the unique ID of the GRexServiceInstance to which it belongs
+     * Interval in milliseconds between sweeps of the JobRunners for those that
+     * are no longer needed
      */
-    private final Map<Integer, JobRunner> jobRunners
-        = new Hashtable<Integer, JobRunner>();
+    private static final long SWEEP_INTERVAL_MS = 60000;
+    
+    /**
+     * Time in milliseconds after which the JobRunner of a finished instance
+     * is released if nobody has asked for it, even if the instance still has
+     * output files that haven't been downloaded
+     */
+    private static final long IDLE_TIMEOUT_MS = 600000;
+    
+    /**
+     * Contains the JobRunners that are currently in use, keyed by
+     * the unique ID of the GRexServiceInstance to which it belongs.  JobRunners
+     * are removed by sweep() once their instances have finished.
+     */
+    private final ConcurrentMap<Integer, RunnerEntry> jobRunners
+        = new ConcurrentHashMap<Integer, RunnerEntry>();
+    
+    /**
+     * The time at which the JobRunners were last swept
+     */
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
     
     /**
      * Maps job types ("local", "condor" etc) to constructors for JobRunners.
@@ -80,65 +105,216 @@ public class JobRunnerFactory
      */
     private GRexServiceInstancesStore instancesStore;
     
+    /**
+     * The scheduler that decides when instances are run, injected by the
+     * Spring framework.  Used to put instances that were queued when the
+     * server stopped back in the queue.  May be null.
+     */
+    private InstanceScheduler scheduler;
+    
     /**
      * Gets a JobRunner of the correct type for the given
      * GRexServiceInstance.  If a JobRunner already exists for this instance,
-     * it will be returned, otherwise a new one will be created.
+     * it will be returned, otherwise a new one will be created.  Looking up
+     * an existing JobRunner does not take any locks, so requests for
+     * different instances don't hold each other up.
+     */
+    public final JobRunner getRunnerForInstance(GRexServiceInstance instance)
+    {
+        this.sweepIfDue();
+        RunnerEntry entry = this.jobRunners.get(instance.getId());
+        if (entry == null)
+        {
+            // Two threads might get here at once for the same instance: we
+            // create a JobRunner in each but only the first one is kept, so
+            // everybody gets the same JobRunner.  (Creating a JobRunner is
+            // cheap: it doesn't do anything until it is started.)
+            RunnerEntry newEntry = new RunnerEntry(this.createRunner(instance));
+            entry = this.jobRunners.putIfAbsent(instance.getId(), newEntry);
+            if (entry == null)
+            {
+                entry = newEntry;
+            }
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        return entry.runner;
+    }
+    
+    /**
+     * Creates a new JobRunner of the correct type for the given instance
+     */
+    private JobRunner createRunner(GRexServiceInstance instance)
+    {
+        JobRunner runner;
+        log.info("Creating new JobRunner object for instance number " + instance.getId());
+        // Find the definition of the grid service to which this instance
+        // belongs.  This should never be null.
+        GridServiceConfigForServer gs = this.config.getGridServiceByName(instance.getServiceName());
+                    
+        if (gs == null)
+        {
+            throw new AssertionError("Internal error: gs is null in getRunnerForInstance()");
+        }
+        Constructor constructor = this.runnerConstructors.get(gs.getType());
+        if (constructor == null)
+        {
+            // Shouldn't happen: we have checked that we can support all the
+            // job types definied in the configuration object
+            throw new AssertionError("Internal error: a JobRunner for job type "
+                + gs.getType() + " cannot be found");
+        }
+        try
+        {
+            // We know this cast is safe because we have checked in setRunnerClasses()
+            runner = (JobRunner)constructor.newInstance();
+        }
+        catch(ClassCastException cce)
+        {
+            // Shouldn't happen: we have checked in setRunnerClasses()
+            throw new AssertionError("Internal error: new object is not a JobRunner");
+        }
+        catch(Exception e)
+        {
+            // Shouldn't happen: we've checked in setRunnerClasses() that
+            // the constructor is accessible.
+            throw new AssertionError("Could not instantiate JobRunner of type "
+                + constructor.getDeclaringClass() + " due to a "
+                + e.getClass());
+        }
+        // Add the instance object to the JobRunner
+        runner.setServiceInstance(instance);            
+        // Add the grid service configuration object
+        runner.setGridServiceConfig(gs);
+        // Add the persistence class so that JobRunners can save changes to state
+        runner.setInstancesStore(this.instancesStore);
+        return runner;
+    }
+    
+    /**
+     * @return the number of JobRunners that are currently held in memory
+     */
+    public int getNumRunners()
+    {
+        return this.jobRunners.size();
+    }
+    
+    /**
+     * Calls sweep() if it hasn't been called for SWEEP_INTERVAL_MS.  Only one
+     * thread will sweep at a time; the others carry on straight away.
+     */
+    private void sweepIfDue()
+    {
+        long last = this.lastSweep.get();
+        long now = System.currentTimeMillis();
+        if (now - last >= SWEEP_INTERVAL_MS && this.lastSweep.compareAndSet(last, now))
+        {
+            this.sweep(now);
+        }
+    }
+    
+    /**
+     * Releases the JobRunners of instances that have finished and whose
+     * output files have all been downloaded (and deleted), or that nobody
+     * has asked for in the last IDLE_TIMEOUT_MS.  If a released instance is
+     * needed again a new JobRunner will be created for it, which is safe
+     * because the persistent store has the final state of the instance.
      */
-    public synchronized final JobRunner getRunnerForInstance(GRexServiceInstance instance)
+    private void sweep(long now)
     {
-        JobRunner runner = this.jobRunners.get(instance.getId());
-        if (runner == null)
-        {
-            log.info("Creating new JobRunner object for instance number " + instance.getId());
-            // Find the definition of the grid service to which this instance
-            // belongs.  This should never be null.
-            GridServiceConfigForServer gs = this.config.getGridServiceByName(instance.getServiceName());
-                        
-            if (gs == null)
+        int numReleased = 0;
+        for (Map.Entry<Integer, RunnerEntry> mapEntry : this.jobRunners.entrySet())
+        {
+            RunnerEntry entry = mapEntry.getValue();
+            GRexServiceInstance instance = entry.runner.getServiceInstance();
+            if (!instance.isFinished())
             {
-                throw new AssertionError("Internal error: gs is null in getRunnerForInstance()");
+                continue;
             }
-            Constructor constructor = this.runnerConstructors.get(gs.getType());
-            if (constructor == null)
+            if (now - entry.lastAccess >= IDLE_TIMEOUT_MS || !hasOutputFiles(instance))
             {
-                // Shouldn't happen: we have checked that we can support all the
-                // job types definied in the configuration object
-                throw new AssertionError("Internal error: a JobRunner for job type "
-                    + gs.getType() + " cannot be found");
+                // Only remove the entry if it hasn't been replaced in the meantime
+                if (this.jobRunners.remove(mapEntry.getKey(), entry))
+                {
+                    numReleased++;
+                }
             }
-            try
+        }
+        if (numReleased > 0)
+        {
+            log.info("Released " + numReleased + " JobRunners of finished instances: "
+                + this.jobRunners.size() + " JobRunners remain");
+        }
+    }
+    
+    /**
+     * @return true if the given instance or any of its sub-jobs has output
+     * files that can still be downloaded
+     */
+    private static boolean hasOutputFiles(GRexServiceInstance instance)
+    {
+        if (instance.getMasterJob().getNumCurrentOutputFiles() > 0)
+        {
+            return true;
+        }
+        for (Job subJob : instance.getSubJobs())
+        {
+            if (subJob.getNumCurrentOutputFiles() > 0)
             {
-                // We know this cast is safe because we have checked in setRunnerClasses()
-                runner = (JobRunner)constructor.newInstance();
+                return true;
             }
-            catch(ClassCastException cce)
+        }
+        return false;
+    }
+    
+    /**
+     * Called by the Spring framework when the server starts up.  Finds the
+     * instances that had been started but had not finished when the server
+     * last stopped and creates JobRunners for them so that they can carry on
+     * being tracked (or be marked as failed if their processes have gone).
+     * Instances that were queued are put back in the queue.
+     */
+    public void recoverInstances()
+    {
+        for (GridServiceConfigForServer gs : this.config.getGridServices())
+        {
+            try
             {
-                // Shouldn't happen: we have checked in setRunnerClasses()
-                throw new AssertionError("Internal error: new object is not a JobRunner");
+                for (InstanceSummary summary :
+                    this.instancesStore.getInstanceSummariesByServiceName(gs.getName()))
+                {
+                    Job.State state = summary.getState();
+                    if (state == Job.State.CREATED || state.meansFinished())
+                    {
+                        continue;
+                    }
+                    GRexServiceInstance instance =
+                        this.instancesStore.getServiceInstanceById(summary.getId());
+                    if (instance == null)
+                    {
+                        continue;
+                    }
+                    JobRunner runner = this.getRunnerForInstance(instance);
+                    if (state == Job.State.QUEUED && this.scheduler != null)
+                    {
+                        log.info("Putting instance " + instance.getId()
+                            + " of service " + gs.getName() + " back in the queue");
+                        this.scheduler.start(runner);
+                    }
+                    else
+                    {
+                        log.info("Recovering instance " + instance.getId()
+                            + " of service " + gs.getName() + " in state " + state);
+                        runner.recover();
+                    }
+                }
             }
-            catch(Exception e)
+            catch(InstancesStoreException ise)
             {
-                // Shouldn't happen: we've checked in setRunnerClasses() that
-                // the constructor is accessible.
-                throw new AssertionError("Could not instantiate JobRunner of type "
-                    + constructor.getDeclaringClass() + " due to a "
-                    + e.getClass());
+                log.error("Error recovering instances of service " + gs.getName(), ise);
             }
-            // Add the instance object to the JobRunner
-            runner.setServiceInstance(instance);            
-            // Add the grid service configuration object
-            runner.setGridServiceConfig(gs);
-            // Add the persistence class so that JobRunners can save changes to state
-            runner.setInstancesStore(this.instancesStore);
-            // Now add the new job runner to the store
-            this.jobRunners.put(instance.getId(), runner);
         }
-        return runner;
     }
     
-    // TODO: need a method to remove a jobrunner from the store after a job finishes
-    
     /**
      * Called by the Spring framework to set the Map of job types ("local", 
      * "condor", etc) as set in the configuration file to Classes of
@@ -185,11 +361,13 @@ public class JobRunnerFactory
      * this server.  Checks that this JobRunnerFactory can handle all the jobTypes
      * in the configuration, throwing a JobTypeNotSupportedException if not.
      * Not that this means that Spring must call setRunnerClasses() before this
-     * method.
+     * method.  Also sets the number of sub-jobs that can be run at once on
+     * this server.
      */
     public void setGrexConfig(GRexConfig config) throws JobTypeNotSupportedException
     {
         this.config = config;
+        SubJobExecutor.getExecutor().setNumSlots(config.getLocalJobSlots());
         if (this.runnerConstructors != null)
         {
             // Spring must have injected the runnerClasses object before this one,
@@ -224,4 +402,28 @@ public class JobRunnerFactory
     {
         this.instancesStore = instancesStore;
     }
+    
+    /**
+     * Called by the Spring framework to inject the scheduler that decides
+     * when instances are run
+     */
+    public void setScheduler(InstanceScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+    
+    /**
+     * A JobRunner in the map, with the time at which it was last asked for
+     */
+    private static final class RunnerEntry
+    {
+        private final JobRunner runner;
+        private volatile long lastAccess;
+        
+        public RunnerEntry(JobRunner runner)
+        {
+            this.runner = runner;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
 }
@@ -29,25 +29,29 @@
 package uk.ac.rdg.resc.grex.server;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Date;
-import java.util.SortedSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.util.PathMatcher;
 import uk.ac.rdg.resc.grex.config.Output;
 import uk.ac.rdg.resc.grex.config.Parameter;
+import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
 import uk.ac.rdg.resc.grex.db.Job;
 
 /**
- * Runs a job on the G-Rex server itself.
- * @todo Adapt for sub-jobs or disallow somehow
+ * Runs a job on the G-Rex server itself.  If the instance has sub-jobs, the
+ * command is run once for each sub-job (in the sub-job's working directory,
+ * with the sub-job's parameters overriding those of the instance) and the
+ * master job's command is not run.  The sub-jobs are queued with the
+ * SubJobExecutor, which runs them in parallel up to the number of slots
+ * on this server, and the instance finishes when all its sub-jobs have.
+ * The processes are started by the ProcessMonitor, which connects their
+ * standard streams to files and tells us when they exit.
  * @todo Think very carefully about race conditions between state updates, 
  * particularly when erroring out.
  *
@@ -62,15 +66,26 @@ public class LocalJobRunner extends AbstractJobRunner
     
     protected Process proc; // The Process that we are running in this job
     protected long NewFilesCheckIntervalMs = 2000;
+    
+    // The processes of the sub-jobs that are running, keyed by sub-job id.
+    // Guarded by the lock on this object.
+    private final Map<Integer, Process> subJobProcs = new HashMap<Integer, Process>();
  
     /**
      * The task of the start() method is to prepare the job, then kick it off, 
      * setting the state of the job to RUNNING or ERROR before returning
+     * (or to PENDING if the instance's sub-jobs have been queued)
      */
     public void start()
     {
         log.debug("Starting execution of service instance " + this.instance.getId());
         
+        if (this.instance.getNumSubJobs() > 0)
+        {
+            this.startSubJobs();
+            return;
+        }
+        
         // Prepare the command line that will be executed
         String cmdLine = this.constructCommmandLine();
         
@@ -96,45 +111,36 @@ public class LocalJobRunner extends AbstractJobRunner
             if (!wdFile.exists())
                 log.error(wdFile.getPath() + " does not exist!");
             else {
-                this.proc = Runtime.getRuntime().exec(cmdLine, null, wdFile);
-                log.debug("Process started");
-                        
-                // Update the state of the instance
-                this.instance.setState(Job.State.RUNNING);
-           
-                // Start a thread that waits for the process to finish and grabs the
-                // exit code
-                new WaitProcess().start();
-        
-                // Start a thread that redirects the standard input data to the process
-                File stdinFile = new File(wdFile, STDIN);
                 // TODO: should we check at an earlier stage whether this exists?
-                if (stdinFile.exists())
+                File stdinFile = new File(wdFile, STDIN);
+                // Hold the lock so that we can't be told that the process has
+                // finished before we've recorded that it is running
+                synchronized(this)
                 {
-                    FileInputStream fin = new FileInputStream(stdinFile);
-                    new RedirectStream(fin, this.proc.getOutputStream(), STDIN).start();
-                }
+                    if (this.instance.isFinished())
+                    {
+                        // We've been aborted since the scheduler admitted
+                        // us: abort() holds the same lock, so checking here
+                        // means that we never start a process it can't kill
+                        log.debug("Instance " + this.instance.getId() +
+                            " has finished: not starting the process");
+                        return;
+                    }
+                    this.proc = ProcessMonitor.getMonitor().exec(cmdLine, wdFile,
+                        stdinFile.exists() ? stdinFile : null,
+                        new File(wdFile, STDOUT), new File(wdFile, STDERR),
+                        new ProcessExited());
+                    log.debug("Process started");
 
-                // Start threads to consume the output streams
-                File stdoutFile = new File(wdFile, STDOUT);
-                File stderrFile = new File(wdFile, STDERR);
-                new RedirectStream(this.proc.getInputStream(),
-                    new FileOutputStream(stdoutFile), STDOUT).start();
-                new RedirectStream(this.proc.getErrorStream(),
-                    new FileOutputStream(stderrFile), STDERR).start();
+                    // Update the state of the instance
+                    this.instance.setState(Job.State.RUNNING);
+                }
             
                 // Start thread to find out which output files or downloadable. Set the
                 // checking interval in milliseconds
                 new CheckOutputFiles(30000).start();             
             }
         }
-        catch(FileNotFoundException fnfe)
-        {
-            // Unlikely to happen
-            log.error("Can't create file for output stream", fnfe);
-            // TODO: save the error message
-                this.instance.setState(Job.State.ERROR);
-        }
         catch(IOException ioe)
         {
             log.error("Error starting process for instance " + this.instance.getId());
@@ -148,17 +154,233 @@ public class LocalJobRunner extends AbstractJobRunner
         }
     }
     
+    /**
+     * Queues all the sub-jobs of the instance to be run by the SubJobExecutor,
+     * setting the state of the instance and the sub-jobs to PENDING
+     */
+    private synchronized void startSubJobs()
+    {
+        if (this.instance.isFinished())
+        {
+            // We've been aborted since the scheduler admitted us
+            log.debug("Instance " + this.instance.getId() +
+                " has finished: not starting its sub-jobs");
+            return;
+        }
+        log.info("User " + this.instance.getOwner() + " started instance " +
+            this.instance.getId() + " of service " + this.instance.getServiceName() +
+            " with " + this.instance.getNumSubJobs() + " sub-jobs");
+        this.instance.setState(Job.State.PENDING);
+        for (Job subJob : this.instance.getSubJobs())
+        {
+            subJob.setState(Job.State.PENDING);
+            SubJobExecutor.getExecutor().submit(this.instance.getId(),
+                new RunSubJob(subJob));
+        }
+        this.saveInstance();
+        
+        // Start thread to report on the output files of the instance
+        new CheckOutputFiles(30000).start();
+    }
+    
+    /**
+     * Records that the given sub-job has finished, giving it the given state
+     * (unless it has already finished, e.g. by being aborted) and exit code
+     * (which may be null if the sub-job could not be started).  When all the
+     * sub-jobs have finished the instance finishes.
+     */
+    private synchronized void subJobFinished(Job subJob, Job.State state,
+        Integer exitCode)
+    {
+        this.subJobProcs.remove(subJob.getId());
+        if (!subJob.isFinished())
+        {
+            subJob.setState(state);
+        }
+        if (exitCode != null)
+        {
+            subJob.setExitCode(exitCode);
+        }
+        log.debug("Sub-job " + subJob.getId() + " of instance " + this.instance.getId()
+            + " finished in state " + subJob.getState() + " with exit code " + exitCode);
+        
+        this.finishIfSubJobsFinished();
+        this.saveInstance();
+    }
+    
+    /**
+     * Finishes the instance if all its sub-jobs have finished: in the ERROR
+     * state if any sub-job failed, otherwise in the FINISHED state with the
+     * first non-zero exit code of the sub-jobs (or zero).  Does not save
+     * the instance.
+     * @return true if the instance has finished
+     */
+    protected boolean finishIfSubJobsFinished()
+    {
+        if (this.instance.isFinished())
+        {
+            return true;
+        }
+        if (this.instance.getNumSubJobsFinished() == this.instance.getNumSubJobs())
+        {
+            Job.State instanceState = Job.State.FINISHED;
+            int instanceExitCode = 0;
+            for (Job job : this.instance.getSubJobs())
+            {
+                if (job.getState() == Job.State.ERROR)
+                {
+                    instanceState = Job.State.ERROR;
+                }
+                if (instanceExitCode == 0 && job.getExitCode() != null)
+                {
+                    instanceExitCode = job.getExitCode();
+                }
+            }
+            this.instance.setExitCode(instanceExitCode);
+            this.instance.setState(instanceState);
+            log.info("Instance " + this.instance.getId() + " of service " +
+                this.instance.getServiceName() + " belonging to User " +
+                this.instance.getOwner() + " has finished.");
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Task that runs a single sub-job and waits for it to finish.  This is
+     * run by a worker thread of the SubJobExecutor, which holds a slot for
+     * as long as the sub-job is running.  The exit of the process is
+     * handled by the ProcessMonitor, which releases this thread.
+     */
+    private class RunSubJob implements Runnable
+    {
+        private Job subJob;
+        
+        public RunSubJob(Job subJob)
+        {
+            this.subJob = subJob;
+        }
+        
+        public void run()
+        {
+            // The instance might have been aborted while this was queued
+            if (instance.isFinished())
+            {
+                return;
+            }
+            
+            File wdFile = this.subJob.getWorkingDirectoryFile();
+            String cmdLine = constructCommmandLine(this.subJob);
+            if (gsConfig.getRemoteHost()!="localhost") {
+                cmdLine = gsConfig.getRemoteShell() + " " + gsConfig.getRemoteHost() +
+                    " cd " + wdFile.getAbsolutePath() + "; " + cmdLine;
+            }
+            log.debug("Starting sub-job " + this.subJob.getId() + " of instance " +
+                instance.getId() + ", command = \"" + cmdLine + "\"");
+            
+            // The sub-job's standard input overrides the instance's
+            File stdinFile = new File(wdFile, STDIN);
+            if (!stdinFile.exists())
+            {
+                stdinFile = new File(instance.getWorkingDirectory(), STDIN);
+            }
+            
+            final CountDownLatch exited = new CountDownLatch(1);
+            // Hold the lock so that we can't be told that the process has
+            // finished before we've recorded that it is running
+            synchronized(LocalJobRunner.this)
+            {
+                Process subJobProc;
+                try
+                {
+                    subJobProc = ProcessMonitor.getMonitor().exec(cmdLine, wdFile,
+                        stdinFile.exists() ? stdinFile : null,
+                        new File(wdFile, STDOUT), new File(wdFile, STDERR),
+                        new ProcessMonitor.ExitListener()
+                        {
+                            public void processExited(int exitCode)
+                            {
+                                subJobFinished(subJob, Job.State.FINISHED, exitCode);
+                                exited.countDown();
+                            }
+                            
+                            public void processFailed(String message)
+                            {
+                                log.error("Error starting process for sub-job " +
+                                    subJob.getId() + " of instance " +
+                                    instance.getId() + ": " + message);
+                                subJobFinished(subJob, Job.State.ERROR, null);
+                                exited.countDown();
+                            }
+                        });
+                }
+                catch(IOException ioe)
+                {
+                    log.error("Error starting process for sub-job " + this.subJob.getId()
+                        + " of instance " + instance.getId(), ioe);
+                    subJobFinished(this.subJob, Job.State.ERROR, null);
+                    return;
+                }
+                
+                if (instance.isFinished())
+                {
+                    // We've been aborted while the process was starting
+                    subJobProc.destroy();
+                }
+                else
+                {
+                    subJobProcs.put(this.subJob.getId(), subJobProc);
+                    this.subJob.setState(Job.State.RUNNING);
+                    if (instance.getState() == Job.State.PENDING)
+                    {
+                        instance.setState(Job.State.RUNNING);
+                    }
+                    saveInstance();
+                }
+            }
+            
+            // Keep our slot until the sub-job has finished
+            boolean done = false;
+            while (!done)
+            {
+                try
+                {
+                    exited.await();
+                    done = true;
+                }
+                catch(InterruptedException ie)
+                {
+                    log.warn("Wait for sub-job interrupted");
+                }
+            }
+        }
+    }
+    
     /**
      * Constructs the full command line that will be executed
      */
     protected String constructCommmandLine()
+    {
+        return this.constructCommmandLine(this.instance.getMasterJob());
+    }
+    
+    /**
+     * Constructs the full command line that will be executed for the given
+     * job.  Parameters that are set on the job override those that are set
+     * on the instance.
+     */
+    protected String constructCommmandLine(Job job)
     {
         StringBuffer cmdLine = new StringBuffer(this.gsConfig.getCommand());
         
         // Look through all the command-line parameters, inserting the values
         for (Parameter param : this.gsConfig.getParams())
         {
-            String paramValue = this.instance.getParamValue(param.getName());
+            String paramValue = job.getParamValue(param.getName());
+            if (paramValue == null)
+            {
+                paramValue = this.instance.getParamValue(param.getName());
+            }
             
             // Don't add DRM parameters or unspecified optional parameters to command line
             if (param.isDRMparameter() || paramValue.contains(Parameter.UNSPECIFIED)) continue;
@@ -222,98 +444,44 @@ public class LocalJobRunner extends AbstractJobRunner
     }
     
     /**
-     * Simple class to read an input stream and write it to an output stream
+     * Receives the exit code of the process from the ProcessMonitor, setting
+     * the state and the exit code of the instance
      */
-    protected class RedirectStream extends Thread
+    private class ProcessExited implements ProcessMonitor.ExitListener
     {
-        private InputStream in;
-        private OutputStream out;
-        
-        public RedirectStream(InputStream in, OutputStream out, String name)
+        public void processExited(int exitCode)
         {
-            super("redirect-stream-" + instance.getId() + "-" + name);
-            this.in = in;
-            this.out = out;
-        }
-        
-        public void run()
-        {
-            log.debug("Redirecting stream");
-            try
+            log.debug("Process finished with exit code " + exitCode);
+            synchronized(LocalJobRunner.this)
             {
-                byte[] buf = new byte[1024];
-                int len;
-                while ((len = in.read(buf)) >= 0)
+                // Don't change state to FINISHED if already aborted or an
+                // error has occurred
+                // TODO: read the state from the persistent store, just to be safe?
+                if (!instance.getState().meansFinished())
                 {
-                    out.write(buf, 0, len);
+                    instance.setState(Job.State.FINISHED);
+                    log.debug("changed instance state to " + instance.getState());
                 }
+                instance.setExitCode(exitCode);
             }
-            catch(IOException ioe)
-            {
-                // Unlikely to happen
-                log.error("Error redirecting stream", ioe);
-                instance.setState(Job.State.ERROR);
-                saveInstance();
-                // TODO: store the error message?
-            }
-            finally
-            {
-                try
-                {
-                    in.close();
-                    out.close();
-                }
-                catch(IOException ioe)
-                {
-                    log.error("Error closing input or output stream in RedirectStream");
-                }
-            }
-            log.debug("Finished redirecting stream");
-        }
-    }
-    
-    /**
-     * Thread that waits for the process to finish, setting the state and the
-     * exit code
-     */
-    private class WaitProcess extends Thread
-    {
-        public WaitProcess()
-        {
-            // TODO: should be the instance and job ID
-            super("wait-" + instance.getId());
+            saveInstance();
+            log.debug("saved instance state");
+            log.info("Instance " + instance.getId() + " of service " + instance.getServiceName() +
+                    " belonging to User " + instance.getOwner() + " has finished.");
         }
-        public void run()
+        
+        public void processFailed(String message)
         {
-            boolean done = false;
-            while (!done)
+            log.error("Error starting process for instance " + instance.getId()
+                + ": " + message);
+            synchronized(LocalJobRunner.this)
             {
-                try
+                if (!instance.getState().meansFinished())
                 {
-                    log.debug("Waiting for process to finish");
-                    int exitCode = proc.waitFor();
-                    log.debug("Process finished with exit code " + exitCode);
-                    done = true;
-                    // Don't change state to FINISHED if already aborted or an
-                    // error has occurred
-                    // TODO: read the state from the persistent store, just to be safe?
-                    if (!instance.getState().meansFinished())
-                    {
-                        instance.setState(Job.State.FINISHED);
-                        log.debug("changed instance state to " + instance.getState());
-                    }
-                    instance.setExitCode(exitCode);
-                    saveInstance();
-                    log.debug("saved instance state");
-                    log.info("Instance " + instance.getId() + " of service " + instance.getServiceName() +
-                            " belonging to User " + instance.getOwner() + " has finished.");
-
-                }
-                catch(InterruptedException ie)
-                {
-                    log.warn("waitFor() interrupted");
+                    instance.setState(Job.State.ERROR);
                 }
             }
+            saveInstance();
         }
     }
     
@@ -344,8 +512,11 @@ public class LocalJobRunner extends AbstractJobRunner
                     Thread.sleep(checkIntervalMs);
                     numOutputFiles=0;
                     
-                    // Make sure our view of the instance is up to date
-                    instance = instancesStore.getServiceInstanceById(instance.getId());
+                    // Make sure our view of the instance is up to date.  We
+                    // don't replace the live copy of the instance, which the
+                    // threads that run the sub-jobs are updating.
+                    GRexServiceInstance current =
+                        instancesStore.getServiceInstanceById(instance.getId());
                                         
                     // These lists are no longer being updated so no need to clear them
                     //getOutputFiles().clear();
@@ -353,8 +524,8 @@ public class LocalJobRunner extends AbstractJobRunner
                 
                     /* Find out how many files are finished and write message to log file
                      (Used to also update sets of output files for all jobs) */
-                    updateOutputFiles(instance.getMasterJob());                    
-                    for (Job subJob : instance.getSubJobs()) updateOutputFiles(subJob);
+                    updateOutputFiles(current.getMasterJob());                    
+                    for (Job subJob : current.getSubJobs()) updateOutputFiles(subJob);
                                         
                     // Report numbers if different from last time
                     if (numOutputFiles!=prevNumOutputFiles)
@@ -384,49 +555,11 @@ public class LocalJobRunner extends AbstractJobRunner
         public void updateOutputFiles(Job job)
         {            
             
-            // Check output files belonging to this job.  The
-            // checkCurrentOutputFiles method recursively descends the directory
-            // structure in the working directory.
-            checkCurrentOutputFiles("", getOutputFiles(), job);
+            // Count the output files belonging to this job, using the
+            // index of output files rather than walking the working directory
+            numOutputFiles += job.getNumCurrentOutputFiles();
             
         }
-    
-        /**
-        * Recursive method to get the output files in the the directory whose
-        * path (relative to the instance's working directory) is given by
-        * relativeDirPath.  The results are added to the given List of OutputFiles.
-        * If relativeDirPath is not the empty string, it must end with a forward
-        * slash (irrespective of operating system).
-        */
-        private void checkCurrentOutputFiles(String relativeDirPath, SortedSet<OutputFile> files, Job job)
-        {
-            File dir = new File(job.getWorkingDirectoryFile(), relativeDirPath);
-            //log.debug("Working directory of job: " + dir.getPath());
-            for (String filename : dir.list())
-            {
-                //log.debug("Checking file or directory " + filename + "...");
-                String relativePath = relativeDirPath + filename;
-                File f = new File(dir, relativePath);
-                if (f.isDirectory())
-                {
-                    // recursively call this method
-                    // We must always use forward slashes even on Windows for the
-                    // pattern matching in getOutputFile() to work
-                    checkCurrentOutputFiles(relativePath + "/", files, job);
-                }
-                else
-                {
-                    // Check to see if this file is downloadable or deleteable
-                    OutputFile opFile = job.getOutputFile(relativePath);
-                    if (opFile != null) {
-                        numOutputFiles++;
-                        //files.add(opFile);
-                        //log.debug("Downloadable file " + opFile.getFile().getName() + 
-                        //        " will be finished " + opFile.deleteAfter() + " mins after last write");                        
-                    }
-                }
-            }
-        }
 
     }
     
@@ -435,9 +568,28 @@ public class LocalJobRunner extends AbstractJobRunner
     {
         log.debug("Destroying process for service instance " + this.instance.getId());
         // Must change the state before destroying the process otherwise there
-        // will be a race condition with the WaitProcess() thread
-        this.instance.setState(Job.State.ABORTED);
-        this.proc.destroy();
+        // will be a race condition with the ProcessExited listener
+        synchronized(this)
+        {
+            this.instance.setState(Job.State.ABORTED);
+            if (this.proc != null)
+            {
+                this.proc.destroy();
+            }
+            // Sub-jobs that haven't started yet never will
+            SubJobExecutor.getExecutor().cancel(this.instance.getId());
+            for (Job subJob : this.instance.getSubJobs())
+            {
+                if (!subJob.isFinished())
+                {
+                    subJob.setState(Job.State.ABORTED);
+                }
+            }
+            for (Process subJobProc : this.subJobProcs.values())
+            {
+                subJobProc.destroy();
+            }
+        }
         this.saveInstance();
     }
     
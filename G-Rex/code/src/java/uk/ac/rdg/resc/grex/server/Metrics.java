@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects counters and timings of the internals of the server (requests,
+ * database transactions, data transferred, runs of qsub and qstat etc) so
+ * that they can be read through the metrics endpoint (see
+ * GetOperationsController.showMetrics()).  The metrics are written in the
+ * Prometheus text format, so the server can be scraped by Prometheus or simply
+ * read by a person.
+ *
+ * Counters and timers are created the first time they are asked for and live
+ * for as long as the server.  Classes that update the same metric many times
+ * should keep a reference to it rather than looking it up each time.  Updating
+ * a metric doesn't take any locks.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class Metrics
+{
+    /**
+     * Upper bounds in seconds of the buckets of the histograms of timings
+     */
+    private static final double[] BUCKETS_S = {0.001, 0.005, 0.01, 0.05, 0.1,
+        0.5, 1, 5, 10, 60, 600};
+    
+    private static final Metrics metrics = new Metrics();
+    
+    // Families of metrics keyed by name
+    private final ConcurrentMap<String, Family> families =
+        new ConcurrentHashMap<String, Family>();
+    
+    /**
+     * Private constructor: use getMetrics()
+     */
+    private Metrics()
+    {
+    }
+    
+    /**
+     * @return the metrics of this server
+     */
+    public static Metrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    /**
+     * Gets the counter with the given name, creating it if necessary
+     * @param help a description of the counter, which is used when the
+     * counter is created
+     */
+    public Counter getCounter(String name, String help)
+    {
+        return this.getCounter(name, help, null, null);
+    }
+    
+    /**
+     * Gets the counter with the given name and value of the given label (e.g.
+     * the method of a controller), creating it if necessary
+     */
+    public Counter getCounter(String name, String help, String labelName,
+        String labelValue)
+    {
+        Family family = this.getFamily(name, help, "counter");
+        String labels = makeLabels(labelName, labelValue);
+        Object counter = family.metrics.get(labels);
+        if (counter == null)
+        {
+            Counter newCounter = new Counter();
+            counter = family.metrics.putIfAbsent(labels, newCounter);
+            if (counter == null) counter = newCounter;
+        }
+        return (Counter)counter;
+    }
+    
+    /**
+     * Gets the timer with the given name, creating it if necessary
+     * @param help a description of the timer, which is used when the
+     * timer is created
+     */
+    public Timer getTimer(String name, String help)
+    {
+        return this.getTimer(name, help, null, null);
+    }
+    
+    /**
+     * Gets the timer with the given name and value of the given label,
+     * creating it if necessary
+     */
+    public Timer getTimer(String name, String help, String labelName,
+        String labelValue)
+    {
+        Family family = this.getFamily(name, help, "histogram");
+        String labels = makeLabels(labelName, labelValue);
+        Object timer = family.metrics.get(labels);
+        if (timer == null)
+        {
+            Timer newTimer = new Timer();
+            timer = family.metrics.putIfAbsent(labels, newTimer);
+            if (timer == null) timer = newTimer;
+        }
+        return (Timer)timer;
+    }
+    
+    private Family getFamily(String name, String help, String type)
+    {
+        Family family = this.families.get(name);
+        if (family == null)
+        {
+            Family newFamily = new Family(help, type);
+            family = this.families.putIfAbsent(name, newFamily);
+            if (family == null) family = newFamily;
+        }
+        if (!family.type.equals(type))
+        {
+            throw new IllegalArgumentException(name + " is not a " + type);
+        }
+        return family;
+    }
+    
+    /**
+     * @return the labels of a metric in the Prometheus format (without the
+     * braces), or an empty string if labelName is null
+     */
+    private static String makeLabels(String labelName, String labelValue)
+    {
+        if (labelName == null)
+        {
+            return "";
+        }
+        return labelName + "=\"" + labelValue.replace("\\", "\\\\")
+            .replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+    
+    /**
+     * Writes all the counters and timers in the Prometheus text format,
+     * in order of name, followed by the gauges that this class reads from
+     * other parts of the server (sub-job slots, processes and the JVM).
+     * Callers can add their own gauges with writeGauge().
+     */
+    public void writeTo(PrintWriter out)
+    {
+        for (Map.Entry<String, Family> entry :
+            new TreeMap<String, Family>(this.families).entrySet())
+        {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.println("# HELP " + name + " " + family.help);
+            out.println("# TYPE " + name + " " + family.type);
+            for (Map.Entry<String, Object> metric :
+                new TreeMap<String, Object>(family.metrics).entrySet())
+            {
+                String labels = metric.getKey();
+                if (metric.getValue() instanceof Counter)
+                {
+                    out.println(name + braces(labels) + " "
+                        + ((Counter)metric.getValue()).get());
+                }
+                else
+                {
+                    ((Timer)metric.getValue()).writeTo(out, name, labels);
+                }
+            }
+        }
+        
+        SubJobExecutor executor = SubJobExecutor.getExecutor();
+        writeGauge(out, "grex_subjob_slots",
+            "Maximum number of sub-jobs that can run at once", executor.getNumSlots());
+        writeGauge(out, "grex_subjobs_running",
+            "Number of sub-jobs that are running", executor.getNumRunning());
+        writeGauge(out, "grex_subjobs_waiting",
+            "Number of sub-jobs that are waiting for a slot", executor.getNumWaiting());
+        writeGauge(out, "grex_processes_watched",
+            "Number of local processes that are being watched for exit",
+            ProcessMonitor.getMonitor().getNumProcesses());
+        writeGauge(out, "grex_jvm_threads",
+            "Number of live threads in the server",
+            ManagementFactory.getThreadMXBean().getThreadCount());
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        writeGauge(out, "grex_jvm_heap_used_bytes",
+            "Number of bytes of heap memory in use", heap.getUsed());
+        writeGauge(out, "grex_jvm_heap_max_bytes",
+            "Maximum number of bytes of heap memory", heap.getMax());
+    }
+    
+    /**
+     * Writes a gauge (a value that can go up and down) in the Prometheus
+     * text format
+     */
+    public static void writeGauge(PrintWriter out, String name, String help,
+        double value)
+    {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " gauge");
+        out.println(name + " " + format(value));
+    }
+    
+    private static String braces(String labels)
+    {
+        return labels.length() == 0 ? "" : "{" + labels + "}";
+    }
+    
+    /**
+     * Formats the given value without a decimal point if it is a whole number
+     */
+    private static String format(double value)
+    {
+        if (value == Math.rint(value) && !Double.isInfinite(value)
+            && Math.abs(value) < Long.MAX_VALUE)
+        {
+            return Long.toString((long)value);
+        }
+        return Double.toString(value);
+    }
+    
+    /**
+     * A set of metrics with the same name and different labels
+     */
+    private static final class Family
+    {
+        private final String help;
+        private final String type;
+        // Counters or Timers keyed by their labels
+        private final ConcurrentMap<String, Object> metrics =
+            new ConcurrentHashMap<String, Object>();
+        
+        public Family(String help, String type)
+        {
+            this.help = help;
+            this.type = type;
+        }
+    }
+    
+    /**
+     * A count of events (or of bytes) that only goes up
+     */
+    public static final class Counter
+    {
+        private final AtomicLong count = new AtomicLong();
+        
+        private Counter()
+        {
+        }
+        
+        public void increment()
+        {
+            this.count.incrementAndGet();
+        }
+        
+        public void add(long n)
+        {
+            this.count.addAndGet(n);
+        }
+        
+        public long get()
+        {
+            return this.count.get();
+        }
+    }
+    
+    /**
+     * Records the times taken by an operation, as a histogram with the
+     * buckets in BUCKETS_S.  Use it like this:
+     * <pre>
+     * long start = System.nanoTime();
+     * ...
+     * timer.recordSince(start);
+     * </pre>
+     */
+    public static final class Timer
+    {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        // Number of timings in each bucket (not cumulative).  The last element
+        // counts the timings that are longer than the largest bound.
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_S.length + 1);
+        
+        private Timer()
+        {
+        }
+        
+        /**
+         * Records the time since the given value of System.nanoTime()
+         */
+        public void recordSince(long startNanos)
+        {
+            this.record(System.nanoTime() - startNanos);
+        }
+        
+        /**
+         * Records a time in nanoseconds
+         */
+        public void record(long nanos)
+        {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS_S.length && seconds > BUCKETS_S[i])
+            {
+                i++;
+            }
+            this.buckets.incrementAndGet(i);
+            this.totalNanos.addAndGet(nanos);
+            this.count.incrementAndGet();
+        }
+        
+        private void writeTo(PrintWriter out, String name, String labels)
+        {
+            String prefix = labels.length() == 0 ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_S.length; i++)
+            {
+                cumulative += this.buckets.get(i);
+                out.println(name + "_bucket{" + prefix + "le=\"" + BUCKETS_S[i]
+                    + "\"} " + cumulative);
+            }
+            cumulative += this.buckets.get(BUCKETS_S.length);
+            out.println(name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative);
+            out.println(name + "_sum" + braces(labels) + " " + (this.totalNanos.get() / 1e9));
+            out.println(name + "_count" + braces(labels) + " " + cumulative);
+        }
+    }
+}
@@ -50,12 +50,17 @@ import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
  */
 public class OutputFile
 {
+    /**
+     * The HTTP response header in which the check sum of a file is sent to
+     * clients that download it
+     */
+    public static final String CHECKSUM_HEADER = "X-GRex-Checksum";
+    
     private String relativePath; // Path relative to the working directory of the instance
     private File file; // underlying File
     private Job job;
     private boolean appendOnly;
     private int deleteAfter;
-    private static long INITIAL_CHECKSUM=0;
     
     private static final Log log = LogFactory.getLog(OutputFile.class);
     
@@ -142,6 +147,17 @@ public class OutputFile
         return this.file.length();
     }
     
+    /**
+     * @return an entity tag for the file (as used in HTTP ETag and If-Range
+     * headers), derived from the length of the file and the time at which
+     * it was last modified.  Clients use this to check that a file has not
+     * changed before they resume downloading it.
+     */
+    public String getEtag()
+    {
+        return "\"" + this.file.length() + "-" + this.file.lastModified() + "\"";
+    }
+    
     /**
      * @return the time at which the file was last modified,
      * or the current time if the file is empty. The
@@ -196,12 +212,22 @@ public class OutputFile
     }
     
     /**
-     * @return the check sum of the file. Not yet implemented.
+     * @return the CRC-32 check sum of the contents of the file, or null if the
+     * check sum is not known.  The check sum is only given once the file will
+     * not change again (i.e. output to the file or the job has finished):
+     * a check sum of a file that is still growing would only cover part of
+     * what the client downloads.  Check sums are calculated in the background
+     * (see ChecksumCache), those of append-only files incrementally as the
+     * files grow, so this never reads the file; if the check sum is not yet
+     * up to date this returns null and a later call will give it.
      */
-    public long getCheckSum()
+    public Long getCheckSum()
     {
-        long checkSum=INITIAL_CHECKSUM;
-        return checkSum;
+        if (this.isOutputFinished() || this.job.isFinished())
+        {
+            return ChecksumCache.getCache().getChecksum(this.file, this.appendOnly);
+        }
+        return null;
     }
     
     /* These are needed to enable the OutputFile class to implement the
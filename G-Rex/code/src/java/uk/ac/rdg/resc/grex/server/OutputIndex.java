@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import uk.ac.rdg.resc.grex.config.Output;
+import uk.ac.rdg.resc.grex.db.Job;
+
+/**
+ * Index of the downloadable output files in the working directory of a job.
+ * Building the list of output files by walking the whole working directory
+ * and matching every file against every output pattern is expensive for
+ * large jobs and parameter sweeps, and the list is needed for every status
+ * request.  The index is therefore kept up to date incrementally: a directory
+ * is only listed again when its modification time has changed (which happens
+ * when entries are added to or removed from it), and each file is only matched
+ * against the output patterns once, when it first appears.  The index is
+ * refreshed at most once every {@link #REFRESH_INTERVAL_MS} milliseconds,
+ * plus once more after the job has finished so that clients always see the
+ * final set of output files.
+ *
+ * There is one index per working directory, shared by all the copies of the
+ * Job that are read from the database (see {@link #getIndex}).  Indexes that
+ * have not been used for a while are discarded.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class OutputIndex
+{
+    private static final Log log = LogFactory.getLog(OutputIndex.class);
+    
+    /**
+     * Minimum interval in milliseconds between refreshes of the index
+     */
+    private static final long REFRESH_INTERVAL_MS = 1000;
+    
+    /**
+     * Directories that were modified less than this number of milliseconds
+     * before they were listed are listed again on the next refresh, even if
+     * their modification time hasn't changed, because some filesystems only
+     * record modification times to the nearest second or two.
+     */
+    private static final long MTIME_GRANULARITY_MS = 2000;
+    
+    /**
+     * Indexes that have not been used for this number of milliseconds are
+     * discarded
+     */
+    private static final long IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+    
+    /**
+     * Indexes, keyed by the path to the working directory of the job
+     */
+    private static final Map<String, OutputIndex> indexes = new HashMap<String, OutputIndex>();
+    private static long lastSweep = System.currentTimeMillis();
+    
+    // AntPathMatcher keeps no state so can be shared
+    private static final PathMatcher pathMatcher = new AntPathMatcher();
+    
+    private File workingDir;
+    private long lastAccess;
+    
+    // The patterns of the output files and the corresponding Outputs from the
+    // configuration, which are only derived again if the parameters of the
+    // job change
+    private List<String> patterns = null;
+    private List<Output> outputs = null;
+    
+    // The directories that we have listed, keyed by their paths relative to
+    // the working directory ("" for the working directory itself, otherwise
+    // ending in a forward slash)
+    private Map<String, Listing> dirs = new HashMap<String, Listing>();
+    
+    // The downloadable files that we have found, in the order in which we
+    // found them, and the Outputs that they match
+    private Map<String, Output> files = new LinkedHashMap<String, Output>();
+    
+    private long lastRefresh = 0;
+    private boolean refreshedAfterFinish = false;
+    
+    /**
+     * Private constructor: use getIndex()
+     */
+    private OutputIndex(File workingDir)
+    {
+        this.workingDir = workingDir;
+    }
+    
+    /**
+     * @return the OutputIndex for the working directory of the given job,
+     * creating a new (empty) one if necessary
+     */
+    public static OutputIndex getIndex(Job job)
+    {
+        long now = System.currentTimeMillis();
+        synchronized(indexes)
+        {
+            if (now - lastSweep > IDLE_TIMEOUT_MS)
+            {
+                // Discard indexes that haven't been used for a while
+                for (Iterator<OutputIndex> it = indexes.values().iterator(); it.hasNext(); )
+                {
+                    if (now - it.next().lastAccess > IDLE_TIMEOUT_MS)
+                    {
+                        it.remove();
+                    }
+                }
+                lastSweep = now;
+            }
+            OutputIndex index = indexes.get(job.getWorkingDirectory());
+            if (index == null)
+            {
+                index = new OutputIndex(job.getWorkingDirectoryFile());
+                indexes.put(job.getWorkingDirectory(), index);
+            }
+            index.lastAccess = now;
+            return index;
+        }
+    }
+    
+    /**
+     * @return the downloadable files in the working directory of the given job,
+     * in the order in which they were found
+     * @param job The job that owns the working directory (this is the job
+     * that will be associated with the returned OutputFiles)
+     * @param outputs The output definitions from the configuration of the service
+     * @param maxFiles The maximum number of files to return
+     */
+    public synchronized List<OutputFile> getOutputFiles(Job job, List<Output> outputs,
+        int maxFiles)
+    {
+        this.refresh(job, outputs);
+        List<OutputFile> opFiles = new ArrayList<OutputFile>();
+        for (String relativePath : this.files.keySet())
+        {
+            if (opFiles.size() >= maxFiles) break;
+            Output op = this.files.get(relativePath);
+            opFiles.add(new OutputFile(relativePath, job, op.isAppendOnly(), op.deleteAfter()));
+        }
+        return opFiles;
+    }
+    
+    /**
+     * @return the total number of downloadable files in the working directory
+     * of the given job
+     */
+    public synchronized int getNumOutputFiles(Job job, List<Output> outputs)
+    {
+        this.refresh(job, outputs);
+        return this.files.size();
+    }
+    
+    /**
+     * @return an OutputFile for the given path relative to the working directory
+     * of the given job, or null if the path does not match any of the outputs
+     * or is a directory.  This does not use or refresh the list of files.
+     */
+    public synchronized OutputFile getOutputFile(Job job, List<Output> outputs,
+        String relativePath)
+    {
+        this.derivePatterns(job, outputs);
+        Output op = this.match(relativePath);
+        if (op == null || new File(this.workingDir, relativePath).isDirectory())
+        {
+            return null;
+        }
+        return new OutputFile(relativePath, job, op.isAppendOnly(), op.deleteAfter());
+    }
+    
+    /**
+     * Brings the index up to date, unless it has been refreshed very recently
+     */
+    private void refresh(Job job, List<Output> outputs)
+    {
+        this.derivePatterns(job, outputs);
+        long now = System.currentTimeMillis();
+        boolean finished = job.isFinished();
+        if (now - this.lastRefresh < REFRESH_INTERVAL_MS &&
+            (this.refreshedAfterFinish || !finished))
+        {
+            return;
+        }
+        this.update("", now);
+        this.lastRefresh = now;
+        this.refreshedAfterFinish = finished;
+        // Let the check sums of the append-only files catch up with any
+        // data that have been appended since the last refresh
+        for (Map.Entry<String, Output> entry : this.files.entrySet())
+        {
+            if (entry.getValue().isAppendOnly())
+            {
+                ChecksumCache.getCache().track(new File(this.workingDir, entry.getKey()));
+            }
+        }
+    }
+    
+    /**
+     * Derives the patterns for the output files from the given output definitions
+     * and the parameters of the job.  If the patterns have changed since we last
+     * derived them, the index is cleared.
+     */
+    private void derivePatterns(Job job, List<Output> outputs)
+    {
+        List<String> newPatterns = new ArrayList<String>();
+        for (Output op : outputs)
+        {
+            newPatterns.add(getPattern(op, job));
+        }
+        if (!newPatterns.equals(this.patterns) || !outputs.equals(this.outputs))
+        {
+            log.debug("Output patterns for " + this.workingDir.getPath() + " are " + newPatterns);
+            this.patterns = newPatterns;
+            this.outputs = new ArrayList<Output>(outputs);
+            this.dirs.clear();
+            this.files.clear();
+            this.lastRefresh = 0;
+        }
+    }
+    
+    /**
+     * @return the pattern for files that match the given output definition.
+     * If the output is linked to a parameter, the pattern comes from the value
+     * of the parameter.  Additional characters may have been specified before
+     * and after the parameter identifier (i.e. ${<paramName>}) in GRexConfig.xml,
+     * wildcards for example, e.g. "*${<paramName>}.dat".  Returns null if the
+     * output is linked to a parameter that has not been set.
+     */
+    private static String getPattern(Output op, Job job)
+    {
+        if (op.getLinkedParameterName() == null)
+        {
+            return op.getName();
+        }
+        String paramValue = job.getParamValue(op.getLinkedParameterName());
+        if (paramValue == null)
+        {
+            return null;
+        }
+        int i1 = op.getName().indexOf("${");
+        int i2 = op.getName().indexOf("}");
+        return op.getName().substring(0, Math.max(i1, 0)) + paramValue +
+            op.getName().substring(i2 + 1);
+    }
+    
+    /**
+     * @return the Output that matches the given relative path, or null if there
+     * is no match.  If the path matches more than one output, the later outputs
+     * take priority.
+     */
+    private Output match(String relativePath)
+    {
+        Output match = null;
+        for (int i = 0; i < this.patterns.size(); i++)
+        {
+            String pattern = this.patterns.get(i);
+            if (pattern != null && pathMatcher.match(pattern, relativePath))
+            {
+                match = this.outputs.get(i);
+            }
+        }
+        return match;
+    }
+    
+    /**
+     * Recursive method that brings the index up to date for the directory
+     * with the given relative path and its subdirectories.  We must always
+     * use forward slashes in relative paths, even on Windows, for the pattern
+     * matching to work.
+     */
+    private void update(String relativeDirPath, long now)
+    {
+        File dir = new File(this.workingDir, relativeDirPath);
+        long lastModified = dir.lastModified();
+        Listing listing = this.dirs.get(relativeDirPath);
+        if (listing != null && listing.lastModified == lastModified &&
+            listing.listedAt - lastModified > MTIME_GRANULARITY_MS)
+        {
+            // The contents of the directory have not changed
+            for (String subdir : listing.subdirs)
+            {
+                this.update(relativeDirPath + subdir + "/", now);
+            }
+            return;
+        }
+        
+        String[] names = dir.list();
+        if (names == null)
+        {
+            // The directory has been deleted
+            this.forget(relativeDirPath);
+            return;
+        }
+        Listing newListing = new Listing(lastModified, now);
+        for (String name : names)
+        {
+            if (listing != null && listing.files.contains(name))
+            {
+                newListing.files.add(name);
+            }
+            else if (listing != null && listing.subdirs.contains(name))
+            {
+                newListing.subdirs.add(name);
+            }
+            else if (new File(dir, name).isDirectory())
+            {
+                newListing.subdirs.add(name);
+            }
+            else
+            {
+                // This is a new file: check to see if it is downloadable
+                newListing.files.add(name);
+                String relativePath = relativeDirPath + name;
+                Output op = this.match(relativePath);
+                if (op != null)
+                {
+                    this.files.put(relativePath, op);
+                }
+            }
+        }
+        // Remove the files and directories that have disappeared
+        if (listing != null)
+        {
+            for (String name : listing.files)
+            {
+                if (!newListing.files.contains(name))
+                {
+                    this.files.remove(relativeDirPath + name);
+                }
+            }
+            for (String name : listing.subdirs)
+            {
+                if (!newListing.subdirs.contains(name))
+                {
+                    this.forget(relativeDirPath + name + "/");
+                }
+            }
+        }
+        this.dirs.put(relativeDirPath, newListing);
+        for (String subdir : newListing.subdirs)
+        {
+            this.update(relativeDirPath + subdir + "/", now);
+        }
+    }
+    
+    /**
+     * Removes the directory with the given relative path, and everything in it,
+     * from the index
+     */
+    private void forget(String relativeDirPath)
+    {
+        Listing listing = this.dirs.remove(relativeDirPath);
+        if (listing != null)
+        {
+            for (String name : listing.files)
+            {
+                this.files.remove(relativeDirPath + name);
+            }
+            for (String name : listing.subdirs)
+            {
+                this.forget(relativeDirPath + name + "/");
+            }
+        }
+    }
+    
+    /**
+     * The contents of a directory when we last listed it
+     */
+    private static class Listing
+    {
+        private long lastModified; // The modification time of the directory
+        private long listedAt;     // The time at which we listed the directory
+        private Set<String> files = new HashSet<String>();
+        private Set<String> subdirs = new HashSet<String>();
+        
+        public Listing(long lastModified, long listedAt)
+        {
+            this.lastModified = lastModified;
+            this.listedAt = listedAt;
+        }
+    }
+}
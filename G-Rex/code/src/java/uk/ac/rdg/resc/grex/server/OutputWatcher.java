@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.rdg.resc.grex.db.GRexServiceInstance;
+
+/**
+ * Watches output files that are being downloaded while they are still being
+ * written, so that the threads that are streaming them to clients can sleep
+ * until there is more data to send.  A single thread checks the lengths of
+ * all the files that are being waited on at short intervals (each file is
+ * only checked once per interval, however many clients are waiting for it).
+ * JobRunners tell the watcher when the state of an instance changes (see
+ * AbstractJobRunner.saveInstance()) so that waiting clients find out
+ * immediately when a job has finished, without polling the database.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class OutputWatcher
+{
+    private static final Log log = LogFactory.getLog(OutputWatcher.class);
+    
+    /**
+     * Interval in milliseconds between checks on the lengths of the files
+     */
+    private static final long POLL_INTERVAL_MS = 100;
+    
+    private static final OutputWatcher watcher = new OutputWatcher();
+    
+    /**
+     * The clients that are currently waiting for files to grow
+     */
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+    
+    private Thread watcherThread = null;
+    
+    /**
+     * Private constructor: use getWatcher()
+     */
+    private OutputWatcher()
+    {
+    }
+    
+    /**
+     * @return the OutputWatcher that is shared by all downloads
+     */
+    public static OutputWatcher getWatcher()
+    {
+        return watcher;
+    }
+    
+    /**
+     * Blocks until the given file is longer than the given length, the state
+     * of the given instance changes, or the given time has elapsed, whichever
+     * comes first.
+     * @param file The file that is being read
+     * @param length The number of bytes that have been read from the file so far
+     * @param instanceId The id of the instance to which the file belongs
+     * @param maxWaitMs The maximum time to wait in milliseconds
+     * @throws InterruptedException if the calling thread was interrupted while
+     * waiting
+     */
+    public void waitForGrowth(File file, long length, int instanceId, long maxWaitMs)
+        throws InterruptedException
+    {
+        Waiter waiter = new Waiter(file, length, instanceId);
+        synchronized(this)
+        {
+            this.waiters.add(waiter);
+            if (this.watcherThread == null)
+            {
+                this.watcherThread = new WatcherThread();
+                this.watcherThread.start();
+            }
+            this.notifyAll();
+        }
+        try
+        {
+            waiter.await(maxWaitMs);
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                this.waiters.remove(waiter);
+            }
+        }
+    }
+    
+    /**
+     * Called by JobRunners when the state of an instance has changed.  Wakes
+     * up all the clients that are waiting for output from this instance.
+     */
+    public void instanceChanged(GRexServiceInstance instance)
+    {
+        List<Waiter> toWake = new ArrayList<Waiter>();
+        synchronized(this)
+        {
+            for (Waiter waiter : this.waiters)
+            {
+                if (waiter.instanceId == instance.getId())
+                {
+                    toWake.add(waiter);
+                }
+            }
+        }
+        for (Waiter waiter : toWake)
+        {
+            waiter.wake();
+        }
+    }
+    
+    /**
+     * A client that is waiting for a file to grow
+     */
+    private static class Waiter
+    {
+        private File file;
+        private long length;
+        private int instanceId;
+        private boolean woken = false;
+        
+        public Waiter(File file, long length, int instanceId)
+        {
+            this.file = file;
+            this.length = length;
+            this.instanceId = instanceId;
+        }
+        
+        public synchronized void await(long maxWaitMs) throws InterruptedException
+        {
+            long endTime = System.currentTimeMillis() + maxWaitMs;
+            long remaining = maxWaitMs;
+            while (!this.woken && remaining > 0)
+            {
+                this.wait(remaining);
+                remaining = endTime - System.currentTimeMillis();
+            }
+        }
+        
+        public synchronized void wake()
+        {
+            this.woken = true;
+            this.notifyAll();
+        }
+    }
+    
+    /**
+     * Thread that checks the lengths of the files that clients are waiting
+     * for and wakes up the clients when the files grow
+     */
+    private class WatcherThread extends Thread
+    {
+        public WatcherThread()
+        {
+            super("output-watcher");
+            this.setDaemon(true);
+        }
+        
+        public void run()
+        {
+            while (true)
+            {
+                List<Waiter> current;
+                synchronized(OutputWatcher.this)
+                {
+                    while (waiters.isEmpty())
+                    {
+                        try
+                        {
+                            OutputWatcher.this.wait();
+                        }
+                        catch(InterruptedException ie)
+                        {
+                            // Ignore
+                        }
+                    }
+                    current = new ArrayList<Waiter>(waiters);
+                }
+                // Check the length of each file only once
+                Map<File, Long> lengths = new HashMap<File, Long>();
+                for (Waiter waiter : current)
+                {
+                    Long length = lengths.get(waiter.file);
+                    if (length == null)
+                    {
+                        length = waiter.file.length();
+                        lengths.put(waiter.file, length);
+                    }
+                    if (length > waiter.length)
+                    {
+                        waiter.wake();
+                    }
+                }
+                try
+                {
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+                catch(InterruptedException ie)
+                {
+                    log.debug("Output watcher interrupted");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Starts the processes of local jobs with their standard streams connected to
+ * files, and tells JobRunners when the processes exit.  A single thread
+ * watches all the processes, so running a job does not need a thread of its
+ * own to wait for the process or to copy its output.
+ *
+ * Where possible (i.e. where there is a /bin/sh) the process is started by
+ * a shell that connects its standard input, output and error directly to
+ * the files, so the data never pass through the JVM.  The arguments are
+ * passed to the shell as positional parameters, never as part of the shell
+ * script, so they are not interpreted by the shell: the command line is split
+ * into words in exactly the same way as by Runtime.exec(String).
+ *
+ * Runtime.exec() then succeeds even if the command cannot be run, because it
+ * is the shell that tries to run it: the shell exits with code 127 if the
+ * command cannot be found and 126 if it cannot be executed.  These exit codes
+ * are therefore reported to the listener as a failure to start the process
+ * (as if Runtime.exec() had thrown an IOException), not as the exit code of
+ * the command.  The shell reserves these codes for this purpose, so commands
+ * should not use them.
+ *
+ * If there is no shell, the output streams are copied to the files by the monitor thread,
+ * which reads whatever data are available from each process in turn using
+ * large buffers.  The standard input file is then copied to the process by
+ * a separate thread, because writing to a process can block.
+ *
+ * Java 5 cannot wait for several processes at once, so the monitor thread
+ * checks at short intervals whether each process has exited.  The listener is
+ * only told that the process has exited once its output is in the files.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class ProcessMonitor
+{
+    private static final Log log = LogFactory.getLog(ProcessMonitor.class);
+    
+    /**
+     * Interval in milliseconds between checks on the processes when there
+     * is no output to copy
+     */
+    private static final long POLL_INTERVAL_MS = 200;
+    
+    /**
+     * Size of the buffer used to copy output from processes to files
+     */
+    private static final int BUFFER_SIZE = 65536;
+    
+    private static final String SHELL = "/bin/sh";
+    
+    // The start of the shell script that replaces the shell with the command
+    // (given as positional parameters).  The redirections to and from the
+    // files are appended by exec()
+    private static final String REDIRECT_SCRIPT = "exec \"$0\" \"$@\"";
+    
+    // Exit codes with which the shell reports that it could not run the command
+    private static final int SHELL_COMMAND_NOT_EXECUTABLE = 126;
+    private static final int SHELL_COMMAND_NOT_FOUND = 127;
+    
+    private static final ProcessMonitor monitor = new ProcessMonitor();
+    
+    private final List<WatchedProcess> processes = new ArrayList<WatchedProcess>();
+    private final byte[] buf = new byte[BUFFER_SIZE]; // Only used by the monitor thread
+    private Thread monitorThread = null;
+    
+    /**
+     * Private constructor: use getMonitor()
+     */
+    private ProcessMonitor()
+    {
+    }
+    
+    /**
+     * @return the monitor that is shared by all LocalJobRunners
+     */
+    public static ProcessMonitor getMonitor()
+    {
+        return monitor;
+    }
+    
+    /**
+     * Starts the given command line in the given working directory, with its
+     * standard output and error going to the given files (which are created
+     * or truncated) and its standard input read from the given file.
+     * @param stdinFile the file to use as standard input, or null if the
+     * process has no standard input
+     * @param listener will be notified (by the monitor thread) when the
+     * process exits, or if it turns out that the command could not be run
+     * @return the process that has been started
+     * @throws IOException if the process could not be started
+     */
+    public Process exec(String cmdLine, File wd, File stdinFile, File stdoutFile,
+        File stderrFile, ExitListener listener) throws IOException
+    {
+        WatchedProcess wp;
+        if (new File(SHELL).exists())
+        {
+            StringBuffer script = new StringBuffer(REDIRECT_SCRIPT);
+            script.append(" >" + quote(stdoutFile) + " 2>" + quote(stderrFile));
+            if (stdinFile != null)
+            {
+                script.append(" <" + quote(stdinFile));
+            }
+            List<String> cmdArray = new ArrayList<String>();
+            cmdArray.add(SHELL);
+            cmdArray.add("-c");
+            cmdArray.add(script.toString());
+            StringTokenizer tok = new StringTokenizer(cmdLine);
+            while (tok.hasMoreTokens())
+            {
+                cmdArray.add(tok.nextToken());
+            }
+            Process proc = Runtime.getRuntime().exec(
+                cmdArray.toArray(new String[cmdArray.size()]), null, wd);
+            // The process's streams are not connected to us
+            proc.getOutputStream().close();
+            proc.getInputStream().close();
+            proc.getErrorStream().close();
+            wp = new WatchedProcess(proc, null, null, listener);
+            wp.command = cmdArray.size() > 3 ? cmdArray.get(3) : "";
+        }
+        else
+        {
+            Process proc = Runtime.getRuntime().exec(cmdLine, null, wd);
+            wp = new WatchedProcess(proc, new FileOutputStream(stdoutFile),
+                new FileOutputStream(stderrFile), listener);
+            if (stdinFile == null)
+            {
+                proc.getOutputStream().close();
+            }
+            else
+            {
+                new CopyStdin(new FileInputStream(stdinFile), proc.getOutputStream()).start();
+            }
+        }
+        synchronized(this)
+        {
+            this.processes.add(wp);
+            if (this.monitorThread == null)
+            {
+                this.monitorThread = new MonitorThread();
+                this.monitorThread.start();
+            }
+        }
+        return wp.proc;
+    }
+    
+    /**
+     * @return the number of processes that are being watched
+     */
+    public synchronized int getNumProcesses()
+    {
+        return this.processes.size();
+    }
+    
+    /**
+     * @return the path of the given file in single quotes, for use in a
+     * shell script
+     */
+    private static String quote(File file)
+    {
+        return "'" + file.getAbsolutePath().replace("'", "'\\''") + "'";
+    }
+    
+    /**
+     * Copies all the data that are available from the given process stream
+     * to the given file stream, without blocking
+     * @return true if any data were copied
+     */
+    private boolean pump(InputStream in, OutputStream out) throws IOException
+    {
+        boolean copied = false;
+        int available;
+        while ((available = in.available()) > 0)
+        {
+            int len = in.read(this.buf, 0, Math.min(available, this.buf.length));
+            if (len < 0)
+            {
+                break;
+            }
+            out.write(this.buf, 0, len);
+            copied = true;
+        }
+        return copied;
+    }
+    
+    /**
+     * Thread that checks all the processes in turn, copying their output
+     * (if necessary) and notifying the listeners of processes that have
+     * exited.  Stops when there are no processes to watch.
+     */
+    private class MonitorThread extends Thread
+    {
+        public MonitorThread()
+        {
+            super("process-monitor");
+            this.setDaemon(true);
+        }
+        
+        public void run()
+        {
+            while (true)
+            {
+                WatchedProcess[] watched;
+                synchronized(ProcessMonitor.this)
+                {
+                    if (processes.isEmpty())
+                    {
+                        // exec() will start a new thread when it is needed
+                        monitorThread = null;
+                        return;
+                    }
+                    watched = processes.toArray(new WatchedProcess[processes.size()]);
+                }
+                
+                boolean copied = false;
+                for (WatchedProcess wp : watched)
+                {
+                    Integer exitCode = wp.getExitCode();
+                    try
+                    {
+                        // If the process has exited all its output is
+                        // already in the pipes, so this gets all of it
+                        copied |= wp.pumpOutput();
+                    }
+                    catch (IOException ioe)
+                    {
+                        log.error("Error copying output of process", ioe);
+                    }
+                    if (exitCode != null)
+                    {
+                        wp.closeOutput();
+                        synchronized(ProcessMonitor.this)
+                        {
+                            processes.remove(wp);
+                        }
+                        try
+                        {
+                            if (wp.command != null &&
+                                (exitCode == SHELL_COMMAND_NOT_FOUND ||
+                                 exitCode == SHELL_COMMAND_NOT_EXECUTABLE))
+                            {
+                                wp.listener.processFailed("Could not run " + wp.command
+                                    + (exitCode == SHELL_COMMAND_NOT_FOUND ?
+                                        ": command not found" : ": permission denied"));
+                            }
+                            else
+                            {
+                                wp.listener.processExited(exitCode);
+                            }
+                        }
+                        catch (RuntimeException re)
+                        {
+                            log.error("Error handling exit of process", re);
+                        }
+                    }
+                }
+                
+                if (!copied)
+                {
+                    try
+                    {
+                        Thread.sleep(POLL_INTERVAL_MS);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        // Carry on
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * A process that we are watching, with the files to which its output is
+     * being copied (if we are copying it)
+     */
+    private class WatchedProcess
+    {
+        private Process proc;
+        private OutputStream stdout; // null if the process writes to the file itself
+        private OutputStream stderr;
+        private ExitListener listener;
+        private String command = null; // The command run by the shell, or null
+                                       // if the process wasn't started by a shell
+        
+        public WatchedProcess(Process proc, OutputStream stdout,
+            OutputStream stderr, ExitListener listener)
+        {
+            this.proc = proc;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.listener = listener;
+        }
+        
+        /**
+         * @return the exit code of the process, or null if it is still running
+         */
+        public Integer getExitCode()
+        {
+            try
+            {
+                return this.proc.exitValue();
+            }
+            catch (IllegalThreadStateException itse)
+            {
+                return null;
+            }
+        }
+        
+        /**
+         * Copies the output that is available from the process to the files
+         * @return true if any data were copied
+         */
+        public boolean pumpOutput() throws IOException
+        {
+            if (this.stdout == null)
+            {
+                return false;
+            }
+            boolean copied = pump(this.proc.getInputStream(), this.stdout);
+            copied |= pump(this.proc.getErrorStream(), this.stderr);
+            return copied;
+        }
+        
+        /**
+         * Closes the streams from the process and to the files
+         */
+        public void closeOutput()
+        {
+            if (this.stdout == null)
+            {
+                return;
+            }
+            try
+            {
+                this.proc.getInputStream().close();
+                this.proc.getErrorStream().close();
+                this.stdout.close();
+                this.stderr.close();
+            }
+            catch (IOException ioe)
+            {
+                log.error("Error closing output of process", ioe);
+            }
+        }
+    }
+    
+    /**
+     * Thread that copies a standard input file to a process (only used if we
+     * can't connect the file to the process directly)
+     */
+    private static class CopyStdin extends Thread
+    {
+        private InputStream in;
+        private OutputStream out;
+        
+        public CopyStdin(InputStream in, OutputStream out)
+        {
+            super("copy-stdin");
+            this.setDaemon(true);
+            this.in = in;
+            this.out = out;
+        }
+        
+        public void run()
+        {
+            try
+            {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = this.in.read(buf)) >= 0)
+                {
+                    this.out.write(buf, 0, len);
+                }
+            }
+            catch (IOException ioe)
+            {
+                // The process might have exited without reading all its input
+                log.debug("Error copying standard input to process: " + ioe.getMessage());
+            }
+            finally
+            {
+                try
+                {
+                    this.in.close();
+                    this.out.close();
+                }
+                catch (IOException ioe)
+                {
+                    // Ignore
+                }
+            }
+        }
+    }
+    
+    /**
+     * Interface for objects that want to know when a process exits
+     */
+    interface ExitListener
+    {
+        /**
+         * Called by the monitor thread when the process has exited and all
+         * its output has been written to the files
+         */
+        public void processExited(int exitCode);
+        
+        /**
+         * Called by the monitor thread instead of processExited() if the
+         * process turns out not to have been started because the command
+         * could not be found or executed (i.e. the situations in which
+         * exec() would otherwise throw an IOException)
+         */
+        public void processFailed(String message);
+    }
+}
@@ -31,6 +31,7 @@ package uk.ac.rdg.resc.grex.server;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +39,7 @@ import uk.ac.rdg.resc.grex.db.Job;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import uk.ac.rdg.resc.grex.config.Option;
@@ -47,7 +49,11 @@ import uk.ac.rdg.resc.grex.exceptions.InstancesStoreException;
 import uk.ac.rdg.resc.grex.server.LocalJobRunner.CheckOutputFiles;
 
 /**
- * Runs a Sun Grid Engine job.
+ * Runs a Sun Grid Engine job.  If the instance has sub-jobs they are submitted
+ * together as the tasks of a single array job ("qsub -t 1-N"): task n runs
+ * sub-job n-1 in the sub-job's working directory and writes its exit code to
+ * a marker file there when it finishes.  The states of the tasks are tracked
+ * through the SGEMonitor, using the same run of qstat as all other jobs.
  *
  * @author Dan Bretherton
  * $Revision$
@@ -61,16 +67,20 @@ public class SGEJobRunner extends LocalJobRunner
     private static final String SUBMIT_SCRIPT_NAME = "submit.sh";
     private static final Pattern QSUB_SUCCESS_PATTERN =
         Pattern.compile("Your job ([0-9]*).*");
+    private static final Pattern QSUB_ARRAY_SUCCESS_PATTERN =
+        Pattern.compile("Your job-array ([0-9]*)\\..*");
+    // The file in the working directory of a sub-job to which the array job
+    // task writes the exit code of the sub-job
+    private static final String EXIT_CODE_FILE_NAME = "grex_exit_code";
+    // The file in the working directory of the instance to which we write the
+    // SGE job identifier, so that we can find the job again after a restart
+    private static final String JOB_ID_FILE_NAME = "grex_sge_job_id";
+    // Times taken by runs of qsub, including reading the output
+    private static final Metrics.Timer QSUB_TIME = Metrics.getMetrics().getTimer(
+        "grex_sge_command_duration_seconds", "Time taken by runs of SGE commands",
+        "command", "qsub");
     private static final Pattern QSUB_FAILURE_PATTERN_1 =
         Pattern.compile("qsub: Unknown option ");  // Not used at the moment. A non-empty error stream means there is an error.
-    /*private static final Pattern QSTAT_PATTERN =
-        Pattern.compile("[ ]*([0-9]*)[ ]*[^ \t\n\f\r]*[ ]*[^ \t\n\f\r]*[ ]*[^ \t\n\f\r]*[ ]*([^0-9]*).*");*/
-    private static final Pattern QSTAT_PATTERN =
-        Pattern.compile("[ ]*([0-9]*)[ ]*[^ \t\n\f\r]*[ ]*[^ \t\n\f\r]*[ ]*[^ \t\n\f\r]*[ ]*([^0-9]*).*");
-    private static final Pattern QSTAT_PATTERN2 =
-        Pattern.compile("[ ]*([0-9]*).*");
-    // Example below
-    //  50280 0.52500 UMABQXL000 cll          qw    11/29/2007 10:21:54                                    4
     private int sgeJobID=0;
     private int SGE_SUCCESS=0;
     private int SGE_FAILURE=1; // An arbitrary non zero value, nothing to do with SGE
@@ -115,10 +125,7 @@ public class SGEJobRunner extends LocalJobRunner
         File wdFile = new File(this.instance.getWorkingDirectory());
         
         // Find out if we need to execute SGE commands on a remote submit host
-        if (gsConfig.getRemoteHost()!="localhost") {
-            qsubCommand = gsConfig.getRemoteShell() + " " + gsConfig.getRemoteHost() + " cd " + wdFile.getAbsolutePath() + "; qsub";
-            qstatCommand = gsConfig.getRemoteShell() + " " + gsConfig.getRemoteHost() + " qstat";
-        }
+        setSGECommands(wdFile);
         
         // Create script to be submitted
         try {            
@@ -184,8 +191,25 @@ public class SGEJobRunner extends LocalJobRunner
                 pstream.println("#$ -N " + jobName);
             }
             
-            // Run application script. Must contain command to launch application (e.g. mpirun)
-            pstream.println(cmdLine);
+            if (this.instance.getNumSubJobs() > 0) {
+                // Run the sub-jobs as the tasks of an array job.  Task n runs
+                // sub-job n-1 and leaves its exit code in the sub-job's
+                // working directory.
+                pstream.println("#$ -t 1-" + this.instance.getNumSubJobs());
+                pstream.println("case $SGE_TASK_ID in");
+                for (Job subJob : this.instance.getSubJobs()) {
+                    pstream.println((subJob.getId() + 1) + ")");
+                    pstream.println("    cd " + subJob.getWorkingDirectory() + " || exit 1");
+                    pstream.println("    " + constructCommmandLine(subJob));
+                    pstream.println("    ;;");
+                }
+                pstream.println("esac");
+                pstream.println("echo $? > " + EXIT_CODE_FILE_NAME);
+            }
+            else {
+                // Run application script. Must contain command to launch application (e.g. mpirun)
+                pstream.println(cmdLine);
+            }
             // End of script notification
             pstream.println("echo \"End of\" $0");
             pstream.println("date");            
@@ -208,6 +232,7 @@ public class SGEJobRunner extends LocalJobRunner
         String line;
         InputStream is;
         BufferedReader buf;
+        long start = System.nanoTime();
         try {
             // Issue qsub command
             Process proc = Runtime.getRuntime().exec(qsubCommand + " " + submitFile.getPath(), null, wdFile);
@@ -247,11 +272,14 @@ public class SGEJobRunner extends LocalJobRunner
                         log.debug("qsub output: " + line);
                         // Check to see if the job has been submitted
                         Matcher m = QSUB_SUCCESS_PATTERN.matcher(line);
+                        if (!m.matches()) m = QSUB_ARRAY_SUCCESS_PATTERN.matcher(line);
                         if (m.matches()) {
                             foundMatch=true;
                             sgeJobID = Integer.parseInt(m.group(1));
                             log.debug("Detected SGE job identifier: " + sgeJobID);
+                            writeJobID(wdFile);
                             this.instance.setState(Job.State.PENDING);
+                            for (Job subJob : this.instance.getSubJobs()) subJob.setState(Job.State.PENDING);
                             this.saveInstance();
                             log.debug("Instance state is now " + this.instance.getState());                        
                         }
@@ -283,239 +311,304 @@ public class SGEJobRunner extends LocalJobRunner
             this.saveInstance();
             log.debug("Instance state is now " + this.instance.getState().name());
         }            
+        QSUB_TIME.recordSince(start);
            
-        // Start a thread that waits for the job to finish and monitors status via qstat.
-        // Sets instance state and saves instance every time status changes.
-        // This thread uses qstatStreamReader threads to check the output of qstat.
-        if (!this.instance.getState().meansFinished()) new MonitorJob(10000).start();
-                    
+        // Register the job with the monitor that tracks the status of SGE jobs
+        // and start the thread that checks the output files
+        if (!this.instance.getState().meansFinished()) monitorJob();
+             
+    }
+    
+    /**
+     * Picks up an SGE job that was submitted before the server was restarted.
+     * SGE carries on running the job while the server is down, so we just
+     * need to find the job identifier that we wrote to the working directory
+     * and register the job with the monitor again.  If the job has finished in
+     * the meantime the monitor will tell us straight away.  If we can't find
+     * the job identifier (e.g. the server stopped before qsub returned) the job
+     * is lost and the instance is put in the ERROR state.
+     */
+    public void recover()
+    {
+        File wdFile = new File(this.instance.getWorkingDirectory());
+        Integer jobID = readJobID(wdFile);
+        if (jobID == null) {
+            super.recover();
+            return;
+        }
+        sgeJobID = jobID.intValue();
+        setSGECommands(wdFile);
+        log.info("Recovered SGE job number " + sgeJobID + " for instance " + this.instance.getId());
+        monitorJob();
+    }
+    
+    /**
+     * Sets the commands used to run qsub and qstat, which run through the
+     * remote shell if the SGE submit host is not this machine
+     */
+    private void setSGECommands(File wdFile)
+    {
+        if (gsConfig.getRemoteHost()!="localhost") {
+            qsubCommand = gsConfig.getRemoteShell() + " " + gsConfig.getRemoteHost() + " cd " + wdFile.getAbsolutePath() + "; qsub";
+            qstatCommand = gsConfig.getRemoteShell() + " " + gsConfig.getRemoteHost() + " qstat";
+        }
+    }
+    
+    /**
+     * Registers the job with the monitor that tracks the status of SGE jobs
+     * via qstat.  The monitor is shared by all jobs on the same submit
+     * host and tells us when the status of our job changes.  Also starts the
+     * thread that reports on the output files.
+     */
+    private void monitorJob()
+    {
+        log.debug("Waiting for SGE job to finish");
+        if (this.instance.getNumSubJobs() > 0) {
+            SGEMonitor.getMonitor(qstatCommand).registerArray(sgeJobID,
+                this.instance.getNumSubJobs(), new ArrayStatusListener());
+        }
+        else {
+            SGEMonitor.getMonitor(qstatCommand).register(sgeJobID, new StatusListener());
+        }
         // Start thread to find out which output files can be deleted. Set the
         // checking interval in milliseconds.
-        if (!this.instance.getState().meansFinished()) new CheckOutputFiles(30000).start();
-             
+        new CheckOutputFiles(30000).start();
+    }
+    
+    /**
+     * Writes the SGE job identifier to a file in the working directory of
+     * the instance so that recover() can find it
+     */
+    private void writeJobID(File wdFile)
+    {
+        PrintStream pstream = null;
+        try {
+            pstream = new PrintStream(new FileOutputStream(new File(wdFile, JOB_ID_FILE_NAME)));
+            pstream.println(sgeJobID);
+        }
+        catch (IOException ioe) {
+            log.warn("Could not write SGE job identifier for instance "
+                + this.instance.getId() + ": " + ioe.getMessage());
+        }
+        finally {
+            if (pstream != null) pstream.close();
+        }
+    }
+    
+    /**
+     * @return the SGE job identifier that was written to the working directory
+     * of the instance, or null if it can't be read
+     */
+    private Integer readJobID(File wdFile)
+    {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(new File(wdFile, JOB_ID_FILE_NAME)));
+            String line = reader.readLine();
+            return line == null ? null : Integer.valueOf(line.trim());
+        }
+        catch (IOException ioe) {
+            return null;
+        }
+        catch (NumberFormatException nfe) {
+            return null;
+        }
+        finally {
+            if (reader != null) {
+                try { reader.close(); } catch (IOException ioe) {}
+            }
+        }
     }
 
 
     /**
-     * Thread that monitors SGE job using qstat. Sets the instance state and the
-     * SGE exit code.  Saves instance to persistant store every time state changes
+     * Receives changes to the status of the SGE job from the SGEMonitor.
+     * Sets the instance state and the SGE exit code.  Saves instance to
+     * persistant store every time state changes
      */
-    private class MonitorJob extends Thread
+    private class StatusListener implements SGEMonitor.JobListener
     {
-        private long checkIntervalMs;
-        private uk.ac.rdg.resc.grex.db.Job.State oldState, newState;
+        public void jobStateChanged(String sgeState)
+        {
+            Job.State newState;
+            if (sgeState == null) {
+                /* Job is not in the SGE system any more. This is not a very
+                 * robust way to find out if a job has finished, but unfortunately
+                 * we will have to rely on this for the time being.  See comments
+                 * in SGEMonitor.
+                 */
+                log.info("Job number " + sgeJobID + " has finished.");
+                newState = Job.State.FINISHED;
+            }
+            else if (sgeState.contains("t") || sgeState.contains("w")) {
+                log.info("Job number " + sgeJobID + " is waiting to run");
+                newState = Job.State.PENDING;
+            }
+            else if (sgeState.contains("r")) {
+                log.info("Job number " + sgeJobID + " is running");
+                newState = Job.State.RUNNING;
+            }
+            else if (sgeState.contains("d")) {
+                log.info("Job number " + sgeJobID + " was deleted");
+                newState = Job.State.ABORTED;
+            }
+            else if (sgeState.contains("E")) {
+                log.info("Job number " + sgeJobID + " is in the error state");
+                newState = Job.State.ERROR;
+                exitCode = SGE_FAILURE;
+            }
+            else {
+                return;
+            }
+            updateState(newState);
+        }
+        
+        public void qstatFailed(IOException ioe)
+        {
+            log.error("Error running qstat: " + ioe.getMessage());
+            instance.setState(Job.State.ERROR);
+            instance.setExitCode(SGE_FAILURE);
+            saveInstance();
+            log.debug("Instance state is now " + instance.getState().name());
+        }
         
-        public MonitorJob(long checkIntervalMs)
+        /**
+         * Sets the state of the instance and saves it if the state has changed
+         */
+        private void updateState(Job.State newState)
         {
-            // TODO: should be the instance and job ID
-            super("monitor-" + instance.getId());
-            this.checkIntervalMs = checkIntervalMs;
+            try {
+                // Make sure our view of the instance is up to date
+                instance = instancesStore.getServiceInstanceById(instance.getId());
+            }
+            catch (InstancesStoreException ise) {
+                log.error("Error retrieving instance from persistant store: " + ise.toString());
+            }
+            Job.State oldState = instance.getState();
+            if (oldState.meansFinished()) {
+                // The instance has finished by some other means (e.g. it has
+                // been aborted) so we don't need to track the job any more
+                SGEMonitor.getMonitor(qstatCommand).unregister(sgeJobID);
+                return;
+            }
+            if (newState != oldState) {
+                log.debug("Status has changed from " + oldState.name() + " to " + newState.name() + ". Saving to persistant store...");
+                instance.setExitCode(exitCode);
+                instance.setState(newState);
+                saveInstance();
+            }
+            if (newState.meansFinished()) {
+                SGEMonitor.getMonitor(qstatCommand).unregister(sgeJobID);
+            }
         }
-        public void run()
+    }
+
+    /**
+     * Receives changes to the states of the tasks of an SGE array job from
+     * the SGEMonitor.  Sets the states and exit codes of the corresponding
+     * sub-jobs and the overall state of the instance, and saves the instance
+     * once for each set of changes.
+     */
+    private class ArrayStatusListener implements SGEMonitor.TaskListener
+    {
+        public void tasksChanged(Map<Integer, String> sgeStates)
         {
-            log.debug("Waiting for SGE job to finish");
-            String line;
-            InputStream is;
-            BufferedReader buf;
-            Process proc;
-            Integer SGEjobID = new Integer(sgeJobID) ;
-            boolean foundMatch=false;
-            boolean foundJob=false;
-            boolean qstatError=false;
+            try {
+                // Make sure our view of the instance is up to date
+                instance = instancesStore.getServiceInstanceById(instance.getId());
+            }
+            catch (InstancesStoreException ise) {
+                log.error("Error retrieving instance from persistant store: " + ise.toString());
+            }
+            if (instance.getState().meansFinished()) {
+                // The instance has finished by some other means (e.g. it has
+                // been aborted) so we don't need to track the job any more
+                SGEMonitor.getMonitor(qstatCommand).unregister(sgeJobID);
+                return;
+            }
             
-            while (!instance.getState().meansFinished()) 
-            {                
-                try {
-                    // Make sure our view of the instance is up to date
-                    instance = instancesStore.getServiceInstanceById(instance.getId());                    
-                    oldState = instance.getState();
-                    newState = oldState;
-                    
-                    // Wait for the required time then run qstat to get SGE job information
-                    Thread.sleep(checkIntervalMs);
+            for (Map.Entry<Integer, String> task : sgeStates.entrySet()) {
+                Job subJob = instance.getSubJob(task.getKey() - 1);
+                if (subJob == null || subJob.isFinished()) continue;
+                String sgeState = task.getValue();
+                if (sgeState == null) {
+                    // The task has finished: its exit code should be in
+                    // the marker file, unless it never ran the sub-job
+                    Integer taskExitCode = readExitCode(subJob);
+                    if (taskExitCode == null) {
+                        log.error("No exit code for task " + task.getKey() +
+                            " of job number " + sgeJobID);
+                        subJob.setExitCode(SGE_FAILURE);
+                        subJob.setState(Job.State.ERROR);
+                    }
+                    else {
+                        subJob.setExitCode(taskExitCode);
+                        subJob.setState(Job.State.FINISHED);
+                    }
                 }
-                catch (InstancesStoreException ise) {
-                    log.error("Error retrieving instance from persistant store: " + ise.toString());
+                else if (sgeState.contains("t") || sgeState.contains("w")) {
+                    subJob.setState(Job.State.PENDING);
                 }
-                catch (InterruptedException ie) {
-                    log.error("Thread sleep interrupted: " + ie.toString());
+                else if (sgeState.contains("r")) {
+                    subJob.setState(Job.State.RUNNING);
                 }
-                
-                // Run qstat command
-                try {
-                    //log.debug("Running qstat...");
-                    proc = Runtime.getRuntime().exec(qstatCommand);
-                        
-                    // Check for errors
-                    line = null;
-                    qstatError=false;
-                    is=proc.getErrorStream();
-                    buf = new BufferedReader(new InputStreamReader(is));
-                    do {
-                        line = buf.readLine();
-                        if (line != null) {
-                            log.debug("Error running qtat: " + line);
-                            qstatError=true;
-                        }
-                    } while (line != null);
-                    buf.close();
-                                
-                    // See if job is listed in qstat output. If it is get the job state
-                    if (!newState.meansFinished() && !qstatError) {
-                        line = null;
-                        is=proc.getInputStream();
-                        buf = new BufferedReader(new InputStreamReader(is));
-                        foundJob=false;
-                        do {
-                            line = buf.readLine();
-                            //log.debug("Looking for " + SGEjobID.toString() + " in qstat -s z output: \"" + line + "\"");
-                            if (line == null) continue;
-                            // Check qstat output
-                            Matcher m = QSTAT_PATTERN.matcher(line);
-                            if (m.matches()) {
-                                if (m.group(1).contains(SGEjobID.toString())) {
-                                    //log.debug("Status of job number " + sgeJobID + " is " + m.group(2).toString());
-                                    foundJob=true;
-                                    if (m.group(2).contains("t") || m.group(2).contains("w")) {
-                                        if (instance.getState() != Job.State.PENDING) {
-                                            log.info("Job number " + sgeJobID + " is waiting to run");
-                                            newState = Job.State.PENDING;
-                                            log.debug("Instance state is now " + newState.name());
-                                        }
-                                    }
-                                    else if (m.group(2).contains("r")) {
-                                        if (instance.getState() != Job.State.RUNNING) {
-                                            log.info("Job number " + sgeJobID + " is running");
-                                            newState = Job.State.RUNNING;
-                                            log.debug("Instance state is now " + newState.name());
-                                        }
-                                    }                                    
-                                    else if (m.group(2).contains("d")) {
-                                        if (instance.getState() != Job.State.ABORTED) {
-                                            log.info("Job number " + sgeJobID + " was deleted");
-                                            newState = Job.State.ABORTED;
-                                            log.debug("Instance state is now " + newState.name());
-                                        }
-                                    }                                    
-                                    else if (m.group(2).contains("E")) {
-                                        if (instance.getState() != Job.State.ERROR) {
-                                            log.info("Job number " + sgeJobID + " is in the error state");
-                                            newState = Job.State.ERROR;
-                                            exitCode=SGE_FAILURE;
-                                            log.debug("Instance state is now " + newState.name());
-                                        }
-                                    }
-                                }
-                            }
-                        } while (line != null);
-                        buf.close();
-                        
-                        if (!foundJob && !qstatError) {
-                            /* Job is not in the SGE system any more. This is not a very
-                             * robust way to find out if a job has finished, but unfortunately
-                             * we will have to rely on this for the time being.  See comments
-                             * about running "qstat -s z" via ssh below.
-                             */
-                            if (instance.getState() != Job.State.FINISHED) {
-                                log.info("Job number " + sgeJobID + " has finished.");
-                                newState = Job.State.FINISHED;
-                                log.debug("Instance state is now " + newState.name());
-                            }                            
-                        }
-                    } // end of "if (instance.getState().meansFinished()) ..."                    
-                    
-                    // Run qstat -s z to find out if job has finished
-                    /*
-                     * The command "qstat -s z" does not work when executed via ssh for
-                     * some reason.  Checking output of "qstat -s z" is a more robust way to
-                     * find out if a job has finished than looking for the job not being
-                     * listed by qstat.  This is because the output from the "q" commands
-                     * is not always up to date.  That means, for example, that a job could
-                     * be submitted successfully but not show up in the qstat listing for a
-                     * few seconds.
-                     */
-                    /*
-                    log.debug("Running qstat -s z ...");
-                    //proc = Runtime.getRuntime().exec(qstatCommand + " -s z");
-                    log.debug("Exit value from qstat = " + proc.exitValue());
-                        
-                    // Check for errors
-                    line = null;
-                    is=proc.getErrorStream();
-                    buf = new BufferedReader(new InputStreamReader(is));
-                    do {
-                        line = buf.readLine();
-                        if (line != null) {
-                            if (instance.getState() != Job.State.ERROR) {
-                                log.error("Error running qtat -s z: " + line);
-                                newState = Job.State.ERROR;
-                                exitCode = SGE_FAILURE;
-                                log.debug("Instance state is now " + newState.name());
-                            }
-                        }
-                    } while (line != null);
-                    buf.close();
-                    
-                    // Now see if job is listed in qstat -s z output. If it is the job has ended
-                    if (!newState.meansFinished()) {
-                        line = null;
-                        //log.debug("Looking for " + SGEjobID.toString() + " in qstat -s z output: \"" + line + "\"");
-                        is=proc.getInputStream();
-                        buf = new BufferedReader(new InputStreamReader(is));
-                        foundMatch=false;
-                        do {
-                            line = buf.readLine();
-                            if (line == null) continue;
-                            // Check qstat output
-                            Matcher m = QSTAT_PATTERN2.matcher(line);
-                            if (m.matches()) {
-                                foundMatch=true;
-                                if (m.group(1).contains(SGEjobID.toString())) {
-                                    if (instance.getState() != Job.State.FINISHED) {
-                                        log.info("Job number " + sgeJobID + " has finished.");
-                                        newState = Job.State.FINISHED;
-                                        log.debug("Instance state is now " + newState.name());
-                                    }
-                                }
-                            }
-                        } while (line != null);
-                        buf.close();
-                        if (!foundMatch) {
-                            // This should never happen. There is always something output by
-                            // qstat -s z even if there are no jobs running at all
-                            log.error("Error running qstat -s z. No matches found in output stream");
-                            instance.setState(Job.State.ERROR);
-                            instance.setExitCode(SGE_FAILURE);
-                            saveInstance();
-                            log.debug("Instance state is now " + instance.getState());                        
-                        }
-                        
-                    } // end of "if (instance.getState().meansFinished()) ..."
-                     */
+                else if (sgeState.contains("d")) {
+                    subJob.setState(Job.State.ABORTED);
                 }
-                catch(IOException ioe)
-                {
-                    if (log.isDebugEnabled())
-                    {
-                        ioe.printStackTrace();
-                    }
-                    log.error("Error running qstat: " + ioe.getMessage());
-                    instance.setState(Job.State.ERROR);
-                    instance.setExitCode(SGE_FAILURE);
-                    saveInstance();
-                    log.debug("Instance state is now " + instance.getState().name());
-                }                        
-                                    
-                // Save instance if state has changed
-                if (newState.name().compareTo(oldState.name()) != 0) {
-                    log.debug("Status has changed from " + oldState.name() + " to " + newState.name() + ". Saving to persistant store...");
-                    instance.setExitCode(exitCode);
-                    instance.setState(newState);
-                    saveInstance();
+                else if (sgeState.contains("E")) {
+                    subJob.setExitCode(SGE_FAILURE);
+                    subJob.setState(Job.State.ERROR);
                 }
-                
-            } // End of while loop for periodic state check
-        } // End of run method
-    } // End of MonitorJob class
+            }
+            
+            // The instance finishes when all its sub-jobs have finished and
+            // is running if any of its sub-jobs are
+            if (finishIfSubJobsFinished()) {
+                log.info("Job number " + sgeJobID + " has finished.");
+                SGEMonitor.getMonitor(qstatCommand).unregister(sgeJobID);
+            }
+            else if (instance.getNumSubJobsRunning() > 0) {
+                instance.setState(Job.State.RUNNING);
+            }
+            log.debug(instance.getNumSubJobsRunning() + " tasks of job number " + sgeJobID +
+                " are running and " + instance.getNumSubJobsFinished() + " have finished");
+            saveInstance();
+        }
+        
+        public void qstatFailed(IOException ioe)
+        {
+            log.error("Error running qstat: " + ioe.getMessage());
+            instance.setState(Job.State.ERROR);
+            instance.setExitCode(SGE_FAILURE);
+            saveInstance();
+            log.debug("Instance state is now " + instance.getState().name());
+        }
+        
+        /**
+         * @return the exit code that the task left in the working directory
+         * of the given sub-job, or null if it cannot be read
+         */
+        private Integer readExitCode(Job subJob)
+        {
+            File exitCodeFile = new File(subJob.getWorkingDirectoryFile(), EXIT_CODE_FILE_NAME);
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(exitCodeFile));
+                String line = reader.readLine();
+                return line == null ? null : Integer.valueOf(line.trim());
+            }
+            catch (IOException ioe) {
+                return null;
+            }
+            catch (NumberFormatException nfe) {
+                return null;
+            }
+            finally {
+                if (reader != null) {
+                    try { reader.close(); } catch (IOException ioe) {}
+                }
+            }
+        }
+    }
 
 } // End of SGEJobRunner class
\ No newline at end of file
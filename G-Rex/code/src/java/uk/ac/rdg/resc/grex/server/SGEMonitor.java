@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Monitors the state of Sun Grid Engine jobs using qstat.  A single monitor
+ * is shared by all the SGEJobRunners that use the same qstat command (i.e.
+ * the same submit host), so qstat is run once per interval however many jobs
+ * are being tracked.  The output is parsed once and the states of the jobs
+ * are passed to the registered listeners, but only when they change.
+ *
+ * The interval between runs of qstat is adaptive: it starts at
+ * {@link #MIN_INTERVAL_MS} and doubles (up to {@link #MAX_INTERVAL_MS})
+ * every time qstat shows that nothing has changed.  It goes back to the
+ * minimum when a job changes state or a new job is registered.
+ *
+ * A job is assumed to have finished when it is no longer listed by qstat.
+ * ("qstat -s z" would be more robust but does not work when run via ssh.)
+ * The output of qstat is not always up to date, so a job that has just been
+ * submitted might not be listed for a few seconds: we only decide that a job
+ * has finished if it was listed before, or if it is missing from the output
+ * of two runs of qstat in a row.
+ *
+ * Array jobs are tracked task by task (see {@link #registerArray registerArray()}).
+ * qstat lists the pending tasks of an array job as ranges on one line and
+ * each running task on its own line; a task that is no longer listed while
+ * its job still is has finished.
+ *
+ * @author Dan Bretherton
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class SGEMonitor
+{
+    private static final Log log = LogFactory.getLog(SGEMonitor.class);
+    
+    /**
+     * Minimum interval in milliseconds between runs of qstat
+     */
+    static final long MIN_INTERVAL_MS = 5000;
+    
+    /**
+     * Maximum interval in milliseconds between runs of qstat
+     */
+    static final long MAX_INTERVAL_MS = 60000;
+    
+    /**
+     * Times taken by runs of qstat, including reading and parsing the output
+     */
+    private static final Metrics.Timer QSTAT_TIME = Metrics.getMetrics().getTimer(
+        "grex_sge_command_duration_seconds", "Time taken by runs of SGE commands",
+        "command", "qstat");
+    
+    // Matches the job ID, the state and the rest of the line (submission
+    // time, queue, slots and task IDs) in a line of qstat output.  Examples below
+    //  50280 0.52500 UMABQXL000 cll          qw    11/29/2007 10:21:54                                    4
+    //  50281 0.52500 UMABQXL000 cll          r     11/29/2007 10:25:02 all.q@node12                       1 3
+    //  50281 0.52500 UMABQXL000 cll          qw    11/29/2007 10:21:54                                    1 4-100:1
+    private static final Pattern QSTAT_PATTERN =
+        Pattern.compile("[ ]*([0-9]*)[ ]*[^ \t\n\f\r]*[ ]*[^ \t\n\f\r]*[ ]*[^ \t\n\f\r]*[ ]*([^0-9]*)(.*)");
+    
+    /**
+     * Monitors, keyed by qstat command
+     */
+    private static final Map<String, SGEMonitor> monitors = new HashMap<String, SGEMonitor>();
+    
+    private String qstatCommand;
+    private Map<Integer, TrackedJob> jobs = new HashMap<Integer, TrackedJob>();
+    private long intervalMs = MIN_INTERVAL_MS;
+    private Thread pollerThread = null;
+    
+    /**
+     * Private constructor: use getMonitor()
+     */
+    private SGEMonitor(String qstatCommand)
+    {
+        this.qstatCommand = qstatCommand;
+    }
+    
+    /**
+     * @return the monitor that uses the given qstat command (e.g. "qstat" or
+     * "ssh gorgon qstat"), creating it if necessary
+     */
+    public static SGEMonitor getMonitor(String qstatCommand)
+    {
+        synchronized(monitors)
+        {
+            SGEMonitor monitor = monitors.get(qstatCommand);
+            if (monitor == null)
+            {
+                monitor = new SGEMonitor(qstatCommand);
+                monitors.put(qstatCommand, monitor);
+            }
+            return monitor;
+        }
+    }
+    
+    /**
+     * Starts tracking the SGE job with the given ID.  The given listener will
+     * be notified when the job changes state.
+     */
+    public synchronized void register(int sgeJobID, JobListener listener)
+    {
+        this.jobs.put(sgeJobID, new TrackedJob(sgeJobID, listener));
+        this.intervalMs = MIN_INTERVAL_MS;
+        if (this.pollerThread == null)
+        {
+            this.pollerThread = new Poller();
+            this.pollerThread.start();
+        }
+    }
+    
+    /**
+     * Starts tracking the SGE array job with the given ID, whose tasks are
+     * numbered from 1 to numTasks.  The given listener will be notified when
+     * tasks change state.  The job is tracked until all its tasks have
+     * finished.
+     */
+    public synchronized void registerArray(int sgeJobID, int numTasks, TaskListener listener)
+    {
+        this.jobs.put(sgeJobID, new TrackedJob(sgeJobID, numTasks, listener));
+        this.intervalMs = MIN_INTERVAL_MS;
+        if (this.pollerThread == null)
+        {
+            this.pollerThread = new Poller();
+            this.pollerThread.start();
+        }
+    }
+    
+    /**
+     * Stops tracking the SGE job with the given ID.  Does nothing if the job
+     * is not being tracked.
+     */
+    public synchronized void unregister(int sgeJobID)
+    {
+        this.jobs.remove(sgeJobID);
+    }
+    
+    /**
+     * Runs qstat and parses its output
+     * @return a Map of SGE job IDs to the states of the jobs and their tasks,
+     * or null if qstat reported an error
+     * @throws IOException if qstat could not be run
+     */
+    private Map<Integer, QstatEntry> runQstat() throws IOException
+    {
+        long start = System.nanoTime();
+        Process proc = Runtime.getRuntime().exec(this.qstatCommand);
+        try
+        {
+            // Read the output stream before the error stream: the output can be
+            // long and qstat would block if we didn't read it
+            Map<Integer, QstatEntry> states = new HashMap<Integer, QstatEntry>();
+            BufferedReader buf = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+            String line;
+            while ((line = buf.readLine()) != null)
+            {
+                Matcher m = QSTAT_PATTERN.matcher(line);
+                if (m.matches() && m.group(1).length() > 0)
+                {
+                    int sgeJobID = Integer.parseInt(m.group(1));
+                    String state = m.group(2).trim();
+                    QstatEntry entry = states.get(sgeJobID);
+                    if (entry == null)
+                    {
+                        entry = new QstatEntry(state);
+                        states.put(sgeJobID, entry);
+                    }
+                    for (int taskID : parseTaskIDs(m.group(3)))
+                    {
+                        entry.taskStates.put(taskID, state);
+                    }
+                }
+            }
+            buf.close();
+            
+            boolean qstatError = false;
+            buf = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
+            while ((line = buf.readLine()) != null)
+            {
+                log.debug("Error running qstat: " + line);
+                qstatError = true;
+            }
+            buf.close();
+            return qstatError ? null : states;
+        }
+        finally
+        {
+            proc.destroy();
+            QSTAT_TIME.recordSince(start);
+        }
+    }
+    
+    /**
+     * Finds the task IDs at the end of a line of qstat output.  The given
+     * string is the part of the line after the state: the submission or start
+     * time, then the queue (only for running jobs), the number of slots and,
+     * for array jobs, the task IDs, e.g. "4-100:1" or "3" or "1,5-9:2".
+     * @return the IDs of the tasks, or an empty list if this is not an array
+     * job (or the task IDs cannot be parsed)
+     */
+    private static List<Integer> parseTaskIDs(String rest)
+    {
+        List<Integer> taskIDs = new ArrayList<Integer>();
+        String[] tokens = rest.trim().split("\\s+");
+        int i = 2; // Skip the date and time
+        if (i < tokens.length && !tokens[i].matches("[0-9]+"))
+        {
+            i++; // Skip the queue
+        }
+        i++; // Skip the number of slots
+        if (i >= tokens.length)
+        {
+            return taskIDs;
+        }
+        try
+        {
+            for (String range : tokens[i].split(","))
+            {
+                int step = 1;
+                int colon = range.indexOf(':');
+                if (colon >= 0)
+                {
+                    step = Integer.parseInt(range.substring(colon + 1));
+                    range = range.substring(0, colon);
+                }
+                int dash = range.indexOf('-');
+                if (dash < 0)
+                {
+                    taskIDs.add(Integer.parseInt(range));
+                }
+                else
+                {
+                    int last = Integer.parseInt(range.substring(dash + 1));
+                    for (int t = Integer.parseInt(range.substring(0, dash)); t <= last; t += step)
+                    {
+                        taskIDs.add(t);
+                    }
+                }
+            }
+        }
+        catch(NumberFormatException nfe)
+        {
+            log.debug("Could not parse task IDs " + tokens[i]);
+            taskIDs.clear();
+        }
+        return taskIDs;
+    }
+    
+    /**
+     * Thread that runs qstat periodically while there are jobs to track
+     */
+    private class Poller extends Thread
+    {
+        public Poller()
+        {
+            super("sge-monitor");
+            this.setDaemon(true);
+        }
+        
+        public void run()
+        {
+            try
+            {
+                this.poll();
+            }
+            finally
+            {
+                // If we stopped because of an unexpected error, register()
+                // must start a new thread when it is next called
+                synchronized(SGEMonitor.this)
+                {
+                    if (pollerThread == this)
+                    {
+                        pollerThread = null;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Runs qstat periodically until there are no jobs to track
+         */
+        private void poll()
+        {
+            while (true)
+            {
+                long sleepMs;
+                synchronized(SGEMonitor.this)
+                {
+                    if (jobs.isEmpty())
+                    {
+                        // register() will start a new thread when it is needed
+                        pollerThread = null;
+                        return;
+                    }
+                    sleepMs = intervalMs;
+                }
+                try
+                {
+                    Thread.sleep(sleepMs);
+                }
+                catch(InterruptedException ie)
+                {
+                    log.error("SGE monitor interrupted: " + ie.toString());
+                }
+                
+                TrackedJob[] tracked;
+                synchronized(SGEMonitor.this)
+                {
+                    tracked = jobs.values().toArray(new TrackedJob[0]);
+                }
+                if (tracked.length == 0)
+                {
+                    continue;
+                }
+                
+                Map<Integer, QstatEntry> states;
+                try
+                {
+                    states = runQstat();
+                }
+                catch(IOException ioe)
+                {
+                    log.error("Error running qstat: " + ioe.getMessage());
+                    for (TrackedJob job : tracked)
+                    {
+                        unregister(job.sgeJobID);
+                        notifyQstatFailed(job, ioe);
+                    }
+                    continue;
+                }
+                if (states == null)
+                {
+                    // qstat reported an error: try again next time
+                    continue;
+                }
+                
+                // Tell the listeners about any changes
+                boolean changed = false;
+                for (TrackedJob job : tracked)
+                {
+                    QstatEntry entry = states.get(job.sgeJobID);
+                    if (job.taskListener != null)
+                    {
+                        changed |= updateTasks(job, entry);
+                        continue;
+                    }
+                    String state = entry == null ? null : entry.state;
+                    if (state == null)
+                    {
+                        job.timesMissing++;
+                        if (job.seen || job.timesMissing >= 2)
+                        {
+                            unregister(job.sgeJobID);
+                            notifyStateChanged(job, null);
+                            changed = true;
+                        }
+                    }
+                    else
+                    {
+                        job.seen = true;
+                        job.timesMissing = 0;
+                        if (!state.equals(job.state))
+                        {
+                            job.state = state;
+                            notifyStateChanged(job, state);
+                            changed = true;
+                        }
+                    }
+                }
+                synchronized(SGEMonitor.this)
+                {
+                    intervalMs = changed ? MIN_INTERVAL_MS :
+                        Math.min(intervalMs * 2, MAX_INTERVAL_MS);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Compares the states of the tasks of the given array job with the given
+     * output of qstat for the job (which is null if the job was not listed)
+     * and tells the job's listener about any changes.  Called by the poller
+     * thread.
+     * @return true if any task has changed state
+     */
+    private boolean updateTasks(TrackedJob job, QstatEntry entry)
+    {
+        Map<Integer, String> changes = new HashMap<Integer, String>();
+        boolean allFinished = false;
+        if (entry == null)
+        {
+            job.timesMissing++;
+            allFinished = job.seen || job.timesMissing >= 2;
+        }
+        else
+        {
+            job.seen = true;
+            job.timesMissing = 0;
+        }
+        for (Iterator<Map.Entry<Integer, String>> it =
+            job.taskStates.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<Integer, String> task = it.next();
+            String state;
+            if (entry == null)
+            {
+                if (!allFinished)
+                {
+                    continue;
+                }
+                state = null;
+            }
+            else if (entry.taskStates.isEmpty())
+            {
+                // We couldn't find the task IDs, so we assume that all the
+                // tasks are in the state of the job
+                state = entry.state;
+            }
+            else
+            {
+                // A task that isn't listed when its job is has finished
+                state = entry.taskStates.get(task.getKey());
+            }
+            if (state == null)
+            {
+                changes.put(task.getKey(), null);
+                it.remove();
+            }
+            else if (!state.equals(task.getValue()))
+            {
+                changes.put(task.getKey(), state);
+                task.setValue(state);
+            }
+        }
+        if (job.taskStates.isEmpty())
+        {
+            unregister(job.sgeJobID);
+        }
+        if (changes.isEmpty())
+        {
+            return false;
+        }
+        try
+        {
+            job.taskListener.tasksChanged(changes);
+        }
+        catch(RuntimeException re)
+        {
+            log.error("Error handling change of state of tasks of SGE job "
+                + job.sgeJobID, re);
+        }
+        return true;
+    }
+    
+    /**
+     * Tells the listener of the given (non-array) job that its state has
+     * changed.  An exception from the listener is logged rather than allowed
+     * to stop the poller thread, which would stop all the jobs from being
+     * tracked.
+     */
+    private static void notifyStateChanged(TrackedJob job, String state)
+    {
+        try
+        {
+            job.listener.jobStateChanged(state);
+        }
+        catch(RuntimeException re)
+        {
+            log.error("Error handling change of state of SGE job " + job.sgeJobID, re);
+        }
+    }
+    
+    /**
+     * Tells the listener of the given job that qstat could not be run,
+     * logging any exception from the listener
+     */
+    private static void notifyQstatFailed(TrackedJob job, IOException ioe)
+    {
+        try
+        {
+            if (job.taskListener == null)
+            {
+                job.listener.qstatFailed(ioe);
+            }
+            else
+            {
+                job.taskListener.qstatFailed(ioe);
+            }
+        }
+        catch(RuntimeException re)
+        {
+            log.error("Error handling failure of qstat for SGE job " + job.sgeJobID, re);
+        }
+    }
+    
+    /**
+     * The states of a job and its tasks, as given by one run of qstat
+     */
+    private static class QstatEntry
+    {
+        private String state; // The state on the first line for this job
+        // The states of the tasks of an array job, keyed by task ID.  Empty if
+        // this is not an array job
+        private Map<Integer, String> taskStates = new HashMap<Integer, String>();
+        
+        public QstatEntry(String state)
+        {
+            this.state = state;
+        }
+    }
+    
+    /**
+     * A job that we are tracking
+     */
+    private static class TrackedJob
+    {
+        private int sgeJobID;
+        private JobListener listener;
+        private TaskListener taskListener; // Only for array jobs
+        // For array jobs, the states of the tasks that have not finished
+        // (null if a task hasn't been listed yet), keyed by task ID
+        private Map<Integer, String> taskStates;
+        private String state = null;  // The state when we last ran qstat
+        private boolean seen = false; // True if the job has been listed by qstat
+        private int timesMissing = 0; // The number of times in a row that the
+                                      // job has not been listed by qstat
+        
+        public TrackedJob(int sgeJobID, JobListener listener)
+        {
+            this.sgeJobID = sgeJobID;
+            this.listener = listener;
+        }
+        
+        public TrackedJob(int sgeJobID, int numTasks, TaskListener taskListener)
+        {
+            this.sgeJobID = sgeJobID;
+            this.taskListener = taskListener;
+            this.taskStates = new HashMap<Integer, String>();
+            for (int i = 1; i <= numTasks; i++)
+            {
+                this.taskStates.put(i, null);
+            }
+        }
+    }
+    
+    /**
+     * Interface for objects that want to know when the state of an SGE job
+     * changes.  The methods are called by the monitor's thread.
+     */
+    interface JobListener
+    {
+        /**
+         * Called when the state of the job changes
+         * @param sgeState The state of the job as given by qstat (e.g. "qw",
+         * "r"), or null if the job is no longer listed by qstat, i.e. it
+         * has finished.  In this case the job is no longer tracked.
+         */
+        public void jobStateChanged(String sgeState);
+        
+        /**
+         * Called if qstat could not be run.  The job is no longer tracked.
+         */
+        public void qstatFailed(IOException ioe);
+    }
+    
+    /**
+     * Interface for objects that want to know when the states of the tasks
+     * of an SGE array job change.  The methods are called by the monitor's
+     * thread.
+     */
+    interface TaskListener
+    {
+        /**
+         * Called when one or more tasks change state
+         * @param sgeStates The new states of the tasks that have changed, keyed
+         * by task ID.  The state is null if the task is no longer listed by
+         * qstat, i.e. it has finished.  When all the tasks have finished the
+         * job is no longer tracked.
+         */
+        public void tasksChanged(Map<Integer, String> sgeStates);
+        
+        /**
+         * Called if qstat could not be run.  The job is no longer tracked.
+         */
+        public void qstatFailed(IOException ioe);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.grex.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the sub-jobs of service instances on the G-Rex server itself, at most
+ * a fixed number at a time.  There is one executor per server, shared by all
+ * the LocalJobRunners, so the number of "slots" limits the number of sub-jobs
+ * that are running on the host at once, however many instances there are.
+ * The default number of slots is the number of processors available to the
+ * JVM; it can be changed with the local-job-slots attribute in the server
+ * configuration.
+ *
+ * Sub-jobs are queued per instance and the instances are served in turn, so
+ * an instance with a thousand sub-jobs cannot hold up an instance with ten
+ * that is submitted after it.
+ *
+ * Each slot is a worker thread that runs one task (which starts a sub-job and
+ * waits for it to finish) at a time.  Worker threads are started when tasks
+ * are queued and stop when they have been idle for a while.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class SubJobExecutor
+{
+    private static final Log log = LogFactory.getLog(SubJobExecutor.class);
+    
+    /**
+     * Time in milliseconds for which a worker thread waits for a task before
+     * stopping
+     */
+    private static final long MAX_IDLE_MS = 60000;
+    
+    private static final SubJobExecutor executor = new SubJobExecutor();
+    
+    // Queued tasks keyed by instance id.  The instance at the head of the map
+    // is the next to be served; it is moved to the end after each task.
+    private final Map<Integer, LinkedList<Runnable>> queues =
+        new LinkedHashMap<Integer, LinkedList<Runnable>>();
+    
+    private int numSlots = Runtime.getRuntime().availableProcessors();
+    private int numWorkers = 0; // The number of worker threads
+    private int numIdleWorkers = 0; // The number of worker threads waiting for a task
+    private int nextWorkerNumber = 0; // Used to name the worker threads
+    
+    /**
+     * Private constructor: use getExecutor()
+     */
+    private SubJobExecutor()
+    {
+    }
+    
+    /**
+     * @return the executor that is shared by all the LocalJobRunners
+     */
+    public static SubJobExecutor getExecutor()
+    {
+        return executor;
+    }
+    
+    /**
+     * Sets the maximum number of sub-jobs that can run at once.  If this is
+     * reduced while sub-jobs are running, the running sub-jobs carry on but no
+     * more are started until the number running falls below the new limit.
+     */
+    public synchronized void setNumSlots(int numSlots)
+    {
+        if (numSlots <= 0)
+        {
+            throw new IllegalArgumentException("The number of slots must be positive");
+        }
+        log.debug("Sub-jobs will be run in " + numSlots + " slots");
+        this.numSlots = numSlots;
+        // Start enough workers to run the queued tasks in the new slots
+        int numNeeded = this.getNumQueued() - this.numIdleWorkers;
+        for (int i = 0; i < numNeeded && this.numWorkers < this.numSlots; i++)
+        {
+            this.startWorker();
+        }
+        this.notifyAll();
+    }
+    
+    /**
+     * @return the maximum number of sub-jobs that can run at once
+     */
+    public synchronized int getNumSlots()
+    {
+        return this.numSlots;
+    }
+    
+    /**
+     * @return the number of sub-jobs that are running (i.e. the number of
+     * worker threads that are not waiting for a task)
+     */
+    public synchronized int getNumRunning()
+    {
+        return this.numWorkers - this.numIdleWorkers;
+    }
+    
+    /**
+     * @return the number of sub-jobs that are waiting for a slot
+     */
+    public synchronized int getNumWaiting()
+    {
+        return this.getNumQueued();
+    }
+    
+    /**
+     * Queues a task that runs a sub-job of the instance with the given id.
+     * The task will be run in a worker thread when a slot is free and it is
+     * the instance's turn.
+     */
+    public synchronized void submit(int instanceId, Runnable task)
+    {
+        LinkedList<Runnable> queue = this.queues.get(instanceId);
+        if (queue == null)
+        {
+            queue = new LinkedList<Runnable>();
+            this.queues.put(instanceId, queue);
+        }
+        queue.add(task);
+        // An idle worker only stops counting itself as idle when it wakes up
+        // and gets the lock, so if tasks are submitted in a tight loop the
+        // same idle worker would be counted for all of them: compare the
+        // number of idle workers with the number of queued tasks instead
+        if (this.getNumQueued() > this.numIdleWorkers && this.numWorkers < this.numSlots)
+        {
+            this.startWorker();
+        }
+        this.notify();
+    }
+    
+    /**
+     * Removes all the tasks of the instance with the given id that have not
+     * yet started (e.g. because the instance has been aborted)
+     * @return the tasks that were removed (which will be an empty list if
+     * there were none)
+     */
+    public synchronized List<Runnable> cancel(int instanceId)
+    {
+        LinkedList<Runnable> queue = this.queues.remove(instanceId);
+        if (queue == null)
+        {
+            return new ArrayList<Runnable>();
+        }
+        return queue;
+    }
+    
+    /**
+     * @return the total number of tasks that are waiting to be run.  Must be
+     * called with the lock held.
+     */
+    private int getNumQueued()
+    {
+        int numQueued = 0;
+        for (LinkedList<Runnable> queue : this.queues.values())
+        {
+            numQueued += queue.size();
+        }
+        return numQueued;
+    }
+    
+    /**
+     * @return the next task to run, taking one task from each instance in
+     * turn, or null if there are no tasks waiting.  Must be called with
+     * the lock held.
+     */
+    private Runnable nextTask()
+    {
+        if (this.queues.isEmpty())
+        {
+            return null;
+        }
+        Integer instanceId = this.queues.keySet().iterator().next();
+        LinkedList<Runnable> queue = this.queues.remove(instanceId);
+        Runnable task = queue.removeFirst();
+        if (!queue.isEmpty())
+        {
+            // Go to the back of the line
+            this.queues.put(instanceId, queue);
+        }
+        return task;
+    }
+    
+    /**
+     * Starts a new worker thread.  Must be called with the lock held.
+     */
+    private void startWorker()
+    {
+        this.numWorkers++;
+        new Worker(this.nextWorkerNumber++).start();
+    }
+    
+    /**
+     * Thread that takes tasks from the queues and runs them, one at a time,
+     * until there are too many workers for the number of slots or there has
+     * been nothing to do for MAX_IDLE_MS
+     */
+    private class Worker extends Thread
+    {
+        public Worker(int number)
+        {
+            super("sub-job-runner-" + number);
+            this.setDaemon(true);
+        }
+        
+        public void run()
+        {
+            while (true)
+            {
+                Runnable task = null;
+                synchronized(SubJobExecutor.this)
+                {
+                    // If we've been told to use fewer slots, we stop without
+                    // taking another task
+                    if (numWorkers <= numSlots)
+                    {
+                        task = nextTask();
+                        if (task == null)
+                        {
+                            numIdleWorkers++;
+                            try
+                            {
+                                SubJobExecutor.this.wait(MAX_IDLE_MS);
+                            }
+                            catch (InterruptedException ie)
+                            {
+                                // Carry on: we'll stop if there's nothing to do
+                            }
+                            numIdleWorkers--;
+                            if (numWorkers <= numSlots)
+                            {
+                                task = nextTask();
+                            }
+                        }
+                    }
+                    if (task == null)
+                    {
+                        numWorkers--;
+                        log.debug(this.getName() + " stopping");
+                        return;
+                    }
+                }
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException re)
+                {
+                    log.error("Error running sub-job", re);
+                }
+            }
+        }
+    }
+}
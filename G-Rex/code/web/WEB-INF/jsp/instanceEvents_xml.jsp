@@ -0,0 +1,27 @@
+<%@include file="xml_header.jsp"%>
+<%@taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%> 
+<%-- Shows the changes to a service instance since the version that the client
+     gave.  The state, exit code and progress of sub-jobs are always shown.
+     If reset is true the output files are all the current output files,
+     otherwise they are those that have appeared or changed --%>
+<events id="${instance.id}" version="${changes.version}" reset="${changes.reset}">
+    <state>${changes.state}</state>
+    <c:if test="${changes.exitCode != null}"><exitCode>${changes.exitCode}</exitCode></c:if>
+    <c:if test="${instance.numSubJobs > 0}"><subJobs total="${instance.numSubJobs}" running="${changes.numSubJobsRunning}" finished="${changes.numSubJobsFinished}"/></c:if>
+    <outputFiles baseUrl="${instance.url}/outputs/">
+        <list>
+            <c:forEach var="file" items="${changes.outputFiles}">
+            <%-- The check sum is left out if it is not yet known --%>
+            <c:set var="checkSum" value="${file.checkSum}"/>
+            <outputFile relPath="${file.relativePath}" lengthBytes="${file.lengthBytes}"
+                        lastModified="${file.lastModified}" readyForDownload="${file.readyForDownload}"
+                        <c:if test="${checkSum != null}">checkSum="${checkSum}" </c:if>etag="<c:out value="${file.etag}"/>"/>
+            </c:forEach>
+        </list>
+    </outputFiles>
+    <removed>
+        <c:forEach var="path" items="${changes.removed}">
+        <file relPath="${path}"/>
+        </c:forEach>
+    </removed>
+</events>
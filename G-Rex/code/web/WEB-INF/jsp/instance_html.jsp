@@ -22,6 +22,10 @@ Displays the details of a particular service instance
             <tr><th>ID</th><td>${instance.id}</td></tr>
             <tr><th>Description</th><td>${instance.description}</td></tr>
             <tr><th>Number of sub-jobs</th><td>${instance.numSubJobs}</td></tr>
+            <c:if test="${instance.numSubJobs > 0}">
+            <tr><th>Sub-jobs running</th><td>${instance.numSubJobsRunning}</td></tr>
+            <tr><th>Sub-jobs finished</th><td>${instance.numSubJobsFinished}</td></tr>
+            </c:if>
             <tr><th>State</th><td>${instance.state}</td></tr>
             <tr><th>Exit code</th><td>${instance.exitCode}</td></tr>
             <tr><th>Owner</th><td>${instance.owner}</td></tr>
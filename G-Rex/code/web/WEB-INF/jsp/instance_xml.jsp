@@ -6,6 +6,7 @@
     <c:if test="${instance.description != null}"><description>${instance.description}</description></c:if>
     <state>${instance.state}</state>
     <c:if test="${instance.exitCode != null}"><exitCode>${instance.exitCode}</exitCode></c:if>
+    <c:if test="${instance.numSubJobs > 0}"><subJobs total="${instance.numSubJobs}" running="${instance.numSubJobsRunning}" finished="${instance.numSubJobsFinished}"/></c:if>
     <parameters>
         <c:forEach var="par" items="${instance.parameters}">
         <param name="${par.key}" value="${par.value}"/>
@@ -14,9 +15,11 @@
     <outputFiles baseUrl="${instance.url}/outputs/">
         <list>
             <c:forEach var="file" items="${instance.currentOutputFiles}">
+            <%-- The check sum is left out if it is not yet known --%>
+            <c:set var="checkSum" value="${file.checkSum}"/>
             <outputFile relPath="${file.relativePath}" lengthBytes="${file.lengthBytes}"
                         lastModified="${file.lastModified}" readyForDownload="${file.readyForDownload}"
-                        checkSum="${file.checkSum}"/>
+                        <c:if test="${checkSum != null}">checkSum="${checkSum}" </c:if>etag="<c:out value="${file.etag}"/>"/>
             </c:forEach>
         </list>
     </outputFiles>
@@ -26,6 +26,30 @@ Displays all the instances of a grid service
         <input type="submit" value="Create new instance"/>
     </form>
     
+    <c:if test="${max >= 0}">
+    <p>
+        Showing ${offset + 1} to ${offset + max < total ? offset + max : total} of ${total} instances
+        <c:if test="${offset > 0}">
+            <c:url var="previousPage" value="instances.html">
+                <c:param name="offset" value="${offset > max ? offset - max : 0}"/>
+                <c:param name="max" value="${max}"/>
+                <c:param name="state" value="${state}"/>
+                <c:param name="owner" value="${owner}"/>
+            </c:url>
+            <a href="${previousPage}">previous</a>
+        </c:if>
+        <c:if test="${offset + max < total}">
+            <c:url var="nextPage" value="instances.html">
+                <c:param name="offset" value="${offset + max}"/>
+                <c:param name="max" value="${max}"/>
+                <c:param name="state" value="${state}"/>
+                <c:param name="owner" value="${owner}"/>
+            </c:url>
+            <a href="${nextPage}">next</a>
+        </c:if>
+    </p>
+    </c:if>
+    
     <table border="1">
         <tbody>
             <tr><th>Instance ID</th><th>Description</th><th>State</th><th>Owner</th><th>More details</th></tr>
@@ -1,7 +1,7 @@
 <%@include file="xml_header.jsp"%>
 <%@taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%> 
     
-<instances serviceName="${serviceName}">
+<instances serviceName="${serviceName}" total="${total}" offset="${offset}">
 <c:forEach var="instance" items="${instances}">
     <instance id="${instance.id}" description="${instance.description}"
     owner="${instance.owner}" group="${instance.group}"/>
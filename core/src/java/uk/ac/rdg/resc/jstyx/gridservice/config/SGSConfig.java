@@ -139,6 +139,7 @@ public class SGSConfig
     private Vector serviceData; // The service data elements for this SGS
     private Hashtable options;  // The options for this SGS (these might be used
                                 // to customize a Condor submit file, for instance)
+    private int poolSize;       // The number of instances to build in advance
 
     /**
      * This is called by the SGS server program to generate a configuration
@@ -159,6 +160,22 @@ public class SGSConfig
             StyxUtils.SYSTEM_FILE_SEPARATOR + name;
         this.setConfigXMLForClient();
         
+        // Get the number of idle instances that the server should keep ready
+        String poolStr = gridService.valueOf("@poolSize").trim();
+        try
+        {
+            this.poolSize = poolStr.equals("") ? 0 : Integer.parseInt(poolStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            this.poolSize = -1;
+        }
+        if (this.poolSize < 0)
+        {
+            throw new SGSConfigException("Invalid value (" + poolStr +
+                ") for pool size of " + this.name);
+        }
+        
         // Create the options: these are key-value pairs whose use is dependent
         // upon the job type (LocalJob, CondorJob etc).  They are not exposed
         // to the client.
@@ -513,4 +530,15 @@ public class SGSConfig
     {
         return this.options;
     }
+    
+    /**
+     * @return the number of idle instances of this SGS that the server will
+     * build in advance, so that new instances can be handed out immediately.
+     * If this is zero (the default), instances are created on demand.  This
+     * is only relevant to the SGS server.
+     */
+    public int getPoolSize()
+    {
+        return this.poolSize;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2006 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.jstyx.gridservice.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The single point of contact between all the CondorJobs of a Styx Grid
+ * Service and the Condor pool.  Rather than each CondorJob forking its own
+ * condor_submit and condor_rm processes (plus two threads to read the output
+ * of each) and polling its own log file, all the CondorJobs whose working
+ * directories share the same parent directory share one gateway.  The gateway
+ * has a single thread that:
+ * <ul>
+ * <li>runs condor_submit for each queued submission in turn</li>
+ * <li>removes all clusters that have been queued for removal with one call
+ * to condor_rm</li>
+ * <li>reads new events from a Condor user log file that is shared by all the
+ * jobs (starting from where it left off last time) and dispatches each event
+ * to the CondorJob that owns the cluster</li>
+ * </ul>
+ * The condor_* programs are found through the PATH, so a fake implementation
+ * can be substituted for testing.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+public class CondorGateway
+{
+    private static final Logger log = Logger.getLogger(CondorGateway.class);
+    
+    private static final String CONDOR_SUBMIT = "condor_submit";
+    private static final String CONDOR_RM = "condor_rm";
+    private static final String USER_LOG_FILE = "condor.log"; // Name of the shared log file
+    private static final long POLL_INTERVAL = 1000; // Time between reads of the log file in ms
+    
+    private static final Pattern JOB_SUBMITTED_PATTERN =
+        Pattern.compile("([0-9]*) job\\(s\\) submitted to cluster ([0-9]*).*");
+    // Matches the first line of each event in the user log, e.g.
+    // "005 (496.002.000) 04/21 15:08:14 Job terminated."
+    private static final Pattern EVENT_PATTERN =
+        Pattern.compile("([0-9]{3}) \\(([0-9]*)\\.([0-9]*)\\.([0-9]*)\\).*");
+    private static final Pattern RETURN_VALUE_PATTERN =
+        Pattern.compile(".*Normal termination \\(return value ([0-9]*)\\).*");
+    private static final Pattern ABNORMAL_TERMINATION_PATTERN =
+        Pattern.compile(".*Abnormal termination \\(signal ([0-9]*)\\).*");
+    private static final String END_OF_EVENT = "...";
+    
+    // Condor event codes that we are interested in
+    private static final String EXECUTE_EVENT = "001";
+    private static final String TERMINATED_EVENT = "005";
+    private static final String ABORTED_EVENT = "009";
+    
+    // Maps the paths of directories to CondorGateways
+    private static final Hashtable/*<String, CondorGateway>*/ gateways = new Hashtable();
+    
+    private File userLog;        // The log file shared by all jobs using this gateway
+    private long logOffset;      // The position in the log file up to which we have read
+    private Vector/*<String>*/ currentEvent; // Lines of the event we are currently reading
+    
+    private Vector/*<Submission>*/ pendingSubmissions; // Jobs waiting to be submitted
+    private Vector/*<String>*/ pendingRemovals; // Cluster IDs waiting to be removed
+    private Hashtable/*<String, CondorJob>*/ jobs; // Maps cluster IDs to CondorJobs
+    private Object lock = new Object(); // Used to wake up the gateway thread
+    
+    /**
+     * Gets the CondorGateway for the given directory, creating it (and
+     * starting its thread) if necessary.
+     * @param dir The directory that will contain the shared user log file.
+     * This will normally be the parent of the working directories of all the
+     * jobs that will use the gateway.
+     */
+    public static CondorGateway getGateway(File dir)
+    {
+        String key = dir.getAbsolutePath();
+        synchronized(gateways)
+        {
+            CondorGateway gateway = (CondorGateway)gateways.get(key);
+            if (gateway == null)
+            {
+                gateway = new CondorGateway(new File(dir, USER_LOG_FILE));
+                gateways.put(key, gateway);
+            }
+            return gateway;
+        }
+    }
+    
+    /**
+     * Creates a new CondorGateway and starts its thread
+     * @param userLog The log file that will be shared by all the jobs
+     */
+    private CondorGateway(File userLog)
+    {
+        this.userLog = userLog;
+        // Events from previous runs of the server are no use to us, so we
+        // start reading from the current end of the file
+        this.logOffset = userLog.length();
+        this.currentEvent = new Vector();
+        this.pendingSubmissions = new Vector();
+        this.pendingRemovals = new Vector();
+        this.jobs = new Hashtable();
+        Thread thread = new GatewayThread();
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Started Condor gateway using log file " + userLog.getPath());
+    }
+    
+    /**
+     * @return the log file that must be used (in the "log" option of the
+     * submit file) by all jobs that are submitted through this gateway
+     */
+    public File getUserLog()
+    {
+        return this.userLog;
+    }
+    
+    /**
+     * Queues a job for submission to the Condor pool.  This returns
+     * immediately: the job will be notified through condorSubmitted() or
+     * error() when condor_submit has run.
+     * @param job The job being submitted
+     * @param dir The directory in which condor_submit will be run
+     * @param submitFile The name of the submit description file in dir
+     */
+    public void submit(CondorJob job, File dir, String submitFile)
+    {
+        this.pendingSubmissions.add(new Submission(job, dir, submitFile));
+        this.wakeUp();
+    }
+    
+    /**
+     * Queues a cluster for removal from the Condor pool.  All the clusters
+     * that are queued before the gateway thread next wakes up are removed
+     * with a single call to condor_rm.
+     * @param clusterID The ID of the cluster to remove
+     */
+    public void remove(String clusterID)
+    {
+        this.jobs.remove(clusterID);
+        this.pendingRemovals.add(clusterID);
+        this.wakeUp();
+    }
+    
+    /**
+     * Stops sending events for the given cluster (e.g. because the job has
+     * finished or failed).
+     */
+    public void release(String clusterID)
+    {
+        this.jobs.remove(clusterID);
+    }
+    
+    private void wakeUp()
+    {
+        synchronized(this.lock)
+        {
+            this.lock.notify();
+        }
+    }
+    
+    /**
+     * The thread that does all the work of the gateway
+     */
+    private class GatewayThread extends Thread
+    {
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    processSubmissions();
+                    processRemovals();
+                    readUserLog();
+                    synchronized(lock)
+                    {
+                        if (pendingSubmissions.size() == 0 && pendingRemovals.size() == 0)
+                        {
+                            lock.wait(POLL_INTERVAL);
+                        }
+                    }
+                }
+                catch(InterruptedException ie)
+                {
+                    // do nothing
+                }
+                catch(Exception e)
+                {
+                    // Make sure that the gateway thread never dies
+                    if (log.isDebugEnabled())
+                    {
+                        e.printStackTrace();
+                    }
+                    log.error("Error in Condor gateway: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Runs condor_submit for every submission that is waiting
+     */
+    private void processSubmissions()
+    {
+        while (this.pendingSubmissions.size() > 0)
+        {
+            Submission sub = (Submission)this.pendingSubmissions.remove(0);
+            try
+            {
+                this.submit(sub);
+            }
+            catch(IOException ioe)
+            {
+                if (log.isDebugEnabled())
+                {
+                    ioe.printStackTrace();
+                }
+                sub.job.error("Error running " + CONDOR_SUBMIT + ": " + ioe.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Runs condor_submit for a single job and registers the cluster that
+     * is created
+     */
+    private void submit(Submission sub) throws IOException
+    {
+        Process proc = Runtime.getRuntime().exec(new String[]{CONDOR_SUBMIT,
+            sub.submitFile}, null, sub.dir);
+        // condor_submit only produces a few lines of output so we can read
+        // the two streams one after the other in this thread
+        String[] stdout = readLines(proc.getInputStream());
+        String[] stderr = readLines(proc.getErrorStream());
+        waitFor(proc);
+        
+        for (int i = 0; i < stderr.length; i++)
+        {
+            if (stderr[i].startsWith("ERROR"))
+            {
+                sub.job.error("Error running " + CONDOR_SUBMIT + ": " + stderr[i]);
+                return;
+            }
+        }
+        for (int i = 0; i < stdout.length; i++)
+        {
+            Matcher m = JOB_SUBMITTED_PATTERN.matcher(stdout[i]);
+            if (m.matches())
+            {
+                String clusterID = m.group(2);
+                log.debug("Detected " + m.group(1) + " jobs submitted: ID = "
+                    + clusterID);
+                this.jobs.put(clusterID, sub.job);
+                sub.job.condorSubmitted(clusterID);
+                return;
+            }
+        }
+        sub.job.error(CONDOR_SUBMIT + " did not report a cluster ID");
+    }
+    
+    /**
+     * Removes all the clusters that are waiting to be removed with a single
+     * call to condor_rm
+     */
+    private void processRemovals() throws IOException
+    {
+        if (this.pendingRemovals.size() == 0)
+        {
+            return;
+        }
+        Vector cmd = new Vector();
+        cmd.add(CONDOR_RM);
+        synchronized(this.pendingRemovals)
+        {
+            cmd.addAll(this.pendingRemovals);
+            this.pendingRemovals.clear();
+        }
+        Process proc = Runtime.getRuntime().exec((String[])cmd.toArray(new String[0]));
+        log.debug("Called " + cmd);
+        // Make sure we consume the outputs from the condor_rm command
+        readLines(proc.getInputStream());
+        readLines(proc.getErrorStream());
+        waitFor(proc);
+    }
+    
+    /**
+     * Reads all the complete lines that have been added to the user log since
+     * we last looked at it, dispatching events to the relevant jobs
+     */
+    private void readUserLog() throws IOException
+    {
+        if (this.jobs.size() == 0 || !this.userLog.exists())
+        {
+            return;
+        }
+        long length = this.userLog.length();
+        if (length < this.logOffset)
+        {
+            // The log file has been truncated or replaced
+            log.debug("Condor user log " + this.userLog.getPath() + " has shrunk");
+            this.logOffset = 0;
+            this.currentEvent.clear();
+        }
+        if (length == this.logOffset)
+        {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(this.userLog, "r");
+        try
+        {
+            byte[] b = new byte[(int)(length - this.logOffset)];
+            raf.seek(this.logOffset);
+            raf.readFully(b);
+            // Only process complete lines: Condor might be half way through
+            // writing the last one
+            int start = 0;
+            for (int i = 0; i < b.length; i++)
+            {
+                if (b[i] == '\n')
+                {
+                    this.processLine(new String(b, start, i - start).trim());
+                    start = i + 1;
+                }
+            }
+            this.logOffset += start;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Adds a line from the user log to the current event, dispatching the
+     * event if this is the last line
+     */
+    private void processLine(String line)
+    {
+        if (line.equals(END_OF_EVENT))
+        {
+            if (this.currentEvent.size() > 0)
+            {
+                this.dispatchEvent(this.currentEvent);
+            }
+            this.currentEvent.clear();
+        }
+        else
+        {
+            this.currentEvent.add(line);
+        }
+    }
+    
+    /**
+     * Sends the given event to the job that owns its cluster
+     * @param lines The lines that make up the event
+     */
+    private void dispatchEvent(Vector lines)
+    {
+        Matcher m = EVENT_PATTERN.matcher((String)lines.get(0));
+        if (!m.matches())
+        {
+            return;
+        }
+        String eventCode = m.group(1);
+        CondorJob job = (CondorJob)this.jobs.get(m.group(2));
+        if (job == null)
+        {
+            // This event belongs to a cluster that we don't know about
+            return;
+        }
+        int procID = Integer.parseInt(m.group(3));
+        
+        if (eventCode.equals(EXECUTE_EVENT))
+        {
+            job.condorSubJobExecuting(procID);
+        }
+        else if (eventCode.equals(TERMINATED_EVENT))
+        {
+            for (int i = 1; i < lines.size(); i++)
+            {
+                String line = (String)lines.get(i);
+                m = RETURN_VALUE_PATTERN.matcher(line);
+                if (m.matches())
+                {
+                    job.condorSubJobTerminated(procID, Integer.parseInt(m.group(1)));
+                    return;
+                }
+                m = ABNORMAL_TERMINATION_PATTERN.matcher(line);
+                if (m.matches())
+                {
+                    job.condorSubJobFailed(procID, "signal = " + m.group(1));
+                    return;
+                }
+            }
+            // We couldn't find the exit code: assume success
+            job.condorSubJobTerminated(procID, 0);
+        }
+        else if (eventCode.equals(ABORTED_EVENT))
+        {
+            job.condorSubJobFailed(procID, "aborted");
+        }
+    }
+    
+    /**
+     * Reads all the lines from the given stream, then closes it
+     */
+    private static String[] readLines(InputStream is) throws IOException
+    {
+        Vector lines = new Vector();
+        BufferedReader buf = new BufferedReader(new InputStreamReader(is));
+        try
+        {
+            String line;
+            while ((line = buf.readLine()) != null)
+            {
+                lines.add(line);
+            }
+        }
+        finally
+        {
+            buf.close();
+        }
+        return (String[])lines.toArray(new String[0]);
+    }
+    
+    /**
+     * Waits for the given process to finish, ignoring interruptions
+     */
+    private static void waitFor(Process proc)
+    {
+        try
+        {
+            proc.waitFor();
+        }
+        catch(InterruptedException ie)
+        {
+            // do nothing
+        }
+    }
+    
+    /**
+     * A job that is waiting to be submitted
+     */
+    private static class Submission
+    {
+        private CondorJob job;
+        private File dir;
+        private String submitFile;
+        
+        public Submission(CondorJob job, File dir, String submitFile)
+        {
+            this.job = job;
+            this.dir = dir;
+            this.submitFile = submitFile;
+        }
+    }
+}
@@ -30,20 +30,14 @@ package uk.ac.rdg.resc.jstyx.gridservice.server;
 
 import java.io.IOException;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 
 import java.net.URL;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.util.Hashtable;
 import java.util.Enumeration;
 import java.util.Vector;
@@ -52,9 +46,6 @@ import java.nio.channels.FileChannel;
 
 import org.apache.log4j.Logger;
 
-import org.apache.tools.tar.TarOutputStream;
-import org.apache.tools.tar.TarEntry;
-
 import uk.ac.rdg.resc.jstyx.StyxUtils;
 import uk.ac.rdg.resc.jstyx.StyxException;
 import uk.ac.rdg.resc.jstyx.server.StyxFile;
@@ -92,17 +83,10 @@ public class CondorJob extends AbstractJob
                                                         // contain standard output data
     private static final String STDERR_FILE = "stderr"; // Name of the file that will
                                                         // contain standard error data
-    private static final String LOG_FILE = "condor.log"; // Name of the condor submit file
     private static final String SUBMIT_FILE = "condor.submit"; // Name of the condor submit file
-    
-    private static final Pattern JOB_SUBMITTED_PATTERN =
-        Pattern.compile("([0-9]*) job\\(s\\) submitted to cluster ([0-9]*).*");
-    private static final Pattern JOB_TERMINATED_PATTERN =
-        Pattern.compile("005 \\(([0-9]*)\\.([0-9]*)\\.([0-9]*).*Job terminated\\.");
-    private static final Pattern RETURN_VALUE_PATTERN =
-        Pattern.compile(".*Normal termination \\(return value ([0-9]*)\\)");
-    private static final Pattern ABNORMAL_TERMINATION_PATTERN =
-        Pattern.compile(".*Abnormal termination \\(signal ([0-9]*)\\)");
+    // Option in the SGS configuration that switches on compression of the
+    // aggregated output files.  This is not passed on to Condor.
+    private static final String COMPRESS_OPTION = "compress_outputs";
     
     private File stdin;
     private OutputStream stdinStream;
@@ -112,10 +96,13 @@ public class CondorJob extends AbstractJob
     private boolean stdinReady; // True when the standard input data are ready
     private boolean jobStarted;
     private boolean stopThreads;
+    private CondorGateway gateway; // Submits and monitors the job on our behalf
+    private int jobsComplete;   // The number of sub-jobs that have finished
+    private int exitCode;       // The exit code that we will report for the whole job
     
-    // This maps the names of output files to tar output streams in the root
-    // directory of the job
-    private Hashtable/*<String, TarOutputStream>*/ tarOutputStreams;
+    // Collects the output files of the sub-jobs into tar files in the root
+    // directory of the job.  This is null if there is only one sub-job.
+    private TarAggregator aggregator;
     
     /**
      * Creates a new instance of CondorJob
@@ -134,7 +121,11 @@ public class CondorJob extends AbstractJob
         this.stdinReady = false;
         this.jobStarted = false;
         this.args = "";
-        this.tarOutputStreams = new Hashtable();
+        this.aggregator = null;
+        // All the jobs of this service share the same gateway
+        this.gateway = CondorGateway.getGateway(this.workDir.getParentFile());
+        this.jobsComplete = 0;
+        this.exitCode = 0;
     }
     
     /**
@@ -181,30 +172,21 @@ public class CondorJob extends AbstractJob
      * Aborts the job, forcibly terminating it if necessary.  Does nothing if
      * the job is not running.  This is called when the user (i.e. the remote
      * client) opts to stop the job.  Sets the status code to ABORTED if the
-     * stop operation is successful.  Aborts the job by calling condor_rm.
+     * stop operation is successful.  Aborts the job by asking the gateway to
+     * call condor_rm.
      */
     public void stop() throws StyxException
     {
         this.stopThreads = true;
-        if (statusCode == StatusCode.RUNNING)
+        if (statusCode == StatusCode.SUBMITTED || statusCode == StatusCode.RUNNING)
         {
-            String rmCommand = "condor_rm " + this.clusterID;
-            try
-            {
-                Process proc = Runtime.getRuntime().exec(rmCommand);
-                log.debug("Called condor_rm " + this.clusterID);
-                // Make sure we consume the outputs from the condor_rm command
-                new CondorStreamReader(proc.getInputStream()).start();
-                new CondorStreamReader(proc.getErrorStream()).start();
-                // We just assume that the condor_rm command has worked
-                this.setStatus(StatusCode.ABORTED);
-                // TODO: set the progress 
-            }
-            catch (IOException ioe)
-            {
-                throw new StyxException("Error stopping job: could not create" +
-                    " process \"" + rmCommand + "\"");
-            }
+            // The gateway removes all the clusters that have been stopped
+            // recently with a single call to condor_rm.  We just assume that
+            // the condor_rm command will work
+            this.gateway.remove(this.clusterID);
+            this.stopAggregator();
+            this.setStatus(StatusCode.ABORTED);
+            // TODO: set the progress 
         }
     }
     
@@ -216,6 +198,8 @@ public class CondorJob extends AbstractJob
     public void error(String message)
     {
         this.stopThreads = true;
+        this.gateway.release(this.clusterID);
+        this.stopAggregator();
         log.error(message);
         this.setStatus(StatusCode.ERROR, message);
         // TODO: set the progress
@@ -254,14 +238,18 @@ public class CondorJob extends AbstractJob
                 if (this.numSubJobs > 1)
                 {
                     // Set up the output files: these are tar files that will be added
-                    // to when each individual job finishes
+                    // to in the background when each individual job finishes
                     StyxFile[] outputFiles = this.instance.getOutputFiles();
+                    String[] names = new String[outputFiles.length];
                     for (int i = 0; i < outputFiles.length; i++)
                     {
-                        File outputFile = new File(this.workDir, outputFiles[i].getName());
-                        this.tarOutputStreams.put(outputFiles[i].getName(),
-                            new TarOutputStream(new FileOutputStream(outputFile)));
+                        names[i] = outputFiles[i].getName();
                     }
+                    Hashtable configOpts = this.instance.getOptions();
+                    boolean compress = configOpts != null &&
+                        "true".equalsIgnoreCase((String)configOpts.get(COMPRESS_OPTION));
+                    this.aggregator = new TarAggregator(this, this.workDir,
+                        names, compress);
                 }
                 
                 // Create the condor submit file in the working directory
@@ -292,13 +280,10 @@ public class CondorJob extends AbstractJob
 
                 submitFile.close();
 
-                // Now submit this file to the Condor pool
-                Process proc = Runtime.getRuntime().exec("condor_submit " +
-                    SUBMIT_FILE, null, this.workDir);
-
-                // Read the output from the condor_submit program
-                new CondorStreamReader(proc.getInputStream()).start();
-                new CondorStreamReader(proc.getErrorStream()).start();
+                // Now submit this file to the Condor pool.  This returns
+                // immediately: the gateway will call condorSubmitted() when
+                // the job has been submitted.
+                this.gateway.submit(this, this.workDir, SUBMIT_FILE);
             }
             catch(FileNotFoundException fnfe)
             {
@@ -346,7 +331,10 @@ public class CondorJob extends AbstractJob
             {
                 String key = (String)en.nextElement();
                 String value = (String)configOpts.get(key);
-                opts.put(key, value);
+                if (!key.equals(COMPRESS_OPTION))
+                {
+                    opts.put(key, value);
+                }
             }
         }
         
@@ -367,8 +355,9 @@ public class CondorJob extends AbstractJob
         opts.put("output", STDOUT_FILE);
         opts.put("error", STDERR_FILE);
         opts.put("arguments", this.args);                
-        // We use the same log file for each job
-        opts.put("log", commonFilePrefix + LOG_FILE);
+        // We use the same log file for each job, and this is shared with all
+        // the other jobs that are submitted through the same gateway
+        opts.put("log", this.gateway.getUserLog().getPath());
 
         // Force Condor to transfer the files using its own mechanism.
         // Not only should this work on more systems (doesn't rely on a
@@ -547,255 +536,117 @@ public class CondorJob extends AbstractJob
     }
     
     /**
-     * Thread that reads Condor's log file as it is produced and changes the
-     * status of the job based on what it finds
+     * Called by the gateway when condor_submit has successfully submitted
+     * the job.
+     * @param clusterID The ID of the cluster that Condor has created
      */
-    private class LogFileParser extends Thread
+    void condorSubmitted(String clusterID)
     {
-        public void run()
+        this.clusterID = clusterID;
+        if (this.stopThreads)
         {
-            boolean finished = false;
-            File logFile = new File(workDir, LOG_FILE);
-            int linesRead = 0;
-            int jobsComplete = 0;
-            String line;
-            
-            // We have to keep opening the log file
-            while(!stopThreads && !finished)
-            {
-                try
-                {
-                    if (logFile.exists())
-                    {
-                        // Read a line at a time from the file, looking for key phrases
-                        //log.debug("Opening log file " + logFile);
-                        BufferedReader buf = new BufferedReader(new FileReader(logFile));
-                        
-                        // Read all the lines we have read already
-                        // TODO can we use seek() or something like it here?
-                        //log.debug("Reading " + linesRead + " lines that we have already read");
-                        for (int i = 0; i < linesRead; i++)
-                        {
-                            line = buf.readLine();
-                        }
-                        
-                        // Now read the first new line
-                        do
-                        {
-                            line = buf.readLine();
-                            //log.debug("Read line from log file: " + line);
-                            if (line != null)
-                            {
-                                linesRead++;
-                                if (line.startsWith("001"))
-                                {
-                                    log.debug("Detected that job is executing");
-                                    //setStatus(StatusCode.RUNNING);
-                                    // TODO: get the proper ID of the job
-                                    subJobStarted(0);
-                                }
-                                else
-                                {
-                                    Matcher m = JOB_TERMINATED_PATTERN.matcher(line);
-                                    if (m.matches())
-                                    {
-                                        // One of the sub-jobs has finished
-                                        int jobID = Integer.parseInt(m.group(2));
-                                        // TODO: distinguish between failed and
-                                        // successful jobs
-                                        subJobCompleted(jobID);
-                                        copyOutputToRootDirectory(jobID);
-                                        
-                                        // TODO get error code etc
-                                        jobsComplete++;
-                                        if (jobsComplete == numSubJobs)
-                                        {
-                                            closeAllOutputFiles();
-                                            fireGotExitCode(0);
-                                            setStatus(StatusCode.FINISHED);
-                                            finished = true;
-                                        }
-                                    }
-                                    // Look to see if we have normal termination
-                                    // and capture the exit code
-                                    /*m = RETURN_VALUE_PATTERN.matcher(line);
-                                    if (m.matches())
-                                    {
-                                        log.debug("Detected that job has finished");
-                                        int exitCode = Integer.parseInt(m.group(1));
-                                        fireGotExitCode(exitCode);
-                                        setStatus(StatusCode.FINISHED);
-                                        finished = true;
-                                    }
-                                    // Look for abnormal termination
-                                    m = ABNORMAL_TERMINATION_PATTERN.matcher(line);
-                                    if (m.matches())
-                                    {
-                                        log.debug("Detected abnormal termination");
-                                        setStatus(StatusCode.ERROR, "signal = "
-                                            + m.group(1));
-                                        finished = true;
-                                    }*/
-                                }
-                            }
-                        } while (line != null && !stopThreads);
-                        buf.close();
-                    }
-                    if (!finished)
-                    {
-                        // Wait for a second before we open the file again or
-                        // check to see if it exists
-                        Thread.sleep(1000);
-                    }
-                }
-                catch(IOException ioe)
-                {
-                    if (log.isDebugEnabled())
-                    {
-                        ioe.printStackTrace();
-                    }
-                    // We don't treat this as a fatal error because this happens
-                    // under Windows Condor when we try to read from the log file
-                    // but Condor is trying to write to it at the same time
-                    log.error("Error reading the Condor log file: " + ioe.getMessage());
-                    try
-                    {
-                        // Give Condor a chance to finish writing to the file
-                        Thread.sleep(1000);
-                    }
-                    catch(InterruptedException ie)
-                    {
-                        // do nothing
-                    }
-                }
-                catch(InterruptedException ie)
-                {
-                    // do nothing
-                }
-            }
+            // The job was stopped while it was waiting to be submitted
+            this.gateway.remove(clusterID);
+        }
+        else
+        {
+            this.setStatus(StatusCode.SUBMITTED, "Condor cluster ID = " + clusterID);
         }
     }
     
     /**
-     * Copies all the output files from the given subjob (which has completed) into
-     * the tar files in the root directory for this whole job.  If this is not a
-     * composite job (i.e. if there is only a single job) this method does nothing
-     * @throws IOException if the data could not be copied to the tar files
+     * Called by the gateway when Condor reports that a sub-job has started
+     * executing
+     * @param jobID The process ID of the sub-job within the cluster
      */
-    private void copyOutputToRootDirectory(int jobID) throws IOException
+    void condorSubJobExecuting(int jobID)
     {
-        if (this.numSubJobs > 1)
+        log.debug("Detected that job " + jobID + " is executing");
+        this.subJobStarted(jobID);
+    }
+    
+    /**
+     * Called by the gateway when Condor reports that a sub-job has terminated
+     * normally
+     * @param jobID The process ID of the sub-job within the cluster
+     * @param exitCode The exit code of the sub-job
+     */
+    void condorSubJobTerminated(int jobID, int exitCode)
+    {
+        this.subJobCompleted(jobID);
+        if (this.exitCode == 0)
         {
-            File jobWorkDir = new File(this.workDir, "" + jobID);
-            for (Enumeration names = this.tarOutputStreams.keys(); names.hasMoreElements(); )
-            {
-                String name = (String)names.nextElement();
-                File file = new File(jobWorkDir, name);
-                TarEntry tarEntry = new TarEntry(name + "." + jobID);
-                tarEntry.setSize(file.length());
-                TarOutputStream tos = (TarOutputStream)this.tarOutputStreams.get(name);
-                tos.putNextEntry(tarEntry);
-                FileInputStream fin = new FileInputStream(file);
-                // Copy the file to the tar stream
-                int n;
-                byte[] b = new byte[8192];
-                do
-                {
-                    n = fin.read(b);
-                    if (n >= 0)
-                    {
-                        tos.write(b, 0, n);
-                    }
-                } while (n >= 0);
-                fin.close();
-                tos.closeEntry();
-            }
-            log.debug("Copied output from job " + jobID + " to tar output files");
+            // We report the first non-zero exit code as the exit code of the
+            // whole job
+            this.exitCode = exitCode;
         }
-        else
+        if (this.aggregator != null)
         {
-            // We don't need to copy any files
+            // This returns immediately: the outputs are copied in the background
+            this.aggregator.add(jobID);
         }
+        this.subJobFinished();
     }
     
     /**
-     * Closes all the tar output files
-     * @throws IOException if the data could not be copied to the tar files
+     * Called by the gateway when Condor reports that a sub-job has terminated
+     * abnormally or has been aborted
+     * @param jobID The process ID of the sub-job within the cluster
+     * @param message Description of the failure
      */
-    private void closeAllOutputFiles() throws IOException
+    void condorSubJobFailed(int jobID, String message)
     {
-        if (this.numSubJobs > 1)
+        log.debug("Job " + jobID + " failed: " + message);
+        this.subJobFailed(jobID);
+        this.subJobFinished();
+    }
+    
+    /**
+     * Called when a sub-job has finished, successfully or otherwise.  When all
+     * the sub-jobs have finished, closes the output files.  The status is set
+     * to FINISHED when all the output files have been written.
+     */
+    private void subJobFinished()
+    {
+        this.jobsComplete++;
+        if (this.jobsComplete == this.numSubJobs)
         {
-            for (Enumeration names = this.tarOutputStreams.keys(); names.hasMoreElements(); )
+            this.gateway.release(this.clusterID);
+            if (this.aggregator == null)
             {
-                TarOutputStream tos =
-                    (TarOutputStream)this.tarOutputStreams.get(names.nextElement());
-                tos.close();
+                this.archivesComplete();
+            }
+            else
+            {
+                // archivesComplete() will be called when the outstanding
+                // outputs have been added to the tar files
+                this.aggregator.finish();
             }
-            log.debug("Closed all tar output files");
         }
     }
     
     /**
-     * Thread that reads one of the standard streams from the condor_submit
-     * program: this consumes the streams (making sure that the condor_submit
-     * program does not hang) and checks for errors
+     * Closes the tar files if the job has been stopped before all the sub-jobs
+     * have finished.
      */
-    private class CondorStreamReader extends Thread
+    private void stopAggregator()
     {
-        private InputStream is;
-        
-        public CondorStreamReader(InputStream is)
+        if (this.aggregator != null && this.jobsComplete < this.numSubJobs)
         {
-            this.is = is;
+            this.aggregator.finish();
         }
-        
-        public void run()
+    }
+    
+    /**
+     * Called when all the output files have been written.  Sets the status
+     * to FINISHED, unless the job has been stopped.
+     */
+    void archivesComplete()
+    {
+        if (!this.stopThreads)
         {
-            try
-            {
-                BufferedReader buf = new BufferedReader(new InputStreamReader(is));
-                String line = null;
-                do
-                {
-                    line = buf.readLine();
-                    if (line != null)
-                    {
-                        // Check for an error (in stderr stream)
-                        if (line.startsWith("ERROR"))
-                        {
-                            error("Error running condor_submit: " + line);
-                        }
-                        else
-                        {
-                            // Check to see if the job has been submitted
-                            // (in stdout stream)
-                            Matcher m = JOB_SUBMITTED_PATTERN.matcher(line);
-                            if (m.matches())
-                            {
-                                int n = Integer.parseInt(m.group(1));
-                                clusterID = m.group(2);
-                                log.debug("Detected " + n + " jobs submitted: ID = "
-                                    + clusterID);
-                                setStatus(StatusCode.SUBMITTED, "Condor cluster ID = "
-                                    + clusterID);
-                                // Now we can start parsing the log file to monitor
-                                // the status of the job
-                                new LogFileParser().start();
-                            }
-                        }
-                    }
-                } while (line != null && !stopThreads);
-                buf.close();
-            }
-            catch(IOException ioe)
-            {
-                if (log.isDebugEnabled())
-                {
-                    ioe.printStackTrace();
-                }
-                error("Error running condor_submit: " + ioe.getMessage());
-            }
+            this.fireGotExitCode(this.exitCode);
+            this.setStatus(StatusCode.FINISHED);
         }
     }
     
@@ -826,18 +677,4 @@ public class CondorJob extends AbstractJob
             }
         }
     }
-    
-    public static void main (String[] args)
-    {
-        String test = "005 (496.002.000) 04/21 15:08:14 Job terminated.";
-        Matcher m = JOB_TERMINATED_PATTERN.matcher(test);
-        if (m.matches())
-        {
-            System.out.println("Job " + Integer.parseInt(m.group(2)) + " finished");
-        }
-        else
-        {
-            System.out.println("No match");
-        }
-    }
 }
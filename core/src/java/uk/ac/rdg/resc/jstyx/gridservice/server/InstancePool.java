@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2006 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.jstyx.gridservice.server;
+
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.rdg.resc.jstyx.StyxException;
+
+/**
+ * Pool of pre-built, idle instances of a StyxGridService.  Building a
+ * StyxGridServiceInstance involves creating its working directory, its
+ * parameter, steering and service data files and so on, which adds latency
+ * to every read of the clone file.  The pool keeps a number of instances
+ * ready so that the clone file can return one immediately.  The pool is
+ * refilled in the background by a single thread whenever an instance is
+ * taken from it.
+ *
+ * Instances in the pool are not visible in the namespace of the SGS until
+ * they are taken.  When the pool is shut down (including when the VM exits)
+ * any instances that are still idle are destroyed, deleting their working
+ * directories.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class InstancePool
+{
+    private static final Logger log = Logger.getLogger(InstancePool.class);
+    
+    // Delays in milliseconds before we try again to create an instance after
+    // a failure.  The delay doubles with each failure in a row, up to the
+    // maximum, and goes back to the minimum after a success.
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+    
+    private StyxGridService sgs;  // The service whose instances we're pooling
+    private int size;             // The number of instances to keep in the pool
+    private Vector idle;          // The idle instances
+                                  // (Vector of StyxGridServiceInstances)
+    private boolean shutdown;     // True when the pool has been shut down
+    
+    /**
+     * Creates a new InstancePool and starts filling it in the background
+     * @param sgs The StyxGridService whose instances will be pooled
+     * @param size The number of idle instances to keep in the pool
+     */
+    public InstancePool(StyxGridService sgs, int size)
+    {
+        this.sgs = sgs;
+        this.size = size;
+        this.idle = new Vector();
+        this.shutdown = false;
+        new Filler().start();
+        // Make sure we clean up the idle instances when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            public void run()
+            {
+                shutdown();
+            }
+        });
+    }
+    
+    /**
+     * Takes an idle instance from the pool and wakes up the background thread
+     * to replace it.
+     * @return an idle instance, or null if the pool is empty (in which case
+     * the caller must create a new instance itself)
+     */
+    public synchronized StyxGridServiceInstance take()
+    {
+        this.notifyAll();
+        if (this.idle.size() == 0)
+        {
+            log.debug("Instance pool for " + this.sgs.getRoot().getName() +
+                " is empty");
+            return null;
+        }
+        return (StyxGridServiceInstance)this.idle.remove(0);
+    }
+    
+    /**
+     * Stops refilling the pool and destroys all the idle instances.  Does
+     * nothing if the pool has already been shut down.
+     */
+    public void shutdown()
+    {
+        Vector toDestroy;
+        synchronized(this)
+        {
+            if (this.shutdown)
+            {
+                return;
+            }
+            this.shutdown = true;
+            toDestroy = new Vector(this.idle);
+            this.idle.clear();
+            this.notifyAll();
+        }
+        for (int i = 0; i < toDestroy.size(); i++)
+        {
+            ((StyxGridServiceInstance)toDestroy.get(i)).destroy();
+        }
+        log.debug("Destroyed " + toDestroy.size() + " idle instances of " +
+            this.sgs.getRoot().getName());
+    }
+    
+    /**
+     * Thread that keeps the pool topped up
+     */
+    private class Filler extends Thread
+    {
+        public Filler()
+        {
+            super("InstancePool-" + sgs.getRoot().getName());
+            this.setDaemon(true);
+        }
+        
+        public void run()
+        {
+            long retryDelayMs = MIN_RETRY_DELAY_MS;
+            while (true)
+            {
+                synchronized(InstancePool.this)
+                {
+                    while (!shutdown && idle.size() >= size)
+                    {
+                        try
+                        {
+                            InstancePool.this.wait();
+                        }
+                        catch(InterruptedException ie)
+                        {
+                            // do nothing
+                        }
+                    }
+                    if (shutdown)
+                    {
+                        return;
+                    }
+                }
+                // Build the instance without holding the lock so that
+                // clients can take instances in the meantime
+                StyxGridServiceInstance instance;
+                try
+                {
+                    instance = sgs.createInstance();
+                }
+                catch(StyxException se)
+                {
+                    if (log.isDebugEnabled())
+                    {
+                        se.printStackTrace();
+                    }
+                    log.error("Error creating idle instance of " +
+                        sgs.getRoot().getName() + ": " + se.getMessage() +
+                        "; trying again in " + retryDelayMs + " ms");
+                    if (!this.pause(retryDelayMs))
+                    {
+                        return;
+                    }
+                    retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+                    continue;
+                }
+                retryDelayMs = MIN_RETRY_DELAY_MS;
+                boolean added = false;
+                synchronized(InstancePool.this)
+                {
+                    if (!shutdown)
+                    {
+                        idle.add(instance);
+                        added = true;
+                    }
+                }
+                if (!added)
+                {
+                    // The pool was shut down while we were building the instance
+                    instance.destroy();
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Waits for the given number of milliseconds, or until the pool is
+         * shut down
+         * @return false if the pool has been shut down
+         */
+        private boolean pause(long delayMs)
+        {
+            long endTime = System.currentTimeMillis() + delayMs;
+            synchronized(InstancePool.this)
+            {
+                long remaining;
+                while (!shutdown &&
+                    (remaining = endTime - System.currentTimeMillis()) > 0)
+                {
+                    try
+                    {
+                        InstancePool.this.wait(remaining);
+                    }
+                    catch(InterruptedException ie)
+                    {
+                        // do nothing
+                    }
+                }
+                return !shutdown;
+            }
+        }
+    }
+    
+}
@@ -84,6 +84,11 @@ class SDEFile extends StyxFile
         byte[] bytes = this.sde.getBytes();
         this.processAndReplyRead(bytes, client, offset, count, tag);
     }
+    
+    public byte[] getContentsAsBytes() throws StyxException
+    {
+        return this.sde.getBytes();
+    }
 
     /**
      * We implicitly assume that the new value of the Service Data is 
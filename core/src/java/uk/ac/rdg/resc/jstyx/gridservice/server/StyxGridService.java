@@ -157,6 +157,8 @@ public class StyxGridService
     private StyxDirectory instancesDir; // Directory to hold SGS instances
     private SGSConfig sgsConfig; // The configuration for the SGS and its instances
     private boolean useSSH; // True if we are executing SGSs through SSH
+    private InstancePool pool; // Pool of pre-built instances (null if there is
+                               // no pool)
     
     static
     {
@@ -236,6 +238,16 @@ public class StyxGridService
         }
         
         this.sgsConfig = sgsConfig;
+        
+        // Start pre-building instances if we have been asked to
+        if (sgsConfig.getPoolSize() > 0)
+        {
+            this.pool = new InstancePool(this, sgsConfig.getPoolSize());
+        }
+        else
+        {
+            this.pool = null;
+        }
     }
     
     public StyxDirectory getRoot()
@@ -247,7 +259,7 @@ public class StyxGridService
      * @return a unique ID for an instance.  This is the SHA-1 hash of a
      * generated java.rmi.server.UID
      */
-    private static String getUniqueInstanceID()
+    private static synchronized String getUniqueInstanceID()
     {
         String uid = new UID().toString();
         byte[] digest = sha.digest(uid.getBytes());
@@ -271,19 +283,42 @@ public class StyxGridService
     }
     
     /**
-     * Creates a new StyxGridServiceInstance, adds it to the "instances"
-     * directory and returns its full URL.  In future this might create a new instance
-     * on another SGS server for purposes of load balancing.
+     * Creates a new StyxGridServiceInstance with a unique ID.  The instance
+     * is not added to the namespace.  This is called by the InstancePool to
+     * build idle instances in advance.
      */
-    private String newInstance(String id) throws StyxException
+    StyxGridServiceInstance createInstance() throws StyxException
     {
-        StyxDirectory newInstance = new StyxGridServiceInstance(this, id,
+        return new StyxGridServiceInstance(this, getUniqueInstanceID(),
             this.sgsConfig, this.useSSH);
+    }
+    
+    /**
+     * Gets a new StyxGridServiceInstance and adds it to the "instances"
+     * directory.  If there is a pool of pre-built instances, the instance
+     * is taken from the pool, otherwise (or if the pool is empty) it is
+     * created now.  In future this might create a new instance
+     * on another SGS server for purposes of load balancing.
+     * @return the new instance
+     */
+    private StyxGridServiceInstance newInstance() throws StyxException
+    {
+        StyxGridServiceInstance newInstance = null;
+        if (this.pool != null)
+        {
+            newInstance = this.pool.take();
+        }
+        if (newInstance == null)
+        {
+            newInstance = this.createInstance();
+        }
+        else
+        {
+            // The instance has been sitting in the pool: its lifetime starts now
+            newInstance.resetCreationTime();
+        }
         this.instancesDir.addChild(newInstance);
-        // Return the full URL to the new service instance
-        String hostAddress = this.sgsConfig.getServerConfig().getHostAddress();
-        int port = this.sgsConfig.getServerConfig().getPort();
-        return "styx://" + hostAddress + ":" + port + newInstance.getFullPath();
+        return newInstance;
     }
     
     // The clone file - reading this file creates a new instance of the Grid Service
@@ -307,11 +342,8 @@ public class StyxGridService
         {
             if (offset == 0)
             {
-                // Generate a unique ID for this instance
-                String id = getUniqueInstanceID();
-                
-                // Create a new StyxGridServiceInstance and return its URL
-                String newInstanceURL = newInstance(id);
+                // Get a new StyxGridServiceInstance
+                String id = newInstance().getID();
                 
                 // For simplicity we just return the ID of the instance: we are
                 // not creating instances on other servers yet
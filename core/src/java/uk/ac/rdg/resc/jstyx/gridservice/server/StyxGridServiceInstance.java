@@ -232,6 +232,7 @@ class StyxGridServiceInstance extends StyxDirectory implements JobChangeListener
     private StyxDirectory paramDir; // Contains the command-line parameters to pass to the executable
     private Vector paramFiles; // Contains the SGSParamFiles
     private StyxFile argsFile; // The file containing the command line arguments
+    private Vector monitoredFiles; // MonitoredFileOnDisks that back the custom SDEs
     private String command; // The command to run (i.e. the string that is passed to System.exec)
     private boolean useSSH; // If we're executing through SSH, this will be the
                             // only service instance and so we can quit when
@@ -364,6 +365,7 @@ class StyxGridServiceInstance extends StyxDirectory implements JobChangeListener
         // Add the service data: the files exposing the service data will all
         // have asynchronous behaviour
         StyxDirectory serviceDataDir = new StyxDirectory("serviceData");
+        this.monitoredFiles = new Vector();
         Vector serviceDataElements = sgsConfig.getServiceData();
         // Add the default SDEs that all services have
         this.status = new StringServiceDataElement("status", true, "created");
@@ -402,7 +404,8 @@ class StyxGridServiceInstance extends StyxDirectory implements JobChangeListener
                     new File(this.workDir, sde.getFilePath()), 
                     (long)(sde.getMinUpdateInterval() * 1000));
                 monFile.startMonitoring();
-                // TODO: stop monitoring somehow, when service is destroyed?
+                // We stop monitoring when the service is destroyed
+                this.monitoredFiles.add(monFile);
                 serviceDataDir.addChild(monFile);
             }
         }
@@ -624,6 +627,16 @@ class StyxGridServiceInstance extends StyxDirectory implements JobChangeListener
         return this.creationTime;
     }
     
+    /**
+     * Sets the creation time of this instance to the current time.  This is
+     * called when an instance that was built in advance is taken from the
+     * InstancePool.
+     */
+    void resetCreationTime()
+    {
+        this.creationTime = new Date();
+    }
+    
     /**
      * Gets the time at which this instance will be terminated
      */
@@ -756,10 +769,14 @@ class StyxGridServiceInstance extends StyxDirectory implements JobChangeListener
     {
         // Remove all the children of this directory
         this.removeAllChildren();
-        // Now remove this directory
+        // Now remove this directory (if this is an idle instance in the
+        // InstancePool it won't have been added to the namespace)
         try
         {
-            this.remove();
+            if (this.getParent() != null)
+            {
+                this.remove();
+            }
         }
         catch (StyxException se)
         {
@@ -767,6 +784,10 @@ class StyxGridServiceInstance extends StyxDirectory implements JobChangeListener
             log.error("Internal error: got StyxException when calling remove()" +
                 " on instance root directory");
         }
+        for (int i = 0; i < this.monitoredFiles.size(); i++)
+        {
+            ((MonitoredFileOnDisk)this.monitoredFiles.get(i)).stopMonitoring();
+        }
         this.job.destroy();
         log.debug("**** INSTANCE " + this.getName() + " DESTROYED ****");
     }
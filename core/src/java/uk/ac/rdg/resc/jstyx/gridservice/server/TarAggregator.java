@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2006 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.jstyx.gridservice.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Vector;
+import java.util.zip.GZIPOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+import org.apache.tools.tar.TarEntry;
+
+/**
+ * Builds tar archives of the output files of the sub-jobs of a composite
+ * CondorJob in the background.  For each output file of the service there is
+ * one archive in the root directory of the job, containing a copy of that
+ * output file from each sub-job (called "name.jobID").  Sub-jobs are added to
+ * the archives in the order in which they finish.
+ *
+ * The archives are written by a dedicated writer thread, which copies each
+ * file into the archive with FileChannel.transferTo(), so the thread that
+ * reports the end of each sub-job is never held up by the copying.  Since
+ * the archives are ordinary files that grow as each sub-job finishes, clients
+ * can start to read them (through SGSOutputFile) while the job is still running.
+ *
+ * If compression is switched on, each entry is gzipped in a separate
+ * compressor thread (which therefore works in parallel with the writer) and
+ * the writer appends the compressed entry to the archive.  A sequence of gzip
+ * members is itself a valid gzip file, so the archives can be read as normal
+ * .tar.gz files.
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class TarAggregator
+{
+    private static final Logger log = Logger.getLogger(TarAggregator.class);
+    
+    private static final int BLOCK_SIZE = 512; // Size of a tar block in bytes
+    private static final int BUFFER_SIZE = 65536; // Buffer size for compression
+    private static final String COMPRESSED_SUFFIX = ".tgz.part"; // Suffix of
+                               // the temporary files that hold compressed entries
+    private static final Object FINISH = new Object(); // Marks the end of a queue
+    
+    private CondorJob job;     // The job whose outputs we are aggregating
+    private File workDir;      // The root directory of the job
+    private String[] names;    // The names of the output files
+    private boolean compress;  // True if we are compressing the archives
+    private FileChannel[] archives; // Channels to the archives, one per output file
+    
+    private Vector/*<Object>*/ compressQueue; // Sub-job IDs waiting to be compressed
+    private Vector/*<Object>*/ writeQueue; // Entry[]s waiting to be written
+    
+    private boolean finished; // True when finish() has been called
+    private boolean failed;   // True when the writer has stopped with an error
+    
+    /**
+     * Creates a TarAggregator and starts its thread(s).  This creates (or
+     * empties) the archives.
+     * @param job The job whose outputs will be aggregated
+     * @param workDir The root directory of the job: the output files of sub-job
+     * n are in the subdirectory called n and the archives will be created in
+     * this directory
+     * @param names The names of the output files to aggregate
+     * @param compress If true the archives will be gzipped
+     * @throws IOException if the archives could not be created
+     */
+    public TarAggregator(CondorJob job, File workDir, String[] names,
+        boolean compress) throws IOException
+    {
+        this.job = job;
+        this.workDir = workDir;
+        this.names = names;
+        this.compress = compress;
+        this.finished = false;
+        this.failed = false;
+        this.archives = new FileChannel[names.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            this.archives[i] = new FileOutputStream(new File(workDir,
+                names[i])).getChannel();
+        }
+        this.writeQueue = new Vector();
+        new Writer().start();
+        if (this.compress)
+        {
+            this.compressQueue = new Vector();
+            new Compressor().start();
+        }
+    }
+    
+    /**
+     * Queues the outputs of the given sub-job for addition to the archives.
+     * Returns immediately.  Does nothing if finish() has been called or if
+     * the writer has stopped because of an error.
+     * @param jobID The ID of the sub-job, which must have finished
+     */
+    public void add(int jobID)
+    {
+        if (!this.isAccepting())
+        {
+            return;
+        }
+        if (this.compress)
+        {
+            put(this.compressQueue, new Integer(jobID));
+        }
+        else
+        {
+            Entry[] entries = new Entry[this.names.length];
+            for (int i = 0; i < this.names.length; i++)
+            {
+                File file = this.getOutputFile(jobID, i);
+                // Sub-jobs don't necessarily produce every output file
+                entries[i] = file.exists() ? new Entry(file, jobID, false) : null;
+            }
+            put(this.writeQueue, entries);
+        }
+    }
+    
+    /**
+     * Signals that no more sub-jobs will be added.  When all the outstanding
+     * sub-jobs have been written, the archives will be closed and
+     * CondorJob.archivesComplete() will be called.  Returns immediately.
+     * Calls after the first, or after the writer has failed, do nothing.
+     */
+    public void finish()
+    {
+        synchronized(this)
+        {
+            if (!this.isAccepting())
+            {
+                return;
+            }
+            this.finished = true;
+        }
+        put(this.compress ? this.compressQueue : this.writeQueue, FINISH);
+    }
+    
+    /**
+     * @return true if neither finish() has been called nor the writer has failed
+     */
+    private synchronized boolean isAccepting()
+    {
+        return !this.finished && !this.failed;
+    }
+    
+    /**
+     * @return true if the writer has stopped because of an error
+     */
+    private synchronized boolean isFailed()
+    {
+        return this.failed;
+    }
+    
+    /**
+     * Called by the writer when it stops because of an error.  Subsequent
+     * calls to add() and finish() will do nothing, the entries that are
+     * still waiting are discarded and the compressor thread (if any) is
+     * told to stop.
+     */
+    private void writerFailed()
+    {
+        synchronized(this)
+        {
+            this.failed = true;
+        }
+        synchronized(this.writeQueue)
+        {
+            for (int i = 0; i < this.writeQueue.size(); i++)
+            {
+                deleteCompressed(this.writeQueue.get(i));
+            }
+            this.writeQueue.clear();
+        }
+        if (this.compress)
+        {
+            synchronized(this.compressQueue)
+            {
+                this.compressQueue.clear();
+            }
+            // Wakes the compressor if it is waiting for a sub-job
+            put(this.compressQueue, FINISH);
+        }
+    }
+    
+    /**
+     * Deletes the temporary files of any compressed entries in the given
+     * item from the write queue
+     */
+    private static void deleteCompressed(Object item)
+    {
+        if (item instanceof Entry[])
+        {
+            Entry[] entries = (Entry[])item;
+            for (int i = 0; i < entries.length; i++)
+            {
+                if (entries[i] != null && entries[i].compressed)
+                {
+                    entries[i].file.delete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the output file with the given index from the given sub-job
+     */
+    private File getOutputFile(int jobID, int index)
+    {
+        return new File(new File(this.workDir, "" + jobID), this.names[index]);
+    }
+    
+    /**
+     * Writes the tar header and padding for the given file to the given stream,
+     * copying the contents of the file in between.  Used to create compressed
+     * entries.
+     */
+    private static void writeEntry(File file, String entryName, OutputStream os)
+        throws IOException
+    {
+        os.write(createHeader(file, entryName));
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] b = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(b)) >= 0)
+            {
+                os.write(b, 0, n);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        os.write(new byte[padding(file.length())]);
+    }
+    
+    /**
+     * @return the tar header block for the given file
+     */
+    private static byte[] createHeader(File file, String entryName)
+    {
+        TarEntry tarEntry = new TarEntry(entryName);
+        tarEntry.setSize(file.length());
+        tarEntry.setModTime(file.lastModified());
+        byte[] header = new byte[BLOCK_SIZE];
+        tarEntry.writeEntryHeader(header);
+        return header;
+    }
+    
+    /**
+     * @return the number of zero bytes needed to pad data of the given length
+     * to a whole number of tar blocks
+     */
+    private static int padding(long length)
+    {
+        int remainder = (int)(length % BLOCK_SIZE);
+        return remainder == 0 ? 0 : BLOCK_SIZE - remainder;
+    }
+    
+    /**
+     * Writes all the bytes in the given buffer to the given channel
+     */
+    private static void writeFully(FileChannel chan, ByteBuffer buf) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            chan.write(buf);
+        }
+    }
+    
+    /**
+     * Appends the given entry to the given archive
+     */
+    private static void append(FileChannel archive, Entry entry) throws IOException
+    {
+        FileChannel in = new FileInputStream(entry.file).getChannel();
+        try
+        {
+            if (!entry.compressed)
+            {
+                writeFully(archive, ByteBuffer.wrap(createHeader(entry.file,
+                    entry.file.getName() + "." + entry.jobID)));
+            }
+            long size = in.size();
+            long pos = 0;
+            while (pos < size)
+            {
+                pos += in.transferTo(pos, size - pos, archive);
+            }
+            if (!entry.compressed)
+            {
+                writeFully(archive, ByteBuffer.wrap(new byte[padding(size)]));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * Thread that appends entries to the archives
+     */
+    private class Writer extends Thread
+    {
+        public void run()
+        {
+            try
+            {
+                Object next;
+                while ((next = take(writeQueue)) != FINISH)
+                {
+                    Entry[] entries = (Entry[])next;
+                    for (int i = 0; i < entries.length; i++)
+                    {
+                        if (entries[i] != null)
+                        {
+                            append(archives[i], entries[i]);
+                            if (entries[i].compressed)
+                            {
+                                entries[i].file.delete();
+                            }
+                        }
+                    }
+                    log.debug("Copied output from a sub-job to tar output files");
+                }
+                this.closeArchives();
+                job.archivesComplete();
+            }
+            catch(IOException ioe)
+            {
+                if (log.isDebugEnabled())
+                {
+                    ioe.printStackTrace();
+                }
+                writerFailed();
+                job.error("Error writing output archives: " + ioe.getMessage());
+            }
+            finally
+            {
+                for (int i = 0; i < archives.length; i++)
+                {
+                    try
+                    {
+                        archives[i].close();
+                    }
+                    catch(IOException ioe)
+                    {
+                        // Ignore errors when closing the archives
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Writes the end-of-archive marker (two empty blocks) to each archive
+         */
+        private void closeArchives() throws IOException
+        {
+            byte[] eof = new byte[2 * BLOCK_SIZE];
+            if (compress)
+            {
+                eof = gzip(eof);
+            }
+            for (int i = 0; i < archives.length; i++)
+            {
+                writeFully(archives[i], ByteBuffer.wrap(eof));
+            }
+            log.debug("Closed all tar output files");
+        }
+    }
+    
+    /**
+     * Thread that creates compressed entries and passes them to the writer
+     */
+    private class Compressor extends Thread
+    {
+        public void run()
+        {
+            Object next;
+            while ((next = take(compressQueue)) != FINISH && !isFailed())
+            {
+                int jobID = ((Integer)next).intValue();
+                Entry[] entries = new Entry[names.length];
+                for (int i = 0; i < names.length; i++)
+                {
+                    File file = getOutputFile(jobID, i);
+                    File compressed = new File(file.getPath() + COMPRESSED_SUFFIX);
+                    entries[i] = null;
+                    if (file.exists())
+                    {
+                        entries[i] = new Entry(compressed, jobID, true);
+                        try
+                        {
+                            OutputStream os = new GZIPOutputStream(new BufferedOutputStream(
+                                new FileOutputStream(compressed), BUFFER_SIZE));
+                            try
+                            {
+                                writeEntry(file, names[i] + "." + jobID, os);
+                            }
+                            finally
+                            {
+                                os.close();
+                            }
+                        }
+                        catch(IOException ioe)
+                        {
+                            // We leave it to the writer to report the error:
+                            // it will fail to open the compressed file
+                            log.error("Error compressing " + file.getPath() +
+                                ": " + ioe.getMessage());
+                            compressed.delete();
+                        }
+                    }
+                }
+                if (!putUnlessFailed(entries))
+                {
+                    // The writer has stopped so nobody will read the entries
+                    deleteCompressed(entries);
+                    return;
+                }
+            }
+            putUnlessFailed(FINISH);
+        }
+        
+        /**
+         * Adds the given object to the write queue unless the writer has
+         * failed.  The check is made while holding the lock on the queue
+         * so that writerFailed() cannot clear the queue in between.
+         * @return true if the object was added
+         */
+        private boolean putUnlessFailed(Object obj)
+        {
+            synchronized(writeQueue)
+            {
+                if (isFailed())
+                {
+                    return false;
+                }
+                put(writeQueue, obj);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * @return the given data as a gzip member
+     */
+    private static byte[] gzip(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        GZIPOutputStream gout = new GZIPOutputStream(bout);
+        gout.write(data);
+        gout.close();
+        return bout.toByteArray();
+    }
+    
+    /**
+     * Adds an object to the end of the given queue
+     */
+    private static void put(Vector queue, Object obj)
+    {
+        synchronized(queue)
+        {
+            queue.add(obj);
+            queue.notify();
+        }
+    }
+    
+    /**
+     * Takes an object from the start of the given queue, waiting until one
+     * is available
+     */
+    private static Object take(Vector queue)
+    {
+        synchronized(queue)
+        {
+            while (queue.size() == 0)
+            {
+                try
+                {
+                    queue.wait();
+                }
+                catch(InterruptedException ie)
+                {
+                    // do nothing
+                }
+            }
+            return queue.remove(0);
+        }
+    }
+    
+    /**
+     * A file that is waiting to be added to an archive
+     */
+    private static class Entry
+    {
+        private File file;  // The file to add
+        private int jobID;  // The ID of the sub-job that created the file
+        private boolean compressed; // True if the file is a compressed entry
+                                    // (including its header and padding)
+        
+        public Entry(File file, int jobID, boolean compressed)
+        {
+            this.file = file;
+            this.jobID = jobID;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -32,8 +32,9 @@ import org.apache.mina.common.ByteBuffer;
 
 import java.util.Hashtable;
 import java.util.Vector;
-import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import uk.ac.rdg.resc.jstyx.StyxException;
 import uk.ac.rdg.resc.jstyx.types.ULong;
@@ -46,6 +47,15 @@ import uk.ac.rdg.resc.jstyx.messages.RerrorMessage;
  * closed, subsequent reads from the same client block until the file content is
  * changed.
  *
+ * Waiting clients are notified of changes from a single Timer thread that is
+ * shared by all AsyncStyxFiles.  Bursts of changes that arrive before the
+ * notification runs are coalesced into a single notification, and if the
+ * underlying file can provide its contents as a byte array (see
+ * StyxFile.getContentsAsBytes()) it is read only once per version, with the
+ * data being shared between all the waiting clients.  Clients that cannot be
+ * replied to because of the minimum reply interval are woken up when their
+ * interval has elapsed, rather than waiting for the next change.
+ *
  * @author Jon Blower
  * $Revision$
  * $Date$
@@ -96,12 +106,23 @@ import uk.ac.rdg.resc.jstyx.messages.RerrorMessage;
 public class AsyncStyxFile extends StyxFile implements StyxFileChangeListener
 {
     
+    private static Timer notifier = null; // Sends notifications for all AsyncStyxFiles
+    
     protected StyxFile baseFile;       // The file to wrap
     private Hashtable knownClients;  // Clients that have connected to this file before
     private Vector clientQueue;      // Clients that are awaiting a reply
     private long minReplyInterval;   // The minimum amount of time in ms between replies to the same client
                                      // (prevents loading of server in case of rapidly-changing
                                      // data)
+    private Object queueLock = new Object(); // Protects the clientQueue and the
+                                             // notification fields below
+    private TimerTask notification;  // The next scheduled notification, or null
+    private long notificationTime;   // The time at which the notification will run
+    private boolean forceNotification; // True if the next notification must ignore
+                                       // the minReplyInterval
+    private long contentsVersion;    // The version of the file that is held in contents
+    private byte[] contents;         // The contents of the base file, shared between
+                                     // all the clients that are notified of a change
     
     /**
      * Creates a new AsyncStyxFile with the same name as the underlying file.
@@ -132,6 +153,10 @@ public class AsyncStyxFile extends StyxFile implements StyxFileChangeListener
         this.knownClients = new Hashtable();
         this.clientQueue = new Vector();
         this.minReplyInterval = 0;
+        this.notification = null;
+        this.forceNotification = false;
+        this.contentsVersion = -1;
+        this.contents = null;
         // Register our interest in changes to the underlying StyxFile
         this.baseFile.addChangeListener(this);
     }
@@ -188,7 +213,17 @@ public class AsyncStyxFile extends StyxFile implements StyxFileChangeListener
                     cinfo.offset = offset;
                     cinfo.count = count;
                     cinfo.tag = tag;
-                    this.clientQueue.add(cinfo);
+                    synchronized (this.queueLock)
+                    {
+                        this.clientQueue.add(cinfo);
+                        if (cinfo.versionLastRead != this.getVersion())
+                        {
+                            // The file has changed, so wake the client up when
+                            // its minimum reply interval has elapsed
+                            this.scheduleNotification(cinfo.timeLastReply +
+                                this.minReplyInterval);
+                        }
+                    }
                 }
             }
         }
@@ -207,42 +242,174 @@ public class AsyncStyxFile extends StyxFile implements StyxFileChangeListener
     }
     
     /**
-     * Called to notify that the underlying data have changed.
+     * Called to notify that the underlying data have changed.  Waiting clients
+     * are notified shortly afterwards in a separate thread: if more changes
+     * happen before then, the clients are only notified once.
      * @param force If this is true, clients will be notified of changes to 
      * the underlying data, irrespective of how long they have waited.
      */
     public void fileContentsChanged(boolean force)
     {
         this.incrementVersion();
-        // Reply to all waiting clients with the file's new data
-        synchronized (this.clientQueue)
+        synchronized (this.queueLock)
         {
-            Iterator it = this.clientQueue.iterator();
-            while(it.hasNext())
+            if (force)
+            {
+                this.forceNotification = true;
+            }
+            this.scheduleNotification(System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * Notifies waiting clients that the data have changed, then notifies any
+     * StyxFileChangeListeners that are registered with this file.  Subclasses
+     * (e.g. MonitoredFileOnDisk) call this when they detect a change to the
+     * underlying data themselves.
+     */
+    public void contentsChanged()
+    {
+        this.fileContentsChanged(false);
+        this.fireContentsChanged();
+    }
+    
+    /**
+     * Makes sure that waiting clients will be notified no later than the given
+     * time.  Must be called with the lock on the queueLock.
+     */
+    private void scheduleNotification(long time)
+    {
+        if (this.notification != null)
+        {
+            if (this.notificationTime <= time)
+            {
+                // A notification will happen soon enough anyway
+                return;
+            }
+            this.notification.cancel();
+        }
+        this.notification = new TimerTask()
+        {
+            public void run()
+            {
+                notifyWaitingClients();
+            }
+        };
+        this.notificationTime = time;
+        getNotifier().schedule(this.notification,
+            Math.max(0, time - System.currentTimeMillis()));
+    }
+    
+    /**
+     * @return the Timer that is used to notify waiting clients
+     */
+    private static synchronized Timer getNotifier()
+    {
+        if (notifier == null)
+        {
+            notifier = new Timer(true);
+        }
+        return notifier;
+    }
+    
+    /**
+     * Replies to all the waiting clients that have not seen the latest version
+     * of the file and whose minimum reply interval has elapsed.  If there are
+     * clients whose interval has not elapsed yet, schedules another notification.
+     */
+    private void notifyWaitingClients()
+    {
+        Vector clientsToReply = new Vector();
+        long version = this.getVersion();
+        long now = System.currentTimeMillis();
+        synchronized (this.queueLock)
+        {
+            this.notification = null;
+            boolean force = this.forceNotification;
+            this.forceNotification = false;
+            long nextTime = Long.MAX_VALUE;
+            for (Iterator it = this.clientQueue.iterator(); it.hasNext(); )
             {
                 ClientInfo cinfo = (ClientInfo)it.next();
-                // Only reply to the client if the requisite amount of time has
-                // elapsed since the last reply
-                long now = System.currentTimeMillis();
-                long timeSinceLastReply = now - cinfo.timeLastReply;
-                if (force || timeSinceLastReply > this.minReplyInterval)
+                long replyTime = cinfo.timeLastReply + this.minReplyInterval;
+                if (cinfo.versionLastRead == version)
                 {
-                    try
-                    {
-                        this.replyClient(cinfo, cinfo.client, cinfo.offset, cinfo.count, cinfo.tag);
-                    }
-                    catch(StyxException se)
-                    {
-                        // This exception is thrown if there was an error reading
-                        // the underlying StyxFile.
-                        StyxServerProtocolHandler.reply(cinfo.client.getSession(),
-                            new RerrorMessage(se.getMessage()), cinfo.tag);
-                    }
+                    // This client has seen the latest data already
+                }
+                else if (force || replyTime <= now)
+                {
+                    clientsToReply.add(cinfo);
                     it.remove();
                 }
+                else
+                {
+                    nextTime = Math.min(nextTime, replyTime);
+                }
+            }
+            if (nextTime != Long.MAX_VALUE)
+            {
+                this.scheduleNotification(nextTime);
+            }
+        }
+        
+        if (clientsToReply.size() == 0)
+        {
+            return;
+        }
+        // Read the base file once and share the data between all the clients
+        byte[] bytes = this.getContents(version);
+        for (int i = 0; i < clientsToReply.size(); i++)
+        {
+            ClientInfo cinfo = (ClientInfo)clientsToReply.get(i);
+            try
+            {
+                if (bytes == null)
+                {
+                    // The base file can't give us its contents so we must
+                    // read it separately for each client
+                    this.replyClient(cinfo, cinfo.client, cinfo.offset, cinfo.count, cinfo.tag);
+                }
+                else
+                {
+                    cinfo.versionLastRead = version;
+                    cinfo.timeLastReply = now;
+                    this.processAndReplyRead(bytes, cinfo.client, cinfo.offset,
+                        cinfo.count, cinfo.tag);
+                }
+            }
+            catch(StyxException se)
+            {
+                // This exception is thrown if there was an error reading
+                // the underlying StyxFile.
+                StyxServerProtocolHandler.reply(cinfo.client.getSession(),
+                    new RerrorMessage(se.getMessage()), cinfo.tag);
             }
         }
-        // Now the clientQueue is empty        
+    }
+    
+    /**
+     * Gets the contents of the base file, reading it only if we have not
+     * already read the given version
+     * @return the contents, or null if the base file cannot provide them
+     * as a byte array
+     */
+    private synchronized byte[] getContents(long version)
+    {
+        if (version != this.contentsVersion)
+        {
+            try
+            {
+                this.contents = this.baseFile.getContentsAsBytes();
+            }
+            catch(StyxException se)
+            {
+                // We'll read the file separately for each client, which
+                // will report the error
+                this.contents = null;
+            }
+            this.contentsVersion = version;
+        }
+        return this.contents;
     }
     
     /**
@@ -277,7 +444,16 @@ public class AsyncStyxFile extends StyxFile implements StyxFileChangeListener
     {
         super.delete();
         this.knownClients.clear();
-        this.clientQueue.clear();
+        synchronized (this.queueLock)
+        {
+            this.clientQueue.clear();
+            if (this.notification != null)
+            {
+                this.notification.cancel();
+                this.notification = null;
+            }
+        }
+        this.contents = null;
     }
     
     /**
@@ -287,17 +463,17 @@ public class AsyncStyxFile extends StyxFile implements StyxFileChangeListener
     protected synchronized void clientDisconnected(StyxFileClient client)
     {
         this.knownClients.remove(client);
-        synchronized (this.clientQueue)
+        synchronized (this.queueLock)
         {
-            Enumeration en = this.clientQueue.elements();
-            while(en.hasMoreElements())
+            Iterator it = this.clientQueue.iterator();
+            while(it.hasNext())
             {
-                ClientInfo cinfo = (ClientInfo)en.nextElement();
+                ClientInfo cinfo = (ClientInfo)it.next();
                 // We're checking for equality of object references - this is OK
                 // because we're looking for two references to the same object
                 if (client == cinfo.client)
                 {
-                    this.knownClients.remove(cinfo);
+                    it.remove();
                 }
             }
         }
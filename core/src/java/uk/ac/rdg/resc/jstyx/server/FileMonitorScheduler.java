@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2005 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.jstyx.server;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Polls all the MonitoredFileOnDisks in the server from a single thread, so
+ * that a server can monitor thousands of files without needing a thread for
+ * each one.  Each file is checked at its own monitor interval.  Check times
+ * are rounded up to a whole number of ticks so that files whose checks fall
+ * due at around the same time are checked together, and all the files in
+ * each directory that are checked together share a single listing of that
+ * directory (rather than calling exists() on each file).
+ *
+ * @author Jon Blower
+ * $Revision$
+ * $Date$
+ * $Log$
+ */
+class FileMonitorScheduler extends Thread
+{
+    private static final Logger log = Logger.getLogger(FileMonitorScheduler.class);
+    
+    private static final long TICK = 100; // Granularity of check times in ms
+    private static final Long CHECKING = new Long(-1); // Marks files that are
+                                                       // being checked
+    
+    private static FileMonitorScheduler scheduler = null;
+    
+    // Maps tick numbers (Longs) to Vectors of the files that are due to be
+    // checked at that tick
+    private SortedMap/*<Long, Vector<MonitoredFileOnDisk>>*/ wheel;
+    // Maps registered files to the tick at which they will next be checked,
+    // or to CHECKING if they are being checked at the moment
+    private Hashtable/*<MonitoredFileOnDisk, Long>*/ registered;
+    
+    /**
+     * @return the scheduler, creating and starting it if necessary
+     */
+    static synchronized FileMonitorScheduler getScheduler()
+    {
+        if (scheduler == null)
+        {
+            scheduler = new FileMonitorScheduler();
+            scheduler.start();
+        }
+        return scheduler;
+    }
+    
+    private FileMonitorScheduler()
+    {
+        super("FileMonitorScheduler");
+        this.setDaemon(true);
+        this.wheel = new TreeMap();
+        this.registered = new Hashtable();
+    }
+    
+    /**
+     * Starts monitoring the given file: the first check will happen as soon
+     * as possible.  Does nothing if the file is already being monitored.
+     */
+    synchronized void register(MonitoredFileOnDisk file)
+    {
+        if (!this.registered.containsKey(file))
+        {
+            this.schedule(file, System.currentTimeMillis());
+            this.notify();
+        }
+    }
+    
+    /**
+     * Stops monitoring the given file
+     */
+    synchronized void unregister(MonitoredFileOnDisk file)
+    {
+        Long tick = (Long)this.registered.remove(file);
+        if (tick != null && tick != CHECKING)
+        {
+            Vector files = (Vector)this.wheel.get(tick);
+            files.remove(file);
+            if (files.size() == 0)
+            {
+                this.wheel.remove(tick);
+            }
+        }
+    }
+    
+    /**
+     * Schedules the next check of the given file.  Must be called with the
+     * lock on this object.
+     * @param time The earliest time at which the file can be checked
+     */
+    private void schedule(MonitoredFileOnDisk file, long time)
+    {
+        // Round up to the next whole tick
+        Long tick = new Long((time + TICK - 1) / TICK);
+        Vector files = (Vector)this.wheel.get(tick);
+        if (files == null)
+        {
+            files = new Vector();
+            this.wheel.put(tick, files);
+        }
+        files.add(file);
+        this.registered.put(file, tick);
+    }
+    
+    public void run()
+    {
+        while (true)
+        {
+            Vector due = null;
+            try
+            {
+                due = this.waitForDueFiles();
+                this.check(due);
+            }
+            catch(InterruptedException ie)
+            {
+                // do nothing
+            }
+            catch(Exception e)
+            {
+                // Make sure that the scheduler thread never dies
+                if (log.isDebugEnabled())
+                {
+                    e.printStackTrace();
+                }
+                log.error("Error monitoring files: " + e.getMessage());
+            }
+            finally
+            {
+                // Whatever happened, the files that we took off the wheel
+                // must go back on it, or they will never be checked again
+                if (due != null)
+                {
+                    this.reschedule(due);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Schedules the next checks of the given files, which have just been
+     * checked
+     */
+    private synchronized void reschedule(Vector files)
+    {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < files.size(); i++)
+        {
+            MonitoredFileOnDisk file = (MonitoredFileOnDisk)files.get(i);
+            // Don't reschedule files that were unregistered while
+            // we were checking them
+            if (this.registered.get(file) == CHECKING)
+            {
+                this.schedule(file, now + file.getMonitorInterval());
+            }
+        }
+    }
+    
+    /**
+     * Waits until at least one file is due to be checked, then removes all
+     * the files that are due from the wheel
+     * @return Vector of MonitoredFileOnDisks that are due to be checked
+     */
+    private synchronized Vector waitForDueFiles() throws InterruptedException
+    {
+        while (true)
+        {
+            long now = System.currentTimeMillis();
+            if (this.wheel.isEmpty())
+            {
+                this.wait();
+            }
+            else
+            {
+                long firstTick = ((Long)this.wheel.firstKey()).longValue();
+                long timeToWait = firstTick * TICK - now;
+                if (timeToWait > 0)
+                {
+                    this.wait(timeToWait);
+                }
+                else
+                {
+                    // Take all the files that are due up to and including
+                    // the current tick
+                    SortedMap dueTicks = this.wheel.headMap(new Long(now / TICK + 1));
+                    Vector due = new Vector();
+                    for (Iterator it = dueTicks.values().iterator(); it.hasNext(); )
+                    {
+                        due.addAll((Vector)it.next());
+                    }
+                    dueTicks.clear();
+                    for (int i = 0; i < due.size(); i++)
+                    {
+                        this.registered.put(due.get(i), CHECKING);
+                    }
+                    return due;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks the given files, listing each directory only once
+     */
+    private void check(Vector files)
+    {
+        // Group the files by their parent directories
+        Hashtable/*<File, Vector<MonitoredFileOnDisk>>*/ dirs = new Hashtable();
+        for (int i = 0; i < files.size(); i++)
+        {
+            MonitoredFileOnDisk file = (MonitoredFileOnDisk)files.get(i);
+            File dir = file.getFile().getAbsoluteFile().getParentFile();
+            Vector filesInDir = (Vector)dirs.get(dir);
+            if (filesInDir == null)
+            {
+                filesInDir = new Vector();
+                dirs.put(dir, filesInDir);
+            }
+            filesInDir.add(file);
+        }
+        
+        for (Enumeration en = dirs.keys(); en.hasMoreElements(); )
+        {
+            File dir = (File)en.nextElement();
+            Vector filesInDir = (Vector)dirs.get(dir);
+            if (filesInDir.size() == 1)
+            {
+                // It's cheaper to look for a single file than to list the
+                // whole directory
+                MonitoredFileOnDisk file = (MonitoredFileOnDisk)filesInDir.get(0);
+                checkFile(file, file.getFile().exists());
+                continue;
+            }
+            Set names = new HashSet();
+            String[] list = dir.list();
+            if (list != null)
+            {
+                for (int i = 0; i < list.length; i++)
+                {
+                    names.add(list[i]);
+                }
+            }
+            for (int i = 0; i < filesInDir.size(); i++)
+            {
+                MonitoredFileOnDisk file = (MonitoredFileOnDisk)filesInDir.get(i);
+                checkFile(file, names.contains(file.getFile().getName()));
+            }
+        }
+    }
+    
+    /**
+     * Checks a single file, logging (rather than throwing) any exception so
+     * that a problem with one file (e.g. a listener that throws a
+     * RuntimeException) doesn't stop the other files from being checked
+     */
+    private static void checkFile(MonitoredFileOnDisk file, boolean exists)
+    {
+        try
+        {
+            file.check(exists);
+        }
+        catch(Exception e)
+        {
+            if (log.isDebugEnabled())
+            {
+                e.printStackTrace();
+            }
+            log.error("Error monitoring " + file.getFile().getPath() + ": "
+                + e.getMessage());
+        }
+    }
+}
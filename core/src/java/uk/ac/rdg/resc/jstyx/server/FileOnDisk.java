@@ -110,6 +110,12 @@ public class FileOnDisk extends StyxFile
 {
     private static final Logger log = Logger.getLogger(FileOnDisk.class);
     
+    /**
+     * The largest file (in bytes) whose contents will be returned by
+     * getContentsAsBytes()
+     */
+    private static final int MAX_CONTENTS_SIZE = 65536;
+    
     protected File file;
     protected boolean mustExist; // If this is true, then an exception will be
         // thrown by the constructor if the underlying java.io.File does not exist.
@@ -271,6 +277,51 @@ public class FileOnDisk extends StyxFile
         }
     }
     
+    /**
+     * Reads the whole of the underlying java.io.File into a byte array, as
+     * long as it is no larger than MAX_CONTENTS_SIZE.  Returns null if the file
+     * is too large, in which case it must be read through read().  If the file
+     * does not exist, returns null (read() will then handle this).
+     */
+    public synchronized byte[] getContentsAsBytes() throws StyxException
+    {
+        long length = this.file.length();
+        if (!this.file.exists() || length > MAX_CONTENTS_SIZE)
+        {
+            return null;
+        }
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+            try
+            {
+                // The file might have changed size since we checked
+                length = raf.length();
+                if (length > MAX_CONTENTS_SIZE)
+                {
+                    return null;
+                }
+                byte[] bytes = new byte[(int)length];
+                raf.readFully(bytes);
+                return bytes;
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch(FileNotFoundException fnfe)
+        {
+            return null;
+        }
+        catch(IOException ioe)
+        {
+            throw new StyxException("An error of class " + ioe.getClass() + 
+                " occurred when trying to read from " + this.getFullPath() +
+                ": " + ioe.getMessage());
+        }
+    }
+    
     /**
      * Writes data to the underlying java.io.File.  If the File does not exist
      * and <code>mustExist</code> is true, this throws a StyxException.  If the File
@@ -245,6 +245,22 @@ public class InMemoryFile extends StyxFile
         return StyxUtils.dataToString(this.buf);
     }
     
+    /**
+     * @return the contents of the file as a byte array (a zero-length array
+     * if nothing has been written to the file)
+     */
+    public synchronized byte[] getContentsAsBytes()
+    {
+        if (this.buf == null)
+        {
+            return new byte[0];
+        }
+        byte[] bytes = new byte[this.buf.limit()];
+        this.buf.position(0);
+        this.buf.get(bytes);
+        return bytes;
+    }
+    
     public static void main (String[] args) throws Exception
     {
         // Create the root directory of the Styx server
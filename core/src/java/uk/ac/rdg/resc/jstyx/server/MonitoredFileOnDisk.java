@@ -38,9 +38,10 @@ import uk.ac.rdg.resc.jstyx.server.StyxDirectory;
 
 /**
  * A file on disk that is continuously monitored.  This is basically an
- * AsyncStyxFile that wraps a FileOnDisk, with a separate thread that monitors
- * the underlying file (checks for changes to the last modified time and length
- * of the file).  Note that the underlying file does not have to exist at the 
+ * AsyncStyxFile that wraps a FileOnDisk, whose underlying file is checked
+ * periodically for changes to the last modified time and length of the file.
+ * The checks for all MonitoredFileOnDisks are made by a single shared thread
+ * (see FileMonitorScheduler).  Note that the underlying file does not have to exist at the 
  * time the MonitoredFileOnDisk object is constructed or at the time the monitor
  * is started.
  *
@@ -64,7 +65,7 @@ import uk.ac.rdg.resc.jstyx.server.StyxDirectory;
  * Initial import
  *
  */
-public class MonitoredFileOnDisk extends AsyncStyxFile implements Runnable
+public class MonitoredFileOnDisk extends AsyncStyxFile
 {
     
     private static final Logger log = Logger.getLogger(MonitoredFileOnDisk.class);
@@ -75,9 +76,6 @@ public class MonitoredFileOnDisk extends AsyncStyxFile implements Runnable
     private boolean fileExists;   // true if the file exists
     private long length;          // length of the file in bytes
     
-    private boolean monitoring;   // Set this false to stop the monitoring
-    private Thread monitor;       // The thread that does the monitoring
-    
     /**
      * Creates a new instance of MonitoredFileOnDisk. Call startMonitoring() to
      * start monitoring the underlying file.
@@ -126,8 +124,6 @@ public class MonitoredFileOnDisk extends AsyncStyxFile implements Runnable
         this.fileExists = file.exists();
         this.lastModifiedTime = file.lastModified() / 1000;
         this.length = file.length();
-        // Prepare the thread but don't start monitoring the file yet
-        this.monitor = new Thread(this);
     }
     
     /**
@@ -157,82 +153,78 @@ public class MonitoredFileOnDisk extends AsyncStyxFile implements Runnable
         this(file, 2000);
     }
     
-    public void run()
+    /**
+     * Checks the underlying file for changes, notifying waiting clients if
+     * the file has changed.  Called by the FileMonitorScheduler.
+     * @param exists True if the underlying file exists
+     */
+    void check(boolean exists)
     {
-        try
+        if (exists)
         {
-            while(this.monitoring)
+            if (this.fileExists)
             {
-                
-                long start = System.currentTimeMillis();
-                if (this.file.exists())
+                // We already knew that this file exists. Let's look at
+                // the last modified time.
+                long newLastMod = this.file.lastModified() / 1000;
+                if (newLastMod != this.lastModifiedTime)
                 {
-                    if (this.fileExists)
-                    {
-                        // We already knew that this file exists. Let's look at
-                        // the last modified time.
-                        long newLastMod = this.file.lastModified() / 1000;
-                        if (newLastMod != this.lastModifiedTime)
-                        {
-                            this.lastModifiedTime = newLastMod;
-                            // notify that the contents have changed.
-                            this.contentsChanged();
-                        }
-                        // Last mod time hasn't changed.  Check the length of the file
-                        // TODO: is this necessary?  Will this ever change if lastModified
-                        // hasn't changed?  Just a double-check really.
-                        else
-                        {
-                            long newLength = this.file.length();
-                            if (newLength != this.length)
-                            {
-                                this.length = newLength;
-                                this.contentsChanged();
-                            }
-                        }
-                    }
-                    else
-                    {
-                        // This is the first time that we've noticed that the file exists
-                        this.fileExists = true;
-                        this.length = this.file.length();
-                        this.lastModifiedTime = this.file.lastModified() / 1000;
-                        this.contentsChanged();
-                    }
+                    this.lastModifiedTime = newLastMod;
+                    // notify that the contents have changed.
+                    this.contentsChanged();
                 }
+                // Last mod time hasn't changed.  Check the length of the file
+                // TODO: is this necessary?  Will this ever change if lastModified
+                // hasn't changed?  Just a double-check really.
                 else
                 {
-                    // The file doesn't exist
-                    if (this.fileExists)
+                    long newLength = this.file.length();
+                    if (newLength != this.length)
                     {
-                        // The file previously existed, now it has vanished.
-                        this.length = 0L;
-                        this.lastModifiedTime = 0L;
-                        this.contentsChanged(); // This will write EOF to all waiting clients
+                        this.length = newLength;
+                        this.contentsChanged();
                     }
                 }
-                
-                // Work out how long we have to wait before the next poll, given
-                // that the preceding code may have taken a little time
-                long timeTaken = System.currentTimeMillis() - start;
-                long timeToWait = this.monitorInterval - timeTaken;
-                if (timeToWait > 0)
-                {
-                    Thread.sleep(timeToWait);
-                }
-                
-            } // end while loop
+            }
+            else
+            {
+                // This is the first time that we've noticed that the file exists
+                this.fileExists = true;
+                this.length = this.file.length();
+                this.lastModifiedTime = this.file.lastModified() / 1000;
+                this.contentsChanged();
+            }
         }
-        catch (InterruptedException ie)
+        else
         {
-            if (log.isDebugEnabled())
+            // The file doesn't exist
+            if (this.fileExists)
             {
-                log.debug("MonitoredFileOnDisk " + this.name +
-                    " interrupted while sleeping");
+                // The file previously existed, now it has vanished.
+                this.fileExists = false;
+                this.length = 0L;
+                this.lastModifiedTime = 0L;
+                this.contentsChanged(); // This will write EOF to all waiting clients
             }
         }
     }
     
+    /**
+     * @return the underlying file that is being monitored
+     */
+    File getFile()
+    {
+        return this.file;
+    }
+    
+    /**
+     * @return the time in milliseconds between each check of the file
+     */
+    long getMonitorInterval()
+    {
+        return this.monitorInterval;
+    }
+    
     public ULong getLength()
     {
         return new ULong(this.length);
@@ -244,8 +236,7 @@ public class MonitoredFileOnDisk extends AsyncStyxFile implements Runnable
     public void startMonitoring()
     {
         log.debug("Starting to monitor " + this.file.getPath());
-        this.monitoring = true;
-        this.monitor.start();
+        FileMonitorScheduler.getScheduler().register(this);
     }
     
     /**
@@ -254,8 +245,7 @@ public class MonitoredFileOnDisk extends AsyncStyxFile implements Runnable
     public void stopMonitoring()
     {
         log.debug("Stopping monitoring of " + this.file.getPath());
-        this.monitoring = false;
-        this.monitor.interrupt();
+        FileMonitorScheduler.getScheduler().unregister(this);
     }
     
     /**
@@ -557,6 +557,20 @@ public class StyxFile
         throw new StyxException("Cannot read from this file");
     }
     
+    /**
+     * Gets the entire contents of this file as a byte array.  This is used by
+     * AsyncStyxFile to read the file once and share the data between all the
+     * clients that are waiting for it to change.  This default implementation
+     * returns null, meaning that the contents are not available in this way
+     * and must be read through read().  Subclasses that can provide their
+     * contents cheaply should override this.
+     * @throws StyxException if there was an error getting the contents
+     */
+    public byte[] getContentsAsBytes() throws StyxException
+    {
+        return null;
+    }
+    
     /**
      * Writes data to this file. Must check that the file is open for writing
      * before this. We have already dealt with the possibility that this is an